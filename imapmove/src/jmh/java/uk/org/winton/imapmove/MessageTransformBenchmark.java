@@ -0,0 +1,170 @@
+package uk.org.winton.imapmove;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the per-message work done between fetching a message and appending
+ * it: the skip decision, the header rewrite and writing the rewritten message out.
+ * Run with <code>gradle jmh</code>, which adds the GC profiler so that allocation
+ * per operation is reported alongside the timings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTransformBenchmark {
+	private static final String SRCUSER = "srcuser@source.com";
+	private static final String DSTUSER = "dstuser@destination.com";
+	private static final int CORPUS_SIZE = 64;
+
+	@Param({ "plain", "recipients", "attachment" })
+	public String corpus;
+
+	private IMAPMover mover;
+	private MimeMessage[] messages;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		// Per-message INFO logging would swamp everything being measured
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		IMAPClient src = new IMAPClient("imap://srcuser@source.com/Inbox");
+		src.setEmailAddress(SRCUSER);
+		IMAPClient dst = new IMAPClient("imap://dstuser@destination.com/Inbox");
+		dst.setEmailAddress(DSTUSER);
+		mover = new IMAPMover(src, dst);
+		mover.setSubjectPrefix("[Moved] ");
+
+		Session session = Session.getInstance(System.getProperties());
+		Random random = new Random(42);
+		messages = new MimeMessage[CORPUS_SIZE];
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			messages[i] = parsed(session, build(session, random, i));
+		}
+	}
+
+	@Benchmark
+	public boolean select() throws MessagingException {
+		return mover.shouldBeMoved(nextMessage());
+	}
+
+	@Benchmark
+	public MimeMessage rewrite() throws MessagingException {
+		return mover.rewrite(nextMessage());
+	}
+
+	@Benchmark
+	public long rewriteAndWrite() throws MessagingException, IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		mover.rewrite(nextMessage()).writeTo(out);
+		return out.count;
+	}
+
+	private MimeMessage nextMessage() {
+		MimeMessage msg = messages[next];
+		next = (next + 1) % messages.length;
+		return msg;
+	}
+
+	private MimeMessage build(Session session, Random random, int index) throws MessagingException {
+		MimeMessage msg = new MimeMessage(session);
+		msg.setFrom("sender" + index + "@example.com");
+		msg.setSubject("Synthetic message " + index);
+		msg.setHeader("Message-ID", "<synthetic-" + index + "@example.com>");
+
+		if ("recipients".equals(corpus)) {
+			StringBuilder to = new StringBuilder(SRCUSER);
+			StringBuilder cc = new StringBuilder();
+			for (int i = 0; i < 200; i++) {
+				to.append(", \"Recipient ").append(i).append("\" <to").append(i).append("@example.com>");
+				cc.append(i == 0 ? "" : ", ").append("cc").append(i).append("@example.com");
+			}
+			msg.setRecipients(Message.RecipientType.TO, to.toString());
+			msg.setRecipients(Message.RecipientType.CC, cc.toString() + ", " + SRCUSER);
+			msg.setText(text(random, 2 * 1024));
+		}
+		else if ("attachment".equals(corpus)) {
+			msg.setRecipients(Message.RecipientType.TO, SRCUSER);
+			MimeMultipart multipart = new MimeMultipart();
+			MimeBodyPart body = new MimeBodyPart();
+			body.setText(text(random, 4 * 1024));
+			multipart.addBodyPart(body);
+			byte[] data = new byte[1024 * 1024];
+			random.nextBytes(data);
+			MimeBodyPart attachment = new MimeBodyPart();
+			attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+			attachment.setFileName("attachment-" + index + ".bin");
+			multipart.addBodyPart(attachment);
+			msg.setContent(multipart);
+		}
+		else {
+			msg.setRecipients(Message.RecipientType.TO, SRCUSER);
+			msg.setText(text(random, 2 * 1024));
+		}
+		msg.saveChanges();
+		return msg;
+	}
+
+	private MimeMessage parsed(Session session, MimeMessage msg) throws MessagingException, IOException {
+		// Messages fetched from a server are parsed from raw bytes, so the corpus is too
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		msg.writeTo(bytes);
+		return new MimeMessage(session, new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	private String text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			for (int i = 0; i < 3 + random.nextInt(8); i++) {
+				text.append((char)('a' + random.nextInt(26)));
+			}
+			text.append(text.length() % 72 < 8 ? "\r\n" : " ");
+		}
+		return text.toString();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A TCP relay that makes a local server behave like a distant one. Every chunk of
+ * data is held back for the one-way latency, and each direction of each connection
+ * is limited to the given bandwidth.
+ */
+public class ThrottlingProxy implements Runnable {
+	private static final Logger LOG = Logger.getLogger(ThrottlingProxy.class);
+
+	private static final int CHUNK_SIZE = 16 * 1024;
+	private static final Chunk EOF = new Chunk(null, 0);
+
+	private final ServerSocket server;
+	private final int targetPort;
+	private final long latencyMillis;
+	private final long bytesPerSecond;
+	private volatile boolean running = true;
+
+	public ThrottlingProxy(int targetPort, long latencyMillis, long bytesPerSecond) throws IOException {
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.targetPort = targetPort;
+		this.latencyMillis = latencyMillis;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "proxy-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Socket client = server.accept();
+				Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				client.setTcpNoDelay(true);
+				target.setTcpNoDelay(true);
+				relay(client, target);
+				relay(target, client);
+			}
+			catch (IOException e) {
+				if (running) {
+					LOG.warn("Proxy connection failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	public void stop() throws IOException {
+		running = false;
+		server.close();
+	}
+
+	private void relay(final Socket from, final Socket to) throws IOException {
+		final InputStream in = from.getInputStream();
+		final OutputStream out = to.getOutputStream();
+		final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+		// Reading and writing are separate so that latency delays data without limiting throughput
+		Thread reader = new Thread("proxy-read-" + from.getPort()) {
+			public void run() {
+				byte[] buffer = new byte[CHUNK_SIZE];
+				try {
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						queue.add(new Chunk(Arrays.copyOf(buffer, count), System.currentTimeMillis()));
+					}
+				}
+				catch (IOException e) {
+					LOG.debug("Proxy read ended: " + e.getMessage());
+				}
+				queue.add(EOF);
+			}
+		};
+		Thread writer = new Thread("proxy-write-" + to.getPort()) {
+			public void run() {
+				try {
+					Chunk chunk;
+					while ((chunk = queue.take()) != EOF) {
+						pause(chunk.received + latencyMillis - System.currentTimeMillis());
+						out.write(chunk.data);
+						out.flush();
+						if (bytesPerSecond > 0) {
+							pause(chunk.data.length * 1000L / bytesPerSecond);
+						}
+					}
+				}
+				catch (IOException e) {
+					LOG.debug("Proxy write ended: " + e.getMessage());
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					close(from);
+					close(to);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	private static void pause(long millis) throws InterruptedException {
+		if (millis > 0) {
+			Thread.sleep(millis);
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			LOG.debug("Proxy close failed: " + e.getMessage());
+		}
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final long received;
+
+		Chunk(byte[] data, long received) {
+			this.data = data;
+			this.received = received;
+		}
+	}
+}
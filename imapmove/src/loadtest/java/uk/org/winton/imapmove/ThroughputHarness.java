@@ -0,0 +1,216 @@
+package uk.org.winton.imapmove;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+/**
+ * Moves a synthetic mailbox between two accounts on an embedded GreenMail server,
+ * reached through a {@link ThrottlingProxy}, and reports how long it took and how
+ * much traffic it needed. Settings are given as key=value arguments or in a
+ * properties file; anything IMAPMover itself understands, such as batch.size or
+ * source.connections, is passed straight through.
+ */
+public class ThroughputHarness {
+	private static final Logger LOG = Logger.getLogger(ThroughputHarness.class);
+
+	static final String SRC_ADDRESS = "source@localhost";
+	static final String DST_ADDRESS = "destination@localhost";
+	static final String PASSWORD = "secret";
+
+	private final Properties settings;
+
+	public ThroughputHarness(Properties settings) {
+		this.settings = settings;
+	}
+
+	public Report run() throws IOException, MessagingException {
+		int messages = intSetting("messages", 1000);
+		int size = intSetting("size", 4096);
+		int largeEvery = intSetting("largeEvery", 0);
+		int largeSize = intSetting("largeSize", 1024 * 1024);
+		int fromDestinationEvery = intSetting("fromDestinationEvery", 0);
+		long latency = longSetting("latency", 0);
+		long bandwidth = longSetting("bandwidth", 0);
+		boolean sameAccount = Boolean.parseBoolean(settings.getProperty("sameAccount", "false"));
+
+		int port = freePort();
+		GreenMail server = new GreenMail(new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_IMAP));
+		server.start();
+		ThrottlingProxy proxy = new ThrottlingProxy(port, latency, bandwidth);
+		proxy.start();
+		try {
+			GreenMailUser source = server.setUser(SRC_ADDRESS, "source", PASSWORD);
+			server.setUser(DST_ADDRESS, "destination", PASSWORD);
+			fill(source, messages, size, largeEvery, largeSize, fromDestinationEvery);
+			if (sameAccount) {
+				createFolder(port, "Archive");
+			}
+
+			Properties props = new Properties();
+			props.putAll(settings);
+			setDefault(props, "source.", proxy.getPort(), "source", SRC_ADDRESS, "INBOX");
+			if (sameAccount) {
+				setDefault(props, "destination.", proxy.getPort(), "source", SRC_ADDRESS, "Archive");
+			}
+			else {
+				setDefault(props, "destination.", proxy.getPort(), "destination", DST_ADDRESS, "INBOX");
+			}
+
+			IMAPMover mover = IMAPMover.fromProperties(props);
+			LOG.warn("Moving " + messages + " messages with " + latency + "ms latency"
+					+ (bandwidth > 0 ? " and " + bandwidth + " bytes/s" : ""));
+			long start = System.currentTimeMillis();
+			int moved = mover.run(true);
+			long elapsed = System.currentTimeMillis() - start;
+			mover.getMetrics().close();
+			mover.getSource().disconnect();
+			mover.getDestination().disconnect();
+			return new Report(messages, moved, elapsed, mover.getMetrics());
+		}
+		finally {
+			proxy.stop();
+			server.stop();
+		}
+	}
+
+	private void fill(GreenMailUser user, int messages, int size, int largeEvery, int largeSize, int fromDestinationEvery) throws MessagingException {
+		Session session = Session.getInstance(new Properties());
+		Random random = new Random(messages);
+		for (int i = 1; i <= messages; i++) {
+			MimeMessage msg = new MimeMessage(session);
+			boolean fromDestination = fromDestinationEvery > 0 && i % fromDestinationEvery == 0;
+			msg.setFrom(fromDestination ? DST_ADDRESS : "sender" + (i % 97) + "@example.com");
+			msg.setRecipients(Message.RecipientType.TO, SRC_ADDRESS + ", other" + (i % 13) + "@example.com");
+			msg.setSubject("Synthetic message " + i);
+			msg.setHeader("Message-ID", "<synthetic-" + i + "@example.com>");
+			msg.setText(text(random, largeEvery > 0 && i % largeEvery == 0 ? largeSize : size));
+			msg.saveChanges();
+			user.deliver(msg);
+		}
+	}
+
+	private void createFolder(int port, String name) throws MessagingException {
+		Store store = Session.getInstance(new Properties()).getStore("imap");
+		store.connect("127.0.0.1", port, "source", PASSWORD);
+		try {
+			store.getFolder(name).create(Folder.HOLDS_MESSAGES);
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	private static void setDefault(Properties props, String prefix, int port, String username, String email, String mailbox) {
+		setIfMissing(props, prefix + "host", "127.0.0.1");
+		setIfMissing(props, prefix + "port", Integer.toString(port));
+		setIfMissing(props, prefix + "username", username);
+		setIfMissing(props, prefix + "password", PASSWORD);
+		setIfMissing(props, prefix + "email", email);
+		setIfMissing(props, prefix + "mailbox", mailbox);
+	}
+
+	private static void setIfMissing(Properties props, String key, String value) {
+		if (props.getProperty(key) == null) {
+			props.setProperty(key, value);
+		}
+	}
+
+	private static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			for (int i = 0; i < 3 + random.nextInt(8); i++) {
+				text.append((char)('a' + random.nextInt(26)));
+			}
+			text.append(text.length() % 72 < 8 ? "\r\n" : " ");
+		}
+		return text.toString();
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private int intSetting(String key, int defaultValue) {
+		return Integer.parseInt(settings.getProperty(key, Integer.toString(defaultValue)));
+	}
+
+	private long longSetting(String key, long defaultValue) {
+		return Long.parseLong(settings.getProperty(key, Long.toString(defaultValue)));
+	}
+
+	public static class Report {
+		private final int messages;
+		private final int moved;
+		private final long elapsed;
+		private final MoveMetrics metrics;
+
+		Report(int messages, int moved, long elapsed, MoveMetrics metrics) {
+			this.messages = messages;
+			this.moved = moved;
+			this.elapsed = elapsed;
+			this.metrics = metrics;
+		}
+
+		public int getMoved() {
+			return moved;
+		}
+
+		public long getElapsedMillis() {
+			return elapsed;
+		}
+
+		public MoveMetrics getMetrics() {
+			return metrics;
+		}
+
+		public String toString() {
+			return "Moved " + moved + " of " + messages + " messages in " + elapsed + "ms ("
+					+ String.format("%.1f", elapsed == 0 ? 0.0 : moved * 1000.0 / elapsed) + " messages/s)\n"
+					+ "Round trips: " + metrics.getRoundTrips() + "\n"
+					+ "Bytes read: " + metrics.getBytesRead() + ", written: " + metrics.getBytesWritten() + "\n"
+					+ metrics.getSnapshot();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, MessagingException {
+		Properties settings = new Properties();
+		for (String arg : args) {
+			if (arg.contains("=")) {
+				settings.setProperty(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+			}
+			else {
+				FileInputStream stream = new FileInputStream(new File(arg));
+				settings.load(stream);
+				stream.close();
+			}
+		}
+		// Per-message logging would dominate the timings
+		Logger.getRootLogger().setLevel(Level.toLevel(settings.getProperty("log.level"), Level.WARN));
+
+		System.out.println(new ThroughputHarness(settings).run());
+	}
+}
@@ -0,0 +1,139 @@
+package uk.org.winton.imapmove;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses how many messages to fetch and append at a time, additive-increase /
+ * multiplicative-decrease style. Each completed batch grows the size by a fixed step
+ * unless the time per message has risen well above the best seen, which suggests the
+ * server is struggling, in which case it shrinks by a quarter. A throttling response
+ * halves it and asks the caller to pause, for longer each time in a row it happens.
+ * The best time per message slowly drifts upwards so that one fast batch is not the
+ * target forever.
+ */
+public class AdaptiveBatchSize {
+	private static final Logger LOG = Logger.getLogger(AdaptiveBatchSize.class);
+
+	static final int DEFAULT_INITIAL = 50;
+	static final int DEFAULT_MAXIMUM = 1000;
+	static final double LATENCY_FACTOR = 2.0;
+	static final double BASELINE_DRIFT = 1.05;
+	static final long BASE_PAUSE = 1000;
+	static final long MAX_PAUSE = 60000;
+	static final int MAX_THROTTLES = 8;
+
+	private static final String[] THROTTLE_CODES = { "[THROTTLED]", "[LIMIT]", "[UNAVAILABLE]", "[INUSE]" };
+
+	private final int minimum;
+	private final int maximum;
+	private final int step;
+	private double size;
+	private double baseline = 0;
+	private int throttles = 0;
+	private boolean pending = false;
+	private long pause = 0;
+
+	public AdaptiveBatchSize() {
+		this(DEFAULT_INITIAL, 1, DEFAULT_MAXIMUM);
+	}
+
+	public AdaptiveBatchSize(int initial, int minimum, int maximum) {
+		this.minimum = Math.max(1, minimum);
+		this.maximum = Math.max(this.minimum, maximum);
+		this.step = Math.max(1, Math.min(initial, this.maximum) / 5);
+		this.size = clamp(initial);
+	}
+
+	public synchronized int next() {
+		return (int)size;
+	}
+
+	public int getMinimum() {
+		return minimum;
+	}
+
+	public int getMaximum() {
+		return maximum;
+	}
+
+	/**
+	 * Records a batch that completed without being throttled.
+	 */
+	public synchronized void completed(int messages, long nanos) {
+		if (messages <= 0) {
+			return;
+		}
+		if (pending) {
+			// A throttling notice arrived while the batch was running
+			pending = false;
+			return;
+		}
+		throttles = 0;
+		double perMessage = (double)nanos / messages;
+		if (baseline == 0 || perMessage < baseline) {
+			baseline = perMessage;
+		}
+		if (perMessage > baseline * LATENCY_FACTOR) {
+			resize(size * 0.75, "latency " + Math.round(perMessage / 1000000) + "ms per message");
+		}
+		else {
+			resize(size + step, null);
+		}
+		baseline *= BASELINE_DRIFT;
+	}
+
+	/**
+	 * Records a throttling response. Returns false once the server has throttled so
+	 * many times in a row that it is not worth trying again.
+	 */
+	public synchronized boolean throttled() {
+		throttles++;
+		pending = true;
+		pause = Math.min(MAX_PAUSE, BASE_PAUSE << Math.min(throttles - 1, 16));
+		resize(size / 2, "server throttling");
+		return throttles <= MAX_THROTTLES;
+	}
+
+	/**
+	 * How long to wait before the next batch: zero unless throttled since last asked.
+	 */
+	public synchronized long takePause() {
+		long wait = pause;
+		pause = 0;
+		return wait;
+	}
+
+	private void resize(double target, String reason) {
+		double before = size;
+		size = clamp(target);
+		if (reason != null && (int)before != (int)size) {
+			LOG.info("Batch size reduced from " + (int)before + " to " + (int)size + " (" + reason + ")");
+		}
+	}
+
+	private double clamp(double target) {
+		return Math.max(minimum, Math.min(maximum, target));
+	}
+
+	public static boolean isThrottle(String text) {
+		if (text == null) {
+			return false;
+		}
+		String upper = text.toUpperCase();
+		for (String code : THROTTLE_CODES) {
+			if (upper.contains(code)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static boolean isThrottle(MessagingException e) {
+		// A server shedding load may simply say BYE and drop the connection
+		return e instanceof FolderClosedException || e instanceof StoreClosedException || isThrottle(e.getMessage());
+	}
+}
@@ -0,0 +1,156 @@
+package uk.org.winton.imapmove;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * A set of recipient rewriting rules, compiled into hash lookups. Each rule maps a
+ * source pattern to a replacement:
+ * <ul>
+ * <li><code>user@old.com</code> matches that address only;</li>
+ * <li><code>@old.com</code> matches every address in that domain;</li>
+ * <li><code>@.old.com</code> matches that domain and all of its subdomains.</li>
+ * </ul>
+ * A replacement is either an address, which is used as is, or <code>@new.com</code>,
+ * which keeps the local part and personal name and changes only the domain. Matching
+ * ignores case, and the most specific rule wins.
+ */
+public final class AddressRewriter {
+
+	private final Map<String, Replacement> addresses = new HashMap<String, Replacement>();
+	private final Map<String, Replacement> domains = new HashMap<String, Replacement>();
+	private final Map<String, Replacement> subdomains = new HashMap<String, Replacement>();
+
+	public AddressRewriter(Map<String, String> rules) throws AddressException {
+		for (Map.Entry<String, String> rule : rules.entrySet()) {
+			String pattern = normalise(rule.getKey());
+			Replacement replacement = new Replacement(rule.getValue().trim());
+			if (pattern.startsWith("@.")) {
+				subdomains.put(pattern.substring(2), replacement);
+			}
+			else if (pattern.startsWith("@")) {
+				domains.put(pattern.substring(1), replacement);
+			}
+			else if (!replacement.isSameAddress(pattern)) {
+				// Replacing an address with itself is not a change
+				addresses.put(pattern, replacement);
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return addresses.isEmpty() && domains.isEmpty() && subdomains.isEmpty();
+	}
+
+	/**
+	 * Returns true if any rule applies to any of the addresses.
+	 */
+	public boolean matches(Address[] addrs) {
+		if (addrs == null || isEmpty()) {
+			return false;
+		}
+		for (Address addr : addrs) {
+			if (addr instanceof InternetAddress && find(((InternetAddress)addr).getAddress()) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a rewritten copy of the addresses, or null if no rule applied.
+	 */
+	public Address[] rewrite(Address[] addrs) throws AddressException {
+		if (addrs == null || isEmpty()) {
+			return null;
+		}
+		Address[] rewritten = null;
+		for (int i = 0; i < addrs.length; i++) {
+			if (!(addrs[i] instanceof InternetAddress)) {
+				continue;
+			}
+			InternetAddress addr = (InternetAddress)addrs[i];
+			Replacement replacement = find(addr.getAddress());
+			if (replacement == null) {
+				continue;
+			}
+			if (rewritten == null) {
+				rewritten = addrs.clone();
+			}
+			rewritten[i] = replacement.apply(addr);
+		}
+		return rewritten;
+	}
+
+	private Replacement find(String addr) {
+		if (addr == null) {
+			return null;
+		}
+		String key = normalise(addr);
+		Replacement found = addresses.get(key);
+		if (found != null) {
+			return found;
+		}
+		int at = key.lastIndexOf('@');
+		if (at < 0) {
+			return null;
+		}
+		String domain = key.substring(at + 1);
+		found = domains.get(domain);
+		// Walk up the domain one label at a time for the nearest subdomain rule
+		while (found == null) {
+			found = subdomains.get(domain);
+			int dot = domain.indexOf('.');
+			if (dot < 0) {
+				break;
+			}
+			domain = domain.substring(dot + 1);
+		}
+		return found;
+	}
+
+	private static String normalise(String addr) {
+		return addr.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static class Replacement {
+		private final InternetAddress address;
+		private final String domain;
+
+		Replacement(String target) throws AddressException {
+			if (target.startsWith("@")) {
+				address = null;
+				domain = target.substring(1);
+			}
+			else {
+				// Parsed once and shared by every message the rule applies to
+				address = new InternetAddress(target);
+				domain = null;
+			}
+		}
+
+		boolean isSameAddress(String addr) {
+			return address != null && address.getPersonal() == null && normalise(address.getAddress()).equals(addr);
+		}
+
+		InternetAddress apply(InternetAddress original) throws AddressException {
+			if (address != null) {
+				return address;
+			}
+			String local = original.getAddress();
+			local = local.substring(0, local.lastIndexOf('@') + 1);
+			try {
+				return new InternetAddress(local + domain, original.getPersonal());
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new AddressException("Unable to encode " + original);
+			}
+		}
+	}
+}
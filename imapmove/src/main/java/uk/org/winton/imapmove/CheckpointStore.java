@@ -0,0 +1,80 @@
+package uk.org.winton.imapmove;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import javax.mail.URLName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records, per source mailbox, the highest UID that has been fully moved so that a
+ * later run only needs to look at newer messages. Entries are keyed by an RFC 5092
+ * style URL including the mailbox's UIDVALIDITY, so a mailbox that has been rebuilt
+ * on the server is treated as never having been processed.
+ */
+public class CheckpointStore {
+	private static final Logger LOG = Logger.getLogger(CheckpointStore.class);
+
+	private final File file;
+	private final Properties checkpoints = new Properties();
+
+	public CheckpointStore(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			InputStream stream = new FileInputStream(file);
+			try {
+				checkpoints.load(stream);
+			}
+			finally {
+				stream.close();
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getLastUid(IMAPClient client, long uidValidity) {
+		return Long.parseLong(checkpoints.getProperty(key(client, uidValidity), "0"));
+	}
+
+	public synchronized void setLastUid(IMAPClient client, long uidValidity, long uid) throws IOException {
+		String key = key(client, uidValidity);
+		if (uid <= Long.parseLong(checkpoints.getProperty(key, "0"))) {
+			return;
+		}
+		checkpoints.setProperty(key, Long.toString(uid));
+		save();
+		LOG.debug("Checkpoint for " + key + " now at UID " + uid);
+	}
+
+	static String key(IMAPClient client, long uidValidity) {
+		URLName url = new URLName(client.getProtocol(), client.getHost(), client.getPort(), client.getMailbox(), client.getUsername(), null);
+		return url + ";UIDVALIDITY=" + uidValidity;
+	}
+
+	private void save() throws IOException {
+		// Write a complete new file first so a crash never leaves a truncated checkpoint
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream stream = new FileOutputStream(temp);
+		try {
+			checkpoints.store(stream, "IMAPMover checkpoints");
+		}
+		finally {
+			stream.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to replace checkpoint file " + file);
+			}
+		}
+	}
+}
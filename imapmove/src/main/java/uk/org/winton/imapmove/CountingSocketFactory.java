@@ -0,0 +1,173 @@
+package uk.org.winton.imapmove;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * Socket factory handed to JavaMail so that every connection an IMAPClient makes
+ * reports its traffic. A round trip is counted each time the client starts writing
+ * again after having read from the server, which for a synchronous protocol such as
+ * IMAP is the point at which it had to wait for a reply. If a byte limiter is given,
+ * traffic in both directions is paced by it. Pooled connections are used by one job
+ * after another, so the counting goes to the counter bound to the thread, if any.
+ */
+class CountingSocketFactory extends SocketFactory {
+
+	// Writes are paced in pieces so that one large literal cannot take a long burst
+	static final int PACING_CHUNK = 16 * 1024;
+
+	private final TrafficCounter counter;
+	private final RateLimiter limiter;
+
+	CountingSocketFactory(TrafficCounter counter) {
+		this(counter, null);
+	}
+
+	CountingSocketFactory(TrafficCounter counter, RateLimiter limiter) {
+		this.counter = counter;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return new CountingSocket(counter, limiter);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		Socket socket = createSocket();
+		socket.bind(new InetSocketAddress(localHost, localPort));
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort) throws IOException {
+		Socket socket = createSocket();
+		socket.bind(new InetSocketAddress(localHost, localPort));
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	static class CountingSocket extends Socket {
+
+		private final TrafficCounter counter;
+		private final RateLimiter limiter;
+		private volatile boolean writing = false;
+		private InputStream in;
+		private OutputStream out;
+
+		CountingSocket(TrafficCounter counter) {
+			this(counter, null);
+		}
+
+		CountingSocket(TrafficCounter counter, RateLimiter limiter) {
+			this.counter = counter;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = new FilterInputStream(super.getInputStream()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if (b >= 0) {
+							received(1);
+						}
+						return b;
+					}
+
+					@Override
+					public int read(byte[] buf, int off, int len) throws IOException {
+						int n = super.read(buf, off, len);
+						if (n > 0) {
+							received(n);
+						}
+						return n;
+					}
+				};
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = new FilterOutputStream(super.getOutputStream()) {
+					@Override
+					public void write(int b) throws IOException {
+						sending(1);
+						out.write(b);
+					}
+
+					@Override
+					public void write(byte[] buf, int off, int len) throws IOException {
+						while (len > 0) {
+							int chunk = limiter == null ? len : Math.min(len, PACING_CHUNK);
+							sending(chunk);
+							out.write(buf, off, chunk);
+							off += chunk;
+							len -= chunk;
+						}
+					}
+				};
+			}
+			return out;
+		}
+
+		private void received(int count) throws IOException {
+			writing = false;
+			TrafficCounter.forThread(counter).addBytesRead(count);
+			// Reading is paid for afterwards, which holds back the next read instead
+			pace(count);
+		}
+
+		private void sending(int count) throws IOException {
+			TrafficCounter target = TrafficCounter.forThread(counter);
+			if (!writing) {
+				writing = true;
+				target.addRoundTrip();
+			}
+			target.addBytesWritten(count);
+			pace(count);
+		}
+
+		private void pace(int count) throws IOException {
+			if (limiter == null) {
+				return;
+			}
+			try {
+				limiter.acquire(count);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + limiter.getName());
+			}
+		}
+	}
+}
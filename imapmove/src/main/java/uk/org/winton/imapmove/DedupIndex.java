@@ -0,0 +1,346 @@
+package uk.org.winton.imapmove;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Remembers which messages are already in a destination mailbox, so that a move
+ * interrupted between copying and expunging does not copy the same messages again.
+ * Each message is reduced to a 64-bit fingerprint of its Message-ID, or of its Date,
+ * From and Subject headers when it has none. Fingerprints are held in an open
+ * addressed hash table and saved with the highest destination UID seen, so later
+ * runs only fetch headers for messages that have arrived since. On an IMAP server
+ * only those header fields are fetched, a window of UIDs at a time.
+ */
+public class DedupIndex {
+	private static final Logger LOG = Logger.getLogger(DedupIndex.class);
+
+	static final String[] HEADERS = { "Message-ID", "Date", "From", "Subject" };
+	static final int FETCH_WINDOW = 5000;
+
+	private static final int MAGIC = 0x494d4458;
+
+	private final File file;
+	private String key = "";
+	private long lastUid = 0;
+	private long[] table = new long[1024];
+	private int size = 0;
+
+	public DedupIndex(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long getLastUid() {
+		return lastUid;
+	}
+
+	/**
+	 * Adds the messages that have arrived in a destination folder since the last
+	 * refresh, returning the number of new fingerprints. A closed folder is opened
+	 * read-only for the purpose and closed again afterwards.
+	 */
+	public synchronized int refresh(IMAPClient client, Folder folder) throws MessagingException {
+		boolean opened = !folder.isOpen();
+		if (opened) {
+			folder.open(Folder.READ_ONLY);
+		}
+		try {
+			long since = 0;
+			if (folder instanceof UIDFolder) {
+				String current = CheckpointStore.key(client, ((UIDFolder)folder).getUIDValidity());
+				if (!current.equals(key)) {
+					LOG.info("Building message index for " + current);
+					clear();
+					key = current;
+				}
+				since = lastUid;
+			}
+			
+			long[] uids = null;
+			if (folder instanceof IMAPFolder) {
+				uids = IMAPCommands.uidSearch((IMAPFolder)folder, null, since);
+			}
+			int added = uids != null ? refresh((IMAPFolder)folder, uids) : refreshMessages(folder, since);
+			LOG.debug(added + " messages added to index, " + size + " in total");
+			return added;
+		}
+		finally {
+			if (opened) {
+				folder.close(false);
+			}
+		}
+	}
+	
+	private int refresh(IMAPFolder folder, long[] uids) throws MessagingException {
+		int added = 0;
+		for (int start = 0; start < uids.length; start += FETCH_WINDOW) {
+			long[] window = Arrays.copyOfRange(uids, start, Math.min(start + FETCH_WINDOW, uids.length));
+			Map<Long, InternetHeaders> ids = IMAPCommands.uidFetchHeaders(folder, window, "MESSAGE-ID");
+			// Only the few messages without a Message-ID need the other headers
+			List<Long> others = new ArrayList<Long>();
+			for (long uid : window) {
+				InternetHeaders headers = ids.get(uid);
+				if (headers == null) {
+					// Expunged since the search
+					continue;
+				}
+				String id = headers.getHeader("Message-ID", null);
+				if (id == null || id.trim().length() == 0) {
+					others.add(uid);
+				}
+				else if (add(fingerprint(headers))) {
+					added++;
+				}
+			}
+			if (!others.isEmpty()) {
+				long[] missing = new long[others.size()];
+				for (int i = 0; i < missing.length; i++) {
+					missing[i] = others.get(i);
+				}
+				for (InternetHeaders headers : IMAPCommands.uidFetchHeaders(folder, missing, "DATE FROM SUBJECT").values()) {
+					if (add(fingerprint(headers))) {
+						added++;
+					}
+				}
+			}
+			lastUid = Math.max(lastUid, window[window.length - 1]);
+		}
+		return added;
+	}
+	
+	private int refreshMessages(Folder folder, long since) throws MessagingException {
+		Message[] msgs;
+		UIDFolder uids = folder instanceof UIDFolder ? (UIDFolder)folder : null;
+		if (uids != null) {
+			msgs = since == 0 ? folder.getMessages() : uids.getMessagesByUID(since + 1, UIDFolder.LASTUID);
+		}
+		else {
+			// Without UIDs there is no telling which messages are new
+			msgs = folder.getMessages();
+		}
+
+		FetchProfile profile = new FetchProfile();
+		for (String header : HEADERS) {
+			profile.add(header);
+		}
+		profile.add(UIDFolder.FetchProfileItem.UID);
+
+		int added = 0;
+		for (int start = 0; start < msgs.length; start += FETCH_WINDOW) {
+			Message[] window = Arrays.copyOfRange(msgs, start, Math.min(start + FETCH_WINDOW, msgs.length));
+			folder.fetch(window, profile);
+			for (Message msg : window) {
+				if (msg == null || msg.isExpunged()) {
+					continue;
+				}
+				if (uids != null) {
+					// "n:*" always matches the last message, even when its UID is below n
+					long uid = uids.getUID(msg);
+					if (uid <= since) {
+						continue;
+					}
+					lastUid = Math.max(lastUid, uid);
+				}
+				if (add(fingerprint(msg, ""))) {
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	public synchronized boolean contains(long fingerprint) {
+		fingerprint = nonZero(fingerprint);
+		int mask = table.length - 1;
+		for (int i = (int)fingerprint & mask; table[i] != 0; i = (i + 1) & mask) {
+			if (table[i] == fingerprint) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized boolean add(long fingerprint) {
+		if (contains(fingerprint)) {
+			return false;
+		}
+		if ((size + 1) * 2 > table.length) {
+			resize(table.length * 2);
+		}
+		insert(table, nonZero(fingerprint));
+		size++;
+		return true;
+	}
+
+	public synchronized void save() throws IOException {
+		// Write a complete new file first so a crash never leaves a truncated index
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(key);
+			out.writeLong(lastUid);
+			out.writeInt(size);
+			for (long fingerprint : table) {
+				if (fingerprint != 0) {
+					out.writeLong(fingerprint);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to replace index file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Fingerprints a message as it will appear in the destination, which is with
+	 * the subject prefix added.
+	 */
+	public static long fingerprint(Message msg, String subjectPrefix) throws MessagingException {
+		return fingerprint(msg.getHeader("Message-ID"), msg.getHeader("Date"), msg.getHeader("From"),
+				msg.getSubject(), subjectPrefix);
+	}
+
+	/**
+	 * Fingerprints a destination message from header fields fetched on their own,
+	 * decoding the subject as {@link Message#getSubject()} would.
+	 */
+	static long fingerprint(InternetHeaders headers) {
+		String subject = headers.getHeader("Subject", null);
+		if (subject != null) {
+			try {
+				subject = MimeUtility.decodeText(MimeUtility.unfold(subject));
+			}
+			catch (UnsupportedEncodingException e) {
+				// Left as it is, just as MimeMessage leaves it
+			}
+		}
+		return fingerprint(headers.getHeader("Message-ID"), headers.getHeader("Date"), headers.getHeader("From"), subject, "");
+	}
+
+	private static long fingerprint(String[] ids, String[] dates, String[] froms, String subject, String subjectPrefix) {
+		if (ids != null && ids.length > 0 && ids[0].trim().length() > 0) {
+			return hash("id:" + ids[0].trim());
+		}
+		return hash("headers:" + first(dates) + "\n" + first(froms) + "\n"
+				+ subjectPrefix + (subject == null ? "" : subject));
+	}
+
+	private static String first(String[] values) {
+		return values == null || values.length == 0 ? "" : values[0].trim();
+	}
+
+	static long hash(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (digest[i] & 0xff);
+			}
+			return value;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+	}
+
+	private static long nonZero(long fingerprint) {
+		// Zero marks an empty slot
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	private static void insert(long[] into, long fingerprint) {
+		int mask = into.length - 1;
+		int i = (int)fingerprint & mask;
+		while (into[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		into[i] = fingerprint;
+	}
+
+	private void resize(int capacity) {
+		long[] bigger = new long[capacity];
+		for (long fingerprint : table) {
+			if (fingerprint != 0) {
+				insert(bigger, fingerprint);
+			}
+		}
+		table = bigger;
+	}
+
+	private void clear() {
+		table = new long[1024];
+		size = 0;
+		lastUid = 0;
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a message index file");
+			}
+			key = in.readUTF();
+			lastUid = in.readLong();
+			int count = in.readInt();
+			int capacity = 1024;
+			while (capacity < count * 2) {
+				capacity *= 2;
+			}
+			table = new long[capacity];
+			for (int i = 0; i < count; i++) {
+				insert(table, in.readLong());
+			}
+			size = count;
+		}
+		finally {
+			in.close();
+		}
+		LOG.debug("Loaded " + size + " message fingerprints from " + file);
+	}
+}
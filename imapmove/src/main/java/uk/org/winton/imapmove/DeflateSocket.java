@@ -0,0 +1,234 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Wraps a connected socket in the raw DEFLATE streams of RFC 4978. Output is flushed
+ * with SYNC_FLUSH so that each command reaches the server complete. Compressed and
+ * uncompressed byte counts are reported to a {@link TrafficCounter} as they change.
+ * Closing the socket frees the native zlib memory of both streams.
+ */
+class DeflateSocket extends Socket {
+	private static final Logger LOG = Logger.getLogger(DeflateSocket.class);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final Socket socket;
+	private final TrafficCounter counter;
+	private final Inflater inflater = new Inflater(true);
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final InputStream in;
+	private final OutputStream out;
+	private long compressed = 0;
+	private long uncompressed = 0;
+	private volatile boolean closed = false;
+
+	DeflateSocket(Socket socket, TrafficCounter counter) throws IOException {
+		this.socket = socket;
+		this.counter = counter;
+		in = new InflaterInputStream(socket.getInputStream(), inflater, BUFFER_SIZE) {
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				int n;
+				synchronized (inflater) {
+					checkOpen();
+					n = super.read(buf, off, len);
+				}
+				update();
+				return n;
+			}
+
+			@Override
+			public int available() throws IOException {
+				// InflaterInputStream reports 1 until end of stream, whether or not a read would block
+				synchronized (inflater) {
+					checkOpen();
+					return inflater.getRemaining() > 0 ? 1 : socket.getInputStream().available();
+				}
+			}
+		};
+		out = new DeflaterOutputStream(socket.getOutputStream(), deflater, BUFFER_SIZE, true) {
+			@Override
+			public void write(byte[] buf, int off, int len) throws IOException {
+				synchronized (deflater) {
+					checkOpen();
+					super.write(buf, off, len);
+				}
+				update();
+			}
+
+			@Override
+			public void flush() throws IOException {
+				synchronized (deflater) {
+					checkOpen();
+					super.flush();
+				}
+				update();
+			}
+
+			@Override
+			public void close() throws IOException {
+				// Finishing the stream would write to a deflater that may already be ended
+				DeflateSocket.this.close();
+			}
+		};
+	}
+
+	private void checkOpen() throws SocketException {
+		// Once ended, the inflater and deflater would fail with a NullPointerException
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	private synchronized void update() {
+		if (closed) {
+			return;
+		}
+		long nowCompressed = inflater.getBytesRead() + deflater.getBytesWritten();
+		long nowUncompressed = inflater.getBytesWritten() + deflater.getBytesRead();
+		TrafficCounter.forThread(counter).addCompressed(nowCompressed - compressed, nowUncompressed - uncompressed);
+		compressed = nowCompressed;
+		uncompressed = nowUncompressed;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		// Closing the socket first fails any read or write in progress, so that it lets go
+		// of its stream before that stream's zlib memory is freed
+		try {
+			socket.close();
+		}
+		finally {
+			synchronized (inflater) {
+				inflater.end();
+			}
+			synchronized (deflater) {
+				deflater.end();
+			}
+		}
+		if (compressed > 0) {
+			LOG.debug("Compressed connection to " + socket.getInetAddress() + " closed: "
+					+ uncompressed + " bytes carried in " + compressed
+					+ String.format(" (%.1f:1)", (double)uncompressed / compressed));
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return socket.isBound();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return socket.getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return socket.getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return socket.getTcpNoDelay();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		socket.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		socket.shutdownOutput();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return socket.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return socket.isOutputShutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "DeflateSocket[" + socket + "]";
+	}
+}
@@ -0,0 +1,185 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.Protocol;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.MailLogger;
+
+/**
+ * The IMAP store for the extensions JavaMail lacks. Its connections turn on
+ * COMPRESS=DEFLATE (RFC 4978) as soon as they have logged in, if the server offers
+ * it, and can hold each command back until a shared {@link RateLimiter} allows it.
+ * IMAPClient installs it as the session's provider for "imap" and "imaps" when either
+ * is wanted.
+ * <p>
+ * This JavaMail version has no way to put a stream between an established
+ * connection and its protocol handler: STARTTLS is the only layering it does, and
+ * it will not layer over a connection that is already SSL. The handler's socket is
+ * therefore replaced by reflection, just as STARTTLS replaces it internally.
+ */
+public class ExtendedIMAPStore extends IMAPStore {
+	private static final Logger LOG = Logger.getLogger(ExtendedIMAPStore.class);
+
+	static final String CAPABILITY_COMPRESS = "COMPRESS=DEFLATE";
+	static final String TRAFFIC_COUNTER = "uk.org.winton.imapmove.traffic";
+	static final String COMPRESS = "uk.org.winton.imapmove.compress";
+	static final String COMMAND_LIMITER = "uk.org.winton.imapmove.commands";
+
+	private static final Field SOCKET;
+	private static final Method INIT_STREAMS;
+
+	static {
+		Field socket = null;
+		Method initStreams = null;
+		try {
+			socket = Protocol.class.getDeclaredField("socket");
+			socket.setAccessible(true);
+			initStreams = Protocol.class.getDeclaredMethod("initStreams");
+			initStreams.setAccessible(true);
+		}
+		catch (Exception e) {
+			LOG.warn("IMAP compression is not available with this JavaMail version: " + e);
+			socket = null;
+			initStreams = null;
+		}
+		SOCKET = socket;
+		INIT_STREAMS = initStreams;
+	}
+
+	public ExtendedIMAPStore(Session session, URLName url) {
+		this(session, url, "imap", false);
+	}
+
+	protected ExtendedIMAPStore(Session session, URLName url, String name, boolean isSSL) {
+		super(session, url, name, isSSL);
+	}
+
+	@Override
+	protected IMAPProtocol newIMAPProtocol(String host, int port) throws IOException, ProtocolException {
+		Properties props = session.getProperties();
+		TrafficCounter counter = (TrafficCounter)props.get(TRAFFIC_COUNTER);
+		ExtendedProtocol protocol = new ExtendedProtocol(name, host, port, props, isSSL, logger, counter == null ? new TrafficCounter() : counter);
+		protocol.setCompress(Boolean.parseBoolean(props.getProperty(COMPRESS, "true")));
+		protocol.setCommandLimiter((RateLimiter)props.get(COMMAND_LIMITER));
+		return protocol;
+	}
+
+	public static class SSL extends ExtendedIMAPStore {
+		public SSL(Session session, URLName url) {
+			super(session, url, "imaps", true);
+		}
+	}
+
+	static class ExtendedProtocol extends IMAPProtocol {
+		private final TrafficCounter counter;
+		private boolean compress = true;
+		private boolean compressed = false;
+		private RateLimiter commands;
+
+		ExtendedProtocol(String name, String host, int port, Properties props, boolean isSSL, MailLogger logger, TrafficCounter counter) throws IOException, ProtocolException {
+			super(name, host, port, props, isSSL, logger);
+			this.counter = counter;
+		}
+
+		void setCompress(boolean enabled) {
+			compress = enabled;
+		}
+
+		void setCommandLimiter(RateLimiter limiter) {
+			commands = limiter;
+		}
+
+		@Override
+		public String writeCommand(String command, Argument args) throws IOException, ProtocolException {
+			// Every command goes through here, including each of a pipelined group
+			if (commands != null) {
+				try {
+					commands.acquire(1);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ProtocolException("Interrupted while waiting to send " + command);
+				}
+			}
+			return super.writeCommand(command, args);
+		}
+
+		@Override
+		public void login(String u, String p) throws ProtocolException {
+			super.login(u, p);
+			compress();
+		}
+
+		@Override
+		public synchronized void authlogin(String u, String p) throws ProtocolException {
+			super.authlogin(u, p);
+			compress();
+		}
+
+		@Override
+		public synchronized void authplain(String authzid, String u, String p) throws ProtocolException {
+			super.authplain(authzid, u, p);
+			compress();
+		}
+
+		@Override
+		public synchronized void authntlm(String authzid, String u, String p) throws ProtocolException {
+			super.authntlm(authzid, u, p);
+			compress();
+		}
+
+		@Override
+		public void sasllogin(String[] allowed, String realm, String authzid, String u, String p) throws ProtocolException {
+			super.sasllogin(allowed, realm, authzid, u, p);
+			compress();
+		}
+
+		boolean isCompressed() {
+			return compressed;
+		}
+
+		synchronized void compress() throws ProtocolException {
+			if (!compress || compressed || !isAuthenticated() || SOCKET == null) {
+				return;
+			}
+			if (!hasCapability(CAPABILITY_COMPRESS)) {
+				// Some servers only list their extensions once logged in
+				capability();
+			}
+			if (!hasCapability(CAPABILITY_COMPRESS)) {
+				LOG.info("Server " + host + " does not support " + CAPABILITY_COMPRESS + " -- not compressing");
+				return;
+			}
+			simpleCommand("COMPRESS DEFLATE", null);
+			try {
+				SOCKET.set(this, new DeflateSocket((Socket)SOCKET.get(this), counter));
+				INIT_STREAMS.invoke(this);
+			}
+			catch (IOException e) {
+				throw new ProtocolException("Unable to start compression: " + e.getMessage());
+			}
+			catch (IllegalAccessException e) {
+				throw new ProtocolException("Unable to start compression: " + e.getMessage());
+			}
+			catch (InvocationTargetException e) {
+				throw new ProtocolException("Unable to start compression: " + e.getTargetException().getMessage());
+			}
+			compressed = true;
+			LOG.debug("Compression enabled for connection to " + host);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Moves a whole folder hierarchy rather than a single mailbox. The source folders
+ * under <code>tree.root</code> (the whole account by default) are listed and their
+ * names rewritten with the destination's hierarchy delimiter, below the destination's
+ * personal namespace (such as <code>INBOX.</code>) and <code>tree.prefix</code> if one
+ * is given. Missing destination folders are created,
+ * and each folder is then moved as a job of its own on a {@link JobScheduler}, so
+ * <code>jobs.threads</code> sets how many run at once. Folders are started largest
+ * first, so the last to finish is a small one rather than the biggest.
+ */
+public class FolderTreeMover {
+	private static final Logger LOG = Logger.getLogger(FolderTreeMover.class);
+
+	static final String TREE = "tree";
+	static final String TREE_ROOT = "tree.root";
+	static final String TREE_PREFIX = "tree.prefix";
+	static final char REPLACEMENT = '_';
+
+	private final Properties props;
+
+	public FolderTreeMover(Properties props) {
+		this.props = props;
+	}
+
+	public List<JobScheduler.Result> run() throws MessagingException, IOException, InterruptedException {
+		JobScheduler scheduler = schedule();
+		return scheduler.run();
+	}
+
+	JobScheduler schedule() throws MessagingException, IOException {
+		Properties defaults = new Properties();
+		defaults.putAll(props);
+		defaults.remove(JobScheduler.JOBS);
+		if (defaults.getProperty(JobScheduler.JOBS_MAX_PER_HOST) == null) {
+			// Every folder is on the same two servers, so the per-host limit would otherwise cap the threads
+			defaults.setProperty(JobScheduler.JOBS_MAX_PER_HOST, defaults.getProperty(JobScheduler.JOBS_THREADS, Integer.toString(JobScheduler.DEFAULT_THREADS)));
+		}
+
+		IMAPMover template = IMAPMover.fromProperties(withoutMetrics(defaults));
+		IMAPClient source = template.getSource();
+		IMAPClient destination = template.getDestination();
+		String prefix = props.getProperty(TREE_PREFIX, "");
+		boolean sameAccount = source.isSameAccount(destination);
+		if (sameAccount && prefix.length() == 0) {
+			throw new MessagingException("Moving a folder tree within one account needs " + TREE_PREFIX + " to say where to");
+		}
+		JobScheduler scheduler = new JobScheduler(defaults);
+		try {
+			Map<TreeFolder, String> targets = plan(source.getConnectedStore(), destination.getConnectedStore(),
+					props.getProperty(TREE_ROOT), prefix, sameAccount);
+
+			// Folders for the same account share one checkpoint file, which has to be one object
+			CheckpointStore checkpoints = template.getCheckpointStore();
+			for (Map.Entry<TreeFolder, String> entry : targets.entrySet()) {
+				TreeFolder folder = entry.getKey();
+				Properties settings = new Properties();
+				settings.putAll(defaults);
+				settings.setProperty("source.mailbox", folder.name);
+				settings.setProperty("destination.mailbox", entry.getValue());
+				settings.setProperty("metrics.name", folder.name);
+				if (defaults.getProperty("dedup.file") != null) {
+					settings.setProperty("dedup.file", dedupFile(defaults.getProperty("dedup.file"), folder.name));
+				}
+				IMAPMover mover = IMAPMover.fromProperties(settings);
+				if (checkpoints != null) {
+					mover.setCheckpointStore(checkpoints);
+				}
+				scheduler.addJob(folder.name, mover);
+				LOG.debug(folder.name + " (" + folder.messages + " messages) will be moved to " + entry.getValue());
+			}
+		}
+		finally {
+			source.disconnect();
+			destination.disconnect();
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Returns the settings without metrics, for the mover that only supplies the
+	 * clients and checkpoint store, so that it registers no MBean and writes nothing
+	 * to the metrics file.
+	 */
+	static Properties withoutMetrics(Properties settings) {
+		Properties copy = new Properties();
+		for (String name : settings.stringPropertyNames()) {
+			if (!name.startsWith("metrics.")) {
+				copy.setProperty(name, settings.getProperty(name));
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Lists the source folders to be moved, largest first, and creates the destination
+	 * folders they map to. Source names are taken relative to the source's personal
+	 * namespace, and placed under the destination's along with the prefix.
+	 */
+	static Map<TreeFolder, String> plan(Store srcStore, Store dstStore, String root, String prefix, boolean sameAccount) throws MessagingException {
+		Folder srcNamespace = personalNamespace(srcStore);
+		Folder dstNamespace = personalNamespace(dstStore);
+		char separator = dstNamespace.getSeparator();
+		String base = dstNamespace.getFullName();
+		if (prefix != null && prefix.length() > 0) {
+			base = base.length() == 0 ? prefix : base + separator + prefix;
+		}
+		Set<String> existing = existingFolders(dstStore);
+
+		List<TreeFolder> folders = list(srcStore, root);
+		if (sameAccount) {
+			// Never move what an earlier run has already put under the prefix
+			for (int i = folders.size() - 1; i >= 0; i--) {
+				String name = folders.get(i).name;
+				if (name.equals(base) || name.startsWith(base + separator)) {
+					folders.remove(i);
+				}
+			}
+		}
+		Collections.sort(folders, LARGEST_FIRST);
+		LOG.info(folders.size() + " folder" + (folders.size() == 1 ? "" : "s") + " found in source");
+
+		Map<TreeFolder, String> targets = new LinkedHashMap<TreeFolder, String>();
+		for (TreeFolder folder : folders) {
+			String name = relativeName(folder.name, srcNamespace.getFullName(), folder.separator);
+			String target;
+			if (normalise(name).equals("inbox") && (prefix == null || prefix.length() == 0)) {
+				// INBOX stays INBOX, wherever the destination keeps its other folders
+				target = "INBOX";
+			}
+			else {
+				target = mapName(name, folder.separator, separator, base);
+			}
+			create(dstStore, target, separator, existing);
+			targets.put(folder, target);
+		}
+		return targets;
+	}
+
+	private static Folder personalNamespace(Store store) throws MessagingException {
+		Folder[] namespaces = store.getPersonalNamespaces();
+		return namespaces.length > 0 ? namespaces[0] : store.getDefaultFolder();
+	}
+
+	private static String relativeName(String name, String namespace, char separator) {
+		if (namespace.length() > 0 && name.startsWith(namespace + separator)) {
+			return name.substring(namespace.length() + 1);
+		}
+		return name;
+	}
+
+	/**
+	 * Names the dedup index file for a folder. The folder name is made safe for a
+	 * file name, and a hash of the original keeps names such as "a/b" and "a_b" apart.
+	 */
+	static String dedupFile(String base, String folder) {
+		return base + "." + folder.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Long.toHexString(DedupIndex.hash(folder));
+	}
+
+	private static List<TreeFolder> list(Store store, String root) throws MessagingException {
+		List<Folder> listed = new ArrayList<Folder>();
+		if (root == null || root.length() == 0) {
+			listed.addAll(Arrays.asList(store.getDefaultFolder().list("*")));
+		}
+		else {
+			Folder top = store.getFolder(root);
+			listed.add(top);
+			listed.addAll(Arrays.asList(top.list("*")));
+		}
+
+		List<TreeFolder> folders = new ArrayList<TreeFolder>();
+		Set<String> seen = new HashSet<String>();
+		for (Folder folder : listed) {
+			// Folders marked \Noselect only exist to hold others
+			if (!folder.exists() || (folder.getType() & Folder.HOLDS_MESSAGES) == 0 || !seen.add(folder.getFullName())) {
+				continue;
+			}
+			// Counting is a STATUS per folder, far cheaper than anything that would give sizes
+			folders.add(new TreeFolder(folder.getFullName(), folder.getSeparator(), folder.getMessageCount()));
+		}
+		return folders;
+	}
+
+	private static Set<String> existingFolders(Store store) throws MessagingException {
+		Set<String> names = new HashSet<String>();
+		for (Folder folder : store.getDefaultFolder().list("*")) {
+			names.add(normalise(folder.getFullName()));
+		}
+		names.add("inbox");
+		return names;
+	}
+
+	private static void create(Store store, String name, char separator, Set<String> existing) throws MessagingException {
+		// Parents first, as not every server creates them along with the child
+		int end = -1;
+		do {
+			end = name.indexOf(separator, end + 1);
+			String path = end < 0 ? name : name.substring(0, end);
+			if (path.length() > 0 && !existing.contains(normalise(path))) {
+				Folder folder = store.getFolder(path);
+				if (!folder.exists()) {
+					if (!folder.create(Folder.HOLDS_MESSAGES | Folder.HOLDS_FOLDERS)) {
+						throw new MessagingException("Unable to create destination folder " + path);
+					}
+					LOG.info("Created destination folder " + path);
+				}
+				existing.add(normalise(path));
+			}
+		}
+		while (end >= 0);
+	}
+
+	/**
+	 * Rewrites a source folder name for the destination hierarchy. A destination
+	 * delimiter that appears within a source name would create an extra level, so it
+	 * is replaced.
+	 */
+	static String mapName(String name, char from, char to, String prefix) {
+		StringBuilder mapped = new StringBuilder();
+		if (prefix != null && prefix.length() > 0) {
+			mapped.append(prefix).append(to);
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == from) {
+				mapped.append(to);
+			}
+			else if (c == to) {
+				mapped.append(REPLACEMENT);
+			}
+			else {
+				mapped.append(c);
+			}
+		}
+		return mapped.toString();
+	}
+
+	private static String normalise(String name) {
+		// INBOX is the only name that servers must treat without regard to case
+		return name.equalsIgnoreCase("INBOX") ? "inbox" : name;
+	}
+
+	static final Comparator<TreeFolder> LARGEST_FIRST = new Comparator<TreeFolder>() {
+		public int compare(TreeFolder a, TreeFolder b) {
+			if (a.messages != b.messages) {
+				return a.messages > b.messages ? -1 : 1;
+			}
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	static class TreeFolder {
+		final String name;
+		final char separator;
+		final int messages;
+
+		TreeFolder(String name, char separator, int messages) {
+			this.name = name;
+			this.separator = separator;
+			this.messages = messages;
+		}
+
+		public String toString() {
+			return name + " (" + messages + ")";
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package uk.org.winton.imapmove;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Discards the header block of an RFC822 stream written to it, up to and including
+ * the blank line that ends it, and writes a replacement header block in its place.
+ * Everything after that is passed through unchanged. Nothing is buffered.
+ */
+class HeaderReplacingOutputStream extends FilterOutputStream {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final byte[] replacement;
+	private boolean inHeader = true;
+	private boolean lineEmpty = true;
+
+	HeaderReplacingOutputStream(OutputStream out, byte[] replacement) {
+		super(out);
+		this.replacement = replacement;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (inHeader) {
+			scan((byte)b);
+		}
+		else {
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		int i = off;
+		int end = off + len;
+		while (inHeader && i < end) {
+			scan(buf[i++]);
+		}
+		if (i < end) {
+			out.write(buf, i, end - i);
+		}
+	}
+
+	/**
+	 * Writes the replacement headers if the original turned out to have no body.
+	 */
+	void finish() throws IOException {
+		if (inHeader) {
+			endHeader();
+		}
+	}
+
+	private void scan(byte b) throws IOException {
+		if (b == '\n') {
+			if (lineEmpty) {
+				endHeader();
+			}
+			lineEmpty = true;
+		}
+		else if (b != '\r') {
+			lineEmpty = false;
+		}
+	}
+
+	private void endHeader() throws IOException {
+		inHeader = false;
+		out.write(replacement);
+		out.write(CRLF);
+	}
+}
@@ -2,10 +2,13 @@ package uk.org.winton.imapmove;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Locale;
 import java.util.Properties;
 
 import javax.mail.Folder;
 import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.URLName;
@@ -29,15 +32,40 @@ public class IMAPClient {
 	static final String MAIL_HOST = "mail.host";
 	static final String MAIL_PORT = "mail.port";
 	static final String MAIL_STORE_PROTOCOL = "mail.store.protocol";
+	static final String MAIL_IMAP_SOCKET_FACTORY = "mail.imap.socketFactory";
+	static final String MAIL_IMAPS_SOCKET_FACTORY = "mail.imaps.socketFactory";
+	static final String MAIL_IMAP_APPEND_BUFFER_SIZE = "mail.imap.appendbuffersize";
+	static final String MAIL_IMAPS_APPEND_BUFFER_SIZE = "mail.imaps.appendbuffersize";
+	static final int DEFAULT_APPEND_BUFFER_SIZE = 1024 * 1024;
+	static final String MAIL_IMAP_FETCH_SIZE = "mail.imap.fetchsize";
+	static final String MAIL_IMAPS_FETCH_SIZE = "mail.imaps.fetchsize";
+	static final int DEFAULT_FETCH_SIZE = 1024 * 1024;
+	static final long DEFAULT_APPEND_BATCH_BYTES = 4 * 1024 * 1024;
 	static final int DEFAULT_IMAP_PORT = 143;
 	static final int DEFAULT_IMAPS_PORT = 993;
+	static final String BACKEND_JAVAMAIL = "javamail";
+	static final String BACKEND_NIO = "nio";
 
 	private Properties properties;
 	private String mailbox;
 	private Session session;
 	private Store store;
 	private boolean debugEnabled;
+	private boolean compress;
 	private int port = 0;
+	private TrafficCounter account = new TrafficCounter();
+	private TrafficCounter traffic = new TrafficCounter(account);
+	private int connections = 1;
+	private long appendBatchBytes = DEFAULT_APPEND_BATCH_BYTES;
+	private long maxBytesPerSec = 0;
+	private long maxCommandsPerSec = 0;
+	private RateLimiter byteLimiter;
+	private RateLimiter commandLimiter;
+	private String backend = BACKEND_JAVAMAIL;
+	private NioIMAPConnection nio;
+	private IMAPClient owner;
+	private int references = 1;
+	private StorePool pool = new StorePool(this);
 		
 	public IMAPClient(String url) {
 		this(new URLName(url));
@@ -53,6 +81,8 @@ public class IMAPClient {
 		setMailbox(urlName.getFile());
 		setDebug(false);
 		setEmailAddress(null);
+		setAppendBufferSize(DEFAULT_APPEND_BUFFER_SIZE);
+		setFetchSize(DEFAULT_FETCH_SIZE);
 	}
 
 
@@ -139,26 +169,353 @@ public class IMAPClient {
 		return properties;
 	}
 
-	public Session getSession() {
+	public synchronized Session getSession() {
+		if (owner != null) {
+			return owner.getSession();
+		}
 		if (session == null) {
+			// For imaps JavaMail layers SSL over the counting socket, so it sees wire bytes
+			byteLimiter = limiter("bytes", maxBytesPerSec);
+			commandLimiter = limiter("commands", maxCommandsPerSec);
+			CountingSocketFactory factory = new CountingSocketFactory(traffic, byteLimiter);
+			properties.put(MAIL_IMAP_SOCKET_FACTORY, factory);
+			properties.put(MAIL_IMAPS_SOCKET_FACTORY, factory);
+			properties.put(ExtendedIMAPStore.TRAFFIC_COUNTER, traffic);
+			properties.put(ExtendedIMAPStore.COMPRESS, Boolean.toString(compress));
+			if (commandLimiter != null) {
+				properties.put(ExtendedIMAPStore.COMMAND_LIMITER, commandLimiter);
+			}
+			else {
+				properties.remove(ExtendedIMAPStore.COMMAND_LIMITER);
+			}
 			session = Session.getInstance(properties);
+			if (compress || commandLimiter != null) {
+				setExtendedProviders(session);
+			}
 		}
 		return session;
 	}
 
+	private RateLimiter limiter(String kind, long rate) {
+		// One per account for the whole JVM, since that is where the quota is kept
+		return rate > 0 ? RateLimiter.shared(getHost().toLowerCase(Locale.ROOT) + " " + getUsername() + " " + kind, rate) : null;
+	}
+
+	private synchronized RateLimiter getCommandLimiter() {
+		// The limiters are taken along with the session, and handed back when it closes
+		getSession();
+		return commandLimiter;
+	}
+
+	private synchronized RateLimiter getByteLimiter() {
+		getSession();
+		return byteLimiter;
+	}
+
+	private static void setExtendedProviders(Session session) {
+		try {
+			session.setProvider(new Provider(Provider.Type.STORE, PROTOCOL_IMAP,
+					ExtendedIMAPStore.class.getName(), "uk.org.winton", "1.0"));
+			session.setProvider(new Provider(Provider.Type.STORE, PROTOCOL_IMAPS,
+					ExtendedIMAPStore.SSL.class.getName(), "uk.org.winton", "1.0"));
+		}
+		catch (NoSuchProviderException e) {
+			LOG.warn("Unable to install the compressing, rate limited IMAP store: " + e.getMessage());
+		}
+	}
+
 	public URLName getURLName() {
 		return new URLName(getProtocol(), getHost(), getPort(), getMailbox(), getUsername(), getPassword());
 	}
 
-	public Store getConnectedStore() throws MessagingException {
+	public boolean isSameAccount(IMAPClient other) {
+		return other != null
+				&& getProtocol().equals(other.getProtocol())
+				&& getHost().equalsIgnoreCase(other.getHost())
+				&& getPort() == other.getPort()
+				&& getUsername() != null
+				&& getUsername().equals(other.getUsername());
+	}
+
+	public void shareConnectionWith(IMAPClient other) {
+		// Clients for the same account share the session, connection pool and counters;
+		// each still has its own store and mailbox, so one can fail without the others
+		if (!isSameAccount(other)) {
+			throw new IllegalArgumentException("Cannot share a connection with a different account");
+		}
+		IMAPClient shared = other.owner == null ? other : other.owner;
+		synchronized (shared) {
+			shared.references++;
+		}
+		owner = shared;
+		traffic = new TrafficCounter(shared.account);
+	}
+
+	public boolean isSharingConnection() {
+		return owner != null;
+	}
+
+	public synchronized Store getConnectedStore() throws MessagingException {
 		if (store == null) {
-			store = getSession().getStore(getURLName());
-			LOG.info("Connecting to " + getHost() + ":" + getPort() + " as " + getUsername());
-			store.connect();
+			store = borrowStore();
 		}
 		return store;
 	}
 
+	public Store borrowStore() throws MessagingException {
+		return owner != null ? owner.borrowStore() : pool.borrow();
+	}
+
+	public void returnStore(Store borrowed) {
+		if (owner != null) {
+			owner.returnStore(borrowed);
+		}
+		else {
+			pool.giveBack(borrowed);
+		}
+	}
+
+	public void invalidateStore(Store borrowed) {
+		if (owner != null) {
+			owner.invalidateStore(borrowed);
+		}
+		else {
+			pool.invalidate(borrowed);
+		}
+	}
+
+	/**
+	 * Closes this client's own connections. The pool and session go too, so that a
+	 * reconnection starts completely afresh, unless other clients are sharing them.
+	 */
+	public void disconnect() {
+		synchronized (this) {
+			if (store != null) {
+				invalidateStore(store);
+				store = null;
+			}
+			closeNio();
+		}
+		IMAPClient shared = owner != null ? owner : this;
+		synchronized (shared) {
+			if (shared.references <= 1) {
+				shared.closeShared();
+			}
+		}
+	}
+
+	/**
+	 * Gives this client's store back to the pool for another client of the same
+	 * account, and closes everything once no client is left sharing it.
+	 */
+	public void release() {
+		synchronized (this) {
+			if (store != null) {
+				returnStore(store);
+				store = null;
+			}
+			closeNio();
+		}
+		IMAPClient shared = owner != null ? owner : this;
+		synchronized (shared) {
+			if (--shared.references <= 0) {
+				shared.closeShared();
+			}
+		}
+	}
+
+	private void closeNio() {
+		if (nio != null) {
+			nio.close();
+			nio = null;
+		}
+	}
+
+	private void closeShared() {
+		pool.close();
+		session = null;
+		if (byteLimiter != null) {
+			byteLimiter.release(maxBytesPerSec);
+			byteLimiter = null;
+		}
+		if (commandLimiter != null) {
+			commandLimiter.release(maxCommandsPerSec);
+			commandLimiter = null;
+		}
+	}
+
+	public Store openStore() throws MessagingException {
+		Store newStore = getSession().getStore(getURLName());
+		LOG.info("Connecting to " + getHost() + ":" + getPort() + " as " + getUsername());
+		newStore.connect();
+		return newStore;
+	}
+
+	/**
+	 * Returns the client's connection on the non-blocking, pipelined backend, opening
+	 * and logging it in if need be. It is separate from the JavaMail stores, which
+	 * still do everything except bulk body fetches and appends.
+	 */
+	public synchronized NioIMAPConnection getNioConnection() throws MessagingException {
+		if (nio != null && !nio.isOpen()) {
+			nio = null;
+		}
+		if (nio == null) {
+			LOG.info("Connecting to " + getHost() + ":" + getPort() + " as " + getUsername() + " (pipelined)");
+			NioIMAPConnection connection;
+			try {
+				connection = NioIMAPConnection.open(getHost(), getPort(), isSecure(), getTraffic());
+			}
+			catch (IOException e) {
+				throw new MessagingException("Unable to connect to " + getHost() + ":" + getPort() + ": " + e.getMessage(), e);
+			}
+			IMAPClient shared = owner != null ? owner : this;
+			connection.setLimiters(shared.getCommandLimiter(), shared.getByteLimiter());
+			try {
+				connection.login(getUsername(), getPassword());
+			}
+			catch (MessagingException e) {
+				connection.close();
+				throw e;
+			}
+			nio = connection;
+		}
+		return nio;
+	}
+
+	public void setBackend(String name) {
+		if (!BACKEND_JAVAMAIL.equals(name) && !BACKEND_NIO.equals(name)) {
+			throw new IllegalArgumentException("Unknown IMAP backend: " + name);
+		}
+		backend = name;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	public boolean isNioBackend() {
+		return BACKEND_NIO.equals(getBackend());
+	}
+
+	public void setAppendBufferSize(int bytes) {
+		// JavaMail writes a message once to size the APPEND literal before sending it.
+		// Messages up to this size are kept from that pass rather than being read twice.
+		properties.put(MAIL_IMAP_APPEND_BUFFER_SIZE, Integer.toString(bytes));
+		properties.put(MAIL_IMAPS_APPEND_BUFFER_SIZE, Integer.toString(bytes));
+	}
+
+	public int getAppendBufferSize() {
+		return Integer.parseInt(properties.getProperty(MAIL_IMAP_APPEND_BUFFER_SIZE, "-1"));
+	}
+
+	public void setAppendBatchBytes(long bytes) {
+		appendBatchBytes = Math.max(0, bytes);
+	}
+
+	public long getAppendBatchBytes() {
+		return appendBatchBytes;
+	}
+
+	public void setMaxBytesPerSec(long bytes) {
+		maxBytesPerSec = Math.max(0, bytes);
+	}
+
+	public long getMaxBytesPerSec() {
+		return maxBytesPerSec;
+	}
+
+	public void setMaxCommandsPerSec(long commands) {
+		maxCommandsPerSec = Math.max(0, commands);
+	}
+
+	public long getMaxCommandsPerSec() {
+		return maxCommandsPerSec;
+	}
+
+	public void setFetchSize(int bytes) {
+		// Large messages are read in partial fetches of this size, each a round trip
+		properties.put(MAIL_IMAP_FETCH_SIZE, Integer.toString(bytes));
+		properties.put(MAIL_IMAPS_FETCH_SIZE, Integer.toString(bytes));
+	}
+
+	public int getFetchSize() {
+		return Integer.parseInt(properties.getProperty(MAIL_IMAP_FETCH_SIZE, "16384"));
+	}
+
+	public void setConnections(int count) {
+		connections = Math.max(1, count);
+	}
+
+	public int getConnections() {
+		return connections;
+	}
+
+	public void setPoolMinIdle(int count) {
+		pool.setMinIdle(count);
+	}
+
+	public int getPoolMinIdle() {
+		return pool.getMinIdle();
+	}
+
+	public void setPoolMaxOpen(int count) {
+		pool.setMaxOpen(count);
+	}
+
+	public int getPoolMaxOpen() {
+		return pool.getMaxOpen();
+	}
+
+	public void setPoolIdleTimeout(long millis) {
+		pool.setIdleTimeout(millis);
+	}
+
+	public long getPoolIdleTimeout() {
+		return pool.getIdleTimeout();
+	}
+
+	public void setPoolValidateAfter(long millis) {
+		pool.setValidateAfter(millis);
+	}
+
+	public long getPoolValidateAfter() {
+		return pool.getValidateAfter();
+	}
+
+	StorePool getPool() {
+		return owner != null ? owner.getPool() : pool;
+	}
+
+	/**
+	 * Returns the traffic of this client alone. Connections shared with other clients
+	 * of the account only count here while {@link #bindTraffic()} is in effect on the
+	 * thread using them.
+	 */
+	public TrafficCounter getTraffic() {
+		return traffic;
+	}
+
+	public TrafficCounter getAccountTraffic() {
+		return owner != null ? owner.getAccountTraffic() : account;
+	}
+
+	void bindTraffic() {
+		TrafficCounter.bind(traffic);
+	}
+
+	void unbindTraffic() {
+		TrafficCounter.unbind(traffic);
+	}
+
+	public void setCompress(boolean enabled) {
+		compress = enabled;
+	}
+
+	public boolean isCompress() {
+		return owner != null ? owner.isCompress() : compress;
+	}
+
 	public boolean isDebug() {
 		return debugEnabled;
 	}
@@ -169,9 +526,9 @@ public class IMAPClient {
 	}
 
 	public Folder getMailboxFolder() throws MessagingException {
-		getConnectedStore();
+		Store connected = getConnectedStore();
 		LOG.debug("Getting mailbox folder: " + getMailbox());
-		return store.getFolder(getMailbox());
+		return connected.getFolder(getMailbox());
 	}
 
 	public void setEmailAddress(String addr) {
@@ -202,6 +559,18 @@ public class IMAPClient {
 		setEmailAddress(props.getProperty(prefix + "email"));
 		setMailbox(props.getProperty(prefix + "mailbox", DEFAULT_MAILBOX));
 		setDebug(Boolean.parseBoolean(props.getProperty(prefix + "debug", "false")));
+		setCompress(Boolean.parseBoolean(props.getProperty(prefix + "compress", "false")));
+		setAppendBufferSize(Integer.parseInt(props.getProperty(prefix + "appendBufferSize", Integer.toString(DEFAULT_APPEND_BUFFER_SIZE))));
+		setFetchSize(Integer.parseInt(props.getProperty(prefix + "fetchSize", Integer.toString(DEFAULT_FETCH_SIZE))));
+		setAppendBatchBytes(Long.parseLong(props.getProperty(prefix + "appendBatchBytes", Long.toString(DEFAULT_APPEND_BATCH_BYTES))));
+		setMaxBytesPerSec(Long.parseLong(props.getProperty(prefix + "maxBytesPerSec", "0")));
+		setMaxCommandsPerSec(Long.parseLong(props.getProperty(prefix + "maxCommandsPerSec", "0")));
+		setBackend(props.getProperty(prefix + "backend", BACKEND_JAVAMAIL));
+		setConnections(Integer.parseInt(props.getProperty(prefix + "connections", "1")));
+		setPoolMinIdle(Integer.parseInt(props.getProperty(prefix + "pool.minIdle", "0")));
+		setPoolMaxOpen(Integer.parseInt(props.getProperty(prefix + "pool.maxOpen", "0")));
+		setPoolIdleTimeout(Long.parseLong(props.getProperty(prefix + "pool.idleTimeout", Long.toString(StorePool.DEFAULT_IDLE_TIMEOUT))));
+		setPoolValidateAfter(Long.parseLong(props.getProperty(prefix + "pool.validateAfter", Long.toString(StorePool.DEFAULT_VALIDATE_AFTER))));
 	}
 
 }
@@ -0,0 +1,572 @@
+package uk.org.winton.imapmove;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.search.SearchException;
+import javax.mail.search.SearchTerm;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.iap.Literal;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.SearchSequence;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.imap.protocol.UIDSet;
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Commands that JavaMail's IMAPFolder does not expose directly. The UID based ones
+ * take a set of UIDs and send it as compact ranges, in as few commands as the line
+ * length allows; APPEND sends a whole group of messages before waiting for the
+ * server.
+ */
+final class IMAPCommands {
+	private static final Logger LOG = Logger.getLogger(IMAPCommands.class);
+
+	static final String CAPABILITY_MOVE = "MOVE";
+	static final String CAPABILITY_UIDPLUS = "UIDPLUS";
+	static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+	static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+	static final long MAX_UID = 0xffffffffL;
+	// RFC 7162 asks clients to keep command lines to 8192 octets, and servers do refuse longer
+	static final int MAX_SET_LENGTH = 8000;
+
+	private IMAPCommands() {
+	}
+
+	static boolean hasCapability(IMAPFolder folder, String capability) throws MessagingException {
+		return ((IMAPStore)folder.getStore()).hasCapability(capability);
+	}
+
+	static String toRanges(long[] uids) {
+		long[] sorted = uids.clone();
+		Arrays.sort(sorted);
+		return UIDSet.toString(UIDSet.createUIDSets(sorted));
+	}
+
+	/**
+	 * Splits the ranges for the UIDs into sets of no more than maxLength characters,
+	 * each small enough to send in one command.
+	 */
+	static List<String> toRangeSets(long[] uids, int maxLength) {
+		List<String> sets = new ArrayList<String>();
+		StringBuilder set = new StringBuilder();
+		for (String range : toRanges(uids).split(",")) {
+			if (set.length() > 0 && set.length() + 1 + range.length() > maxLength) {
+				sets.add(set.toString());
+				set.setLength(0);
+			}
+			if (set.length() > 0) {
+				set.append(',');
+			}
+			set.append(range);
+		}
+		if (set.length() > 0) {
+			sets.add(set.toString());
+		}
+		return sets;
+	}
+
+	/**
+	 * Returns the UIDs above after of the messages matching the term, in ascending
+	 * order, without JavaMail creating a message for each. A null term matches every
+	 * message. Returns null if the term cannot be sent to the server, leaving the
+	 * caller to search some other way.
+	 */
+	static long[] uidSearch(IMAPFolder folder, final SearchTerm term, final long after) throws MessagingException {
+		return (long[])folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				boolean ascii = term == null || SearchSequence.isAscii(term);
+				Argument args = new Argument();
+				if (!ascii) {
+					args.writeAtom("CHARSET");
+					args.writeAtom("UTF-8");
+				}
+				if (after > 0) {
+					args.writeAtom("UID");
+					// Rather than "n:*", which some servers refuse in a search
+					args.writeAtom((after + 1) + ":" + MAX_UID);
+				}
+				else if (term == null) {
+					args.writeAtom("ALL");
+				}
+				try {
+					if (term != null) {
+						args.append(new SearchSequence().generateSequence(term, ascii ? null : "UTF-8"));
+					}
+				}
+				catch (SearchException e) {
+					return null;
+				}
+				catch (IOException e) {
+					return null;
+				}
+				
+				Response[] r = protocol.command("UID SEARCH", args);
+				Response result = r[r.length - 1];
+				long[] uids = new long[16];
+				int count = 0;
+				if (result.isOK()) {
+					for (int i = 0; i < r.length - 1; i++) {
+						if (!(r[i] instanceof IMAPResponse) || !((IMAPResponse)r[i]).keyEquals("SEARCH")) {
+							continue;
+						}
+						long uid;
+						while ((uid = r[i].readLong()) != -1) {
+							if (count == uids.length) {
+								uids = Arrays.copyOf(uids, count * 2);
+							}
+							uids[count++] = uid;
+						}
+						r[i] = null;
+					}
+				}
+				protocol.notifyResponseHandlers(r);
+				protocol.handleResult(result);
+				uids = Arrays.copyOf(uids, count);
+				Arrays.sort(uids);
+				return uids;
+			}
+		});
+	}
+
+	/**
+	 * Returns just the named header fields of the messages with the UIDs, keyed by
+	 * UID, without JavaMail creating or caching a message for each.
+	 */
+	static Map<Long, InternetHeaders> uidFetchHeaders(IMAPFolder folder, long[] uids, String fields) throws MessagingException {
+		final Map<Long, InternetHeaders> headers = new HashMap<Long, InternetHeaders>();
+		if (uids.length == 0) {
+			return headers;
+		}
+		final List<String> sets = toRangeSets(uids, MAX_SET_LENGTH);
+		final String items = "(UID BODY.PEEK[HEADER.FIELDS (" + fields + ")])";
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				for (String ranges : sets) {
+					Argument args = new Argument();
+					args.writeAtom(ranges);
+					args.writeAtom(items);
+					Response[] r = protocol.command("UID FETCH", args);
+					Response result = r[r.length - 1];
+					for (int i = 0; i < r.length - 1; i++) {
+						if (!(r[i] instanceof FetchResponse)) {
+							continue;
+						}
+						FetchResponse fetch = (FetchResponse)r[i];
+						UID uid = (UID)fetch.getItem(UID.class);
+						BODY body = (BODY)fetch.getItem(BODY.class);
+						if (uid != null && body != null) {
+							try {
+								headers.put(uid.uid, new InternetHeaders(body.getByteArrayInputStream()));
+							}
+							catch (MessagingException e) {
+								throw new ProtocolException("Unable to parse headers of UID " + uid.uid, e);
+							}
+							// Otherwise the folder would update a cached message for each
+							r[i] = null;
+						}
+					}
+					protocol.notifyResponseHandlers(r);
+					protocol.handleResult(result);
+				}
+				return null;
+			}
+		});
+		return headers;
+	}
+
+	static void uidMove(IMAPFolder folder, long[] uids, String mailbox) throws MessagingException {
+		uidCommand(folder, "UID MOVE", uids, mailbox, null);
+	}
+
+	static void uidCopy(IMAPFolder folder, long[] uids, String mailbox) throws MessagingException {
+		uidCommand(folder, "UID COPY", uids, mailbox, null);
+	}
+
+	static void uidStoreDeleted(IMAPFolder folder, long[] uids) throws MessagingException {
+		// SILENT saves the server echoing back the flags of every message
+		uidCommand(folder, "UID STORE", uids, null, "+FLAGS.SILENT (\\Deleted)");
+	}
+
+	static void uidExpunge(IMAPFolder folder, long[] uids) throws MessagingException {
+		uidCommand(folder, "UID EXPUNGE", uids, null, null);
+	}
+
+	private static void uidCommand(IMAPFolder folder, final String command, long[] uids, final String mailbox, final String items) throws MessagingException {
+		if (uids.length == 0) {
+			return;
+		}
+		final List<String> sets = toRangeSets(uids, MAX_SET_LENGTH);
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				for (String ranges : sets) {
+					Argument args = new Argument();
+					args.writeAtom(ranges);
+					if (mailbox != null) {
+						args.writeString(BASE64MailboxEncoder.encode(mailbox));
+					}
+					if (items != null) {
+						args.writeAtom(items);
+					}
+					protocol.simpleCommand(command, args);
+				}
+				return null;
+			}
+		});
+		if (sets.size() > 1) {
+			LOG.debug(command + " of " + uids.length + " UIDs sent as " + sets.size() + " commands");
+		}
+	}
+
+	/**
+	 * Appends the messages in groups of up to maxBytes. Where the server supports
+	 * MULTIAPPEND each group is a single APPEND command; otherwise, given LITERAL+, the
+	 * group's APPENDs are all written before any reply is read. Failing both, each
+	 * message waits for its own reply. Messages larger than bufferSize are held in
+	 * temporary files in spillDirectory while they are sent. Messages are added to
+	 * appended as the server accepts them, so that a caller can tell what arrived if
+	 * an exception is thrown.
+	 */
+	static void append(IMAPFolder folder, Message[] msgs, final long maxBytes, final int bufferSize, File spillDirectory, List<Message> appended) throws MessagingException {
+		final boolean multi = hasCapability(folder, CAPABILITY_MULTIAPPEND);
+		final boolean pipeline = !multi && hasCapability(folder, CAPABILITY_LITERAL_PLUS);
+		if (!multi && !pipeline || maxBytes <= 0) {
+			for (Message msg : msgs) {
+				folder.appendMessages(new Message[] { msg });
+				appended.add(msg);
+			}
+			return;
+		}
+		
+		final String mailbox = BASE64MailboxEncoder.encode(folder.getFullName());
+		int start = 0;
+		MessageLiteral carried = null;
+		try {
+			while (start < msgs.length) {
+				// Always send at least one message, however large
+				final List<MessageLiteral> group = new ArrayList<MessageLiteral>();
+				long bytes = 0;
+				try {
+					while (start < msgs.length) {
+						MessageLiteral literal = carried != null ? carried : new MessageLiteral(msgs[start], bufferSize, spillDirectory);
+						carried = null;
+						if (!group.isEmpty() && bytes + literal.size() > maxBytes) {
+							// Starts the next group, rather than being read from the source again
+							carried = literal;
+							break;
+						}
+						group.add(literal);
+						bytes += literal.size();
+						start++;
+					}
+					
+					final List<Message> accepted = appended;
+					folder.doCommand(new IMAPFolder.ProtocolCommand() {
+						public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+							if (multi) {
+								multiAppend(protocol, mailbox, group, accepted);
+							}
+							else {
+								pipelinedAppend(protocol, mailbox, group, accepted);
+							}
+							return null;
+						}
+					});
+				}
+				finally {
+					for (MessageLiteral literal : group) {
+						literal.dispose();
+					}
+				}
+				LOG.debug("Appended " + group.size() + " message" + (group.size() == 1 ? "" : "s")
+						+ " (" + bytes + " bytes) with " + (multi ? "MULTIAPPEND" : "pipelined APPEND"));
+			}
+		}
+		finally {
+			if (carried != null) {
+				carried.dispose();
+			}
+		}
+	}
+
+	private static void multiAppend(IMAPProtocol protocol, String mailbox, List<MessageLiteral> group, List<Message> appended) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeString(mailbox);
+		for (MessageLiteral literal : group) {
+			writeMessage(args, literal);
+		}
+		// RFC 3502 makes the whole command succeed or fail as one
+		protocol.simpleCommand("APPEND", args);
+		for (MessageLiteral literal : group) {
+			appended.add(literal.msg);
+		}
+	}
+
+	private static void pipelinedAppend(IMAPProtocol protocol, String mailbox, List<MessageLiteral> group, List<Message> appended) throws ProtocolException {
+		Map<String, Message> pending = new LinkedHashMap<String, Message>();
+		List<Response> responses = new ArrayList<Response>();
+		Response failure = null;
+		try {
+			for (MessageLiteral literal : group) {
+				Argument args = new Argument();
+				args.writeString(mailbox);
+				writeMessage(args, literal);
+				pending.put(protocol.writeCommand("APPEND", args), literal.msg);
+			}
+			while (!pending.isEmpty()) {
+				Response r = protocol.readResponse();
+				responses.add(r);
+				if (r.isBYE()) {
+					protocol.notifyResponseHandlers(responses.toArray(new Response[responses.size()]));
+					throw new ConnectionException(protocol, r);
+				}
+				Message msg = r.isTagged() ? pending.remove(r.getTag()) : null;
+				if (msg == null) {
+					continue;
+				}
+				if (r.isOK()) {
+					appended.add(msg);
+				}
+				else if (failure == null) {
+					failure = r;
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new ConnectionException("Connection failed during APPEND: " + e.getMessage());
+		}
+		protocol.notifyResponseHandlers(responses.toArray(new Response[responses.size()]));
+		if (failure != null) {
+			protocol.handleResult(failure);
+		}
+	}
+
+	private static void writeMessage(Argument args, MessageLiteral literal) throws ProtocolException {
+		try {
+			String flags = flagList(literal.msg.getFlags());
+			if (flags != null) {
+				args.writeAtom(flags);
+			}
+			Date date = literal.msg.getReceivedDate();
+			if (date != null) {
+				args.writeString(INTERNALDATE.format(date));
+			}
+		}
+		catch (MessagingException e) {
+			throw new ProtocolException("Unable to read message for APPEND: " + e.getMessage(), e);
+		}
+		args.writeBytes(literal);
+	}
+
+	static String flagList(Flags flags) {
+		StringBuilder list = new StringBuilder();
+		for (Flags.Flag flag : flags.getSystemFlags()) {
+			String name = null;
+			if (flag == Flags.Flag.ANSWERED) {
+				name = "\\Answered";
+			}
+			else if (flag == Flags.Flag.DELETED) {
+				name = "\\Deleted";
+			}
+			else if (flag == Flags.Flag.DRAFT) {
+				name = "\\Draft";
+			}
+			else if (flag == Flags.Flag.FLAGGED) {
+				name = "\\Flagged";
+			}
+			else if (flag == Flags.Flag.SEEN) {
+				name = "\\Seen";
+			}
+			// \Recent belongs to the server alone
+			if (name != null) {
+				list.append(list.length() == 0 ? "(" : " ").append(name);
+			}
+		}
+		for (String flag : flags.getUserFlags()) {
+			list.append(list.length() == 0 ? "(" : " ").append(flag);
+		}
+		return list.length() == 0 ? null : list.append(')').toString();
+	}
+
+	/**
+	 * A message in the CRLF form a literal needs, read from its source just once.
+	 * Messages up to bufferSize are kept in memory and larger ones in a temporary
+	 * file in the spill directory, or the system's if that is null, which
+	 * {@link #dispose()} deletes.
+	 */
+	static class MessageLiteral implements Literal {
+		private final Message msg;
+		private final byte[] buffer;
+		private final File file;
+		private final int size;
+
+		MessageLiteral(Message msg, int bufferSize, File spillDirectory) throws MessagingException {
+			this.msg = msg;
+			SpillBuffer out = new SpillBuffer(bufferSize, spillDirectory);
+			try {
+				try {
+					msg.writeTo(new CRLFOutputStream(out));
+				}
+				finally {
+					out.close();
+				}
+			}
+			catch (IOException e) {
+				out.delete();
+				throw new MessagingException("Unable to read message for APPEND", e);
+			}
+			catch (MessagingException e) {
+				out.delete();
+				throw e;
+			}
+			if (out.count > Integer.MAX_VALUE) {
+				out.delete();
+				throw new MessagingException("Message of " + out.count + " bytes is too large to APPEND");
+			}
+			buffer = out.toByteArray();
+			file = out.getFile();
+			size = (int)out.count;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * The message itself, or null if it is in {@link #getFile()} instead.
+		 */
+		byte[] getBytes() {
+			return buffer;
+		}
+
+		File getFile() {
+			return file;
+		}
+
+		public void writeTo(OutputStream os) throws IOException {
+			if (buffer != null) {
+				os.write(buffer);
+				return;
+			}
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					os.write(buf, 0, len);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		void dispose() {
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Collects bytes in memory up to a limit, moving them to a temporary file if
+	 * there turn out to be more.
+	 */
+	private static class SpillBuffer extends OutputStream {
+		private final int limit;
+		private final File directory;
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream spill;
+		private long count = 0;
+
+		SpillBuffer(int limit, File directory) {
+			this.limit = limit;
+			this.directory = directory;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+			spillIfFull();
+			if (spill != null) {
+				spill.write(b);
+			}
+			else {
+				bytes.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+			spillIfFull();
+			if (spill != null) {
+				spill.write(b, off, len);
+			}
+			else {
+				bytes.write(b, off, len);
+			}
+		}
+
+		private void spillIfFull() throws IOException {
+			if (spill == null && count > limit) {
+				file = File.createTempFile("append", ".eml", directory);
+				spill = new BufferedOutputStream(new FileOutputStream(file));
+				bytes.writeTo(spill);
+				bytes = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (spill != null) {
+				spill.close();
+			}
+		}
+
+		byte[] toByteArray() {
+			return bytes == null ? null : bytes.toByteArray();
+		}
+
+		File getFile() {
+			return file;
+		}
+
+		void delete() {
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -5,116 +5,913 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
+import javax.mail.URLName;
+import javax.mail.event.StoreEvent;
+import javax.mail.event.StoreListener;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.SearchTerm;
 
 import org.apache.log4j.Logger;
 
+import com.sun.mail.imap.IMAPFolder;
+
 public class IMAPMover {
 	private static final Logger LOG = Logger.getLogger(IMAPMover.class);
 	
+	// Used when no batch size is set, so that only one window is in memory at a time
+	static final int DEFAULT_WINDOW = 500;
+	// JavaMail keeps every message it has fetched until its folder is closed
+	static final int REOPEN_AFTER = 5000;
+	
 	private IMAPClient source;
 	private IMAPClient destination;
 	private String subjectPrefix;
+	private int batchSize = 0;
+	private long batchBytes = 0;
+	private AdaptiveBatchSize adaptiveBatch;
+	private RetryPolicy retry = new RetryPolicy();
+	private final Set<Long> appended = new HashSet<Long>();
+	private long spillThreshold = 0;
+	private File spillDirectory;
+	private MessageCache messageCache;
+	private CheckpointStore checkpoints;
+	private SearchTerm criteria;
+	private boolean verifySearch = false;
+	// Set while the serial path appends, for failures the connections themselves cannot explain
+	private boolean appending;
+	private volatile String failedConnection;
+	private MoveMetrics metrics;
+	private DedupIndex dedup;
+	private final Map<String, String> addressRules = new LinkedHashMap<String, String>();
+	private AddressRewriter rewriter;
+	private String rewriterFor;
+	
+	private final StoreListener throttleListener = new StoreListener() {
+		public void notification(StoreEvent e) {
+			// Untagged NO and OK responses arrive here rather than as command failures
+			if (adaptiveBatch != null && AdaptiveBatchSize.isThrottle(e.getMessage())) {
+				LOG.warn("Server notice: " + e.getMessage());
+				adaptiveBatch.throttled();
+			}
+		}
+	};
 	
 	public IMAPMover(IMAPClient src, IMAPClient dst) {
 		this.source = src;
 		this.destination = dst;
+		this.metrics = new MoveMetrics(this, new URLName(src.getProtocol(), src.getHost(), src.getPort(), src.getMailbox(), src.getUsername(), null).toString());
 	}
 
-	public void move() throws MessagingException {
-		move(true);
+	public int move() throws MessagingException {
+		return move(true);
+	}
+	
+	public int move(boolean expunge) throws MessagingException {
+		bindTraffic();
+		try {
+			return moveWindows(expunge);
+		}
+		finally {
+			unbindTraffic();
+		}
+	}
+	
+	/**
+	 * Counts the traffic on this thread's connections, including any shared with
+	 * other jobs, against this move's own clients. Where source and destination are
+	 * the same account the source's counter takes it all.
+	 */
+	void bindTraffic() {
+		destination.bindTraffic();
+		source.bindTraffic();
 	}
 	
-	public void move(boolean expunge) throws MessagingException {
+	void unbindTraffic() {
+		source.unbindTraffic();
+		destination.unbindTraffic();
+	}
+	
+	private int moveWindows(boolean expunge) throws MessagingException {
 		LOG.info("Starting message move" );
+		long srcTrips = source.getTraffic().getRoundTrips();
+		long dstTrips = destination.getTraffic().getRoundTrips();
+		long timer = metrics.start();
 		Folder src = source.getMailboxFolder();
 		Folder dst = destination.getMailboxFolder();
+		int moved = 0;
+		failedConnection = null;
+		
+		listen(src, dst, true);
+		try {
+			src.open(Folder.READ_WRITE);
+			metrics.record(MoveMetrics.Phase.CONNECT, timer);
+			
+			if (dedup != null) {
+				refreshDedup(dst);
+			}
+			
+			timer = metrics.start();
+			Selection selected = select(src);
+			metrics.record(MoveMetrics.Phase.SEARCH, timer);
+			LOG.info(selected.size() + " message" + (selected.size() == 1 ? "" : "s") + " found in source mailbox");
+			
+			int start = 0;
+			int attempt = 0;
+			int held = 0;
+			while (start < selected.size()) {
+				pauseIfThrottled();
+				long began = System.nanoTime();
+				int end;
+				appending = false;
+				try {
+					if (held >= REOPEN_AFTER) {
+						close(src);
+						src.open(Folder.READ_WRITE);
+						held = 0;
+					}
+					Message[] candidates = selected.get(src, start, windowLimit(start, selected.size()));
+					end = start + windowEnd(src, candidates);
+					Message[] window = present(candidates, end - start);
+					long lastUid = highestUid(src, window);
+					moved += moveWindow(src, dst, window, expunge);
+					checkpoint(src, lastUid);
+				}
+				catch (MessagingException e) {
+					boolean throttled = recordFailure(e);
+					failedConnection = failedConnection(e, src, dst);
+					if (retry == null || !retry.shouldRetry(e, ++attempt)) {
+						throw e;
+					}
+					metrics.recordRetry(failedConnection);
+					if (throttled && src.isOpen()) {
+						// The connection survived, so the same window is simply tried again smaller
+						continue;
+					}
+					
+					long delay = retry.delay(attempt);
+					LOG.warn("Batch failed: " + e.getMessage() + " -- reconnecting in " + delay + "ms (attempt " + attempt + " of " + retry.getMaxRetries() + ")");
+					listen(src, dst, false);
+					close(src);
+					close(dst);
+					source.disconnect();
+					destination.disconnect();
+					sleep(delay, "reconnecting");
+					
+					src = source.getMailboxFolder();
+					dst = destination.getMailboxFolder();
+					listen(src, dst, true);
+					src.open(Folder.READ_WRITE);
+					// Completed windows are already flagged deleted, so this finds only what is left
+					selected = select(src);
+					start = 0;
+					held = 0;
+					continue;
+				}
+				attempt = 0;
+				appended.clear();
+				if (adaptiveBatch != null) {
+					adaptiveBatch.completed(end - start, System.nanoTime() - began);
+				}
+				held += end - start;
+				start = end;
+			}
+			saveDedup();
+			
+			if (moved == 0) {
+				LOG.info("No messages to be moved");
+			}
+		}
+		finally {
+			// Give the connections back to their stores so that repeated moves can reuse them
+			close(src);
+			close(dst);
+			listen(src, dst, false);
+			appended.clear();
+		}
+		
+		srcTrips = source.getTraffic().getRoundTrips() - srcTrips;
+		dstTrips = destination.getTraffic().getRoundTrips() - dstTrips;
+		double ratio = metrics.getCompressionRatio();
+		LOG.info("Processing complete (" + (srcTrips + dstTrips) + " round trips: source " + srcTrips + ", destination " + dstTrips
+				+ (ratio > 0 ? String.format(", compression %.1f:1", ratio) : "") + ")");
+		if (messageCache != null) {
+			LOG.info("Message cache: " + messageCache.getHits() + " hits, " + messageCache.getMisses() + " misses, "
+					+ messageCache.size() + " messages (" + messageCache.getBytes() + " bytes) held");
+		}
+		return moved;
+	}
+
+	int getWindowSize() {
+		return adaptiveBatch != null ? adaptiveBatch.next() : batchSize;
+	}
+	
+	/**
+	 * Feeds a failure to the adaptive batch size, returning true if it was throttling
+	 * that is worth waiting out.
+	 */
+	boolean recordFailure(MessagingException e) {
+		return adaptiveBatch != null && AdaptiveBatchSize.isThrottle(e) && adaptiveBatch.throttled();
+	}
+	
+	void pauseIfThrottled() throws MessagingException {
+		long pause = adaptiveBatch == null ? 0 : adaptiveBatch.takePause();
+		if (pause > 0) {
+			LOG.info("Pausing for " + pause + "ms after throttling");
+			sleep(pause, "pausing");
+		}
+	}
+	
+	private static void sleep(long millis, String reason) throws MessagingException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while " + reason, e);
+		}
+	}
+	
+	private void listen(Folder src, Folder dst, boolean enable) {
+		if (adaptiveBatch == null) {
+			return;
+		}
+		if (enable) {
+			src.getStore().addStoreListener(throttleListener);
+			dst.getStore().addStoreListener(throttleListener);
+		}
+		else {
+			src.getStore().removeStoreListener(throttleListener);
+			dst.getStore().removeStoreListener(throttleListener);
+		}
+	}
+	
+	private void close(Folder folder) {
+		if (folder.isOpen()) {
+			try {
+				folder.close(false);
+			}
+			catch (MessagingException e) {
+				LOG.debug("Failed to close " + folder.getFullName() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The messages to be moved. An IMAP source is searched by UID, and each window's
+	 * messages are only fetched as it comes up; anything else is searched for the
+	 * messages themselves.
+	 */
+	static class Selection {
+		private final long[] uids;
+		private final Message[] msgs;
+		
+		Selection(long[] uids, Message[] msgs) {
+			this.uids = uids;
+			this.msgs = msgs;
+		}
+		
+		int size() {
+			return uids != null ? uids.length : msgs.length;
+		}
+		
+		boolean hasUids() {
+			return uids != null;
+		}
+		
+		long getUid(int index) {
+			return uids[index];
+		}
+		
+		Message[] get(Folder src, int start, int end) throws MessagingException {
+			if (uids == null) {
+				return Arrays.copyOfRange(msgs, start, end);
+			}
+			// Any expunged meanwhile come back null
+			return ((UIDFolder)src).getMessagesByUID(Arrays.copyOfRange(uids, start, end));
+		}
+	}
+	
+	Selection select(Folder src) throws MessagingException {
+		if (src instanceof IMAPFolder) {
+			long last = lastCheckpoint(src);
+			long[] uids = IMAPCommands.uidSearch((IMAPFolder)src, selectionTerm(), last);
+			if (uids != null) {
+				if (last > 0) {
+					LOG.info("Resuming after UID " + last);
+				}
+				LOG.debug("Search selected " + uids.length + " of " + src.getMessageCount() + " messages");
+				return new Selection(uids, null);
+			}
+		}
+		return new Selection(null, selectMessages(src));
+	}
+	
+	Message[] selectMessages(Folder src) throws MessagingException {
+		Message[] candidates = afterCheckpoint(src);
+		if (candidates != null && candidates.length == 0) {
+			return candidates;
+		}
+		
+		SearchTerm term = selectionTerm();
+		Message[] selected = candidates == null ? src.search(term) : src.search(term, candidates);
+		LOG.debug("Search selected " + selected.length + " of " + (candidates == null ? src.getMessageCount() : candidates.length) + " messages");
+		return selected;
+	}
+	
+	private SearchTerm selectionTerm() {
+		return SearchCriteria.selection(criteria);
+	}
+	
+	private long lastCheckpoint(Folder src) throws MessagingException {
+		if (checkpoints == null) {
+			return 0;
+		}
+		if (!(src instanceof UIDFolder)) {
+			LOG.warn("Source mailbox does not support UIDs -- checkpoint ignored");
+			return 0;
+		}
+		return checkpoints.getLastUid(source, ((UIDFolder)src).getUIDValidity());
+	}
+	
+	private Message[] afterCheckpoint(Folder src) throws MessagingException {
+		long last = lastCheckpoint(src);
+		if (last == 0) {
+			return null;
+		}
+		
+		LOG.info("Resuming after UID " + last);
+		UIDFolder uidSrc = (UIDFolder)src;
+		List<Message> newer = new ArrayList<Message>();
+		for (Message msg : uidSrc.getMessagesByUID(last + 1, UIDFolder.LASTUID)) {
+			// "n:*" always matches the last message, even when its UID is below n
+			if (msg != null && uidSrc.getUID(msg) > last) {
+				newer.add(msg);
+			}
+		}
+		return newer.toArray(new Message[newer.size()]);
+	}
+	
+	void refreshDedup(Folder dst) throws MessagingException {
+		long timer = metrics.start();
+		int added = dedup.refresh(destination, dst);
+		metrics.record(MoveMetrics.Phase.FETCH, timer);
+		LOG.info(dedup.size() + " messages indexed in destination mailbox (" + added + " new)");
+		saveDedup();
+	}
+	
+	void saveDedup() throws MessagingException {
+		if (dedup == null) {
+			return;
+		}
+		try {
+			dedup.save();
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to update index file " + dedup.getFile(), e);
+		}
+	}
+	
+	boolean isDuplicate(Message msg) throws MessagingException {
+		if (!appended.isEmpty() && appended.contains(appendedKey(msg))) {
+			LOG.info("Message appended before the batch failed -- not copied again");
+			return true;
+		}
+		if (dedup != null && dedup.contains(DedupIndex.fingerprint(msg, getSubjectPrefix()))) {
+			LOG.info("Message already in destination -- not copied again");
+			return true;
+		}
+		return false;
+	}
+	
+	private long appendedKey(Message msg) throws MessagingException {
+		Folder folder = msg.getFolder();
+		if (folder instanceof UIDFolder) {
+			return ((UIDFolder)folder).getUID(msg);
+		}
+		return DedupIndex.fingerprint(msg, getSubjectPrefix());
+	}
+	
+	private void recordAppended(Message original) throws MessagingException {
+		recordAppended(appendedKey(original), fingerprint(original));
+	}
+	
+	private void recordAppended(long key, long fingerprint) {
+		// Remembered until the window completes, in case it has to be replayed
+		appended.add(key);
+		if (dedup != null) {
+			dedup.add(fingerprint);
+		}
+	}
+	
+	private long fingerprint(Message msg) throws MessagingException {
+		return dedup == null ? 0 : DedupIndex.fingerprint(msg, getSubjectPrefix());
+	}
+	
+	void recordCopied(Message msg) throws MessagingException {
+		if (dedup != null) {
+			dedup.add(DedupIndex.fingerprint(msg, getSubjectPrefix()));
+		}
+	}
+	
+	long highestUid(Folder src, Message[] msgs) throws MessagingException {
+		if (checkpoints == null || !(src instanceof UIDFolder)) {
+			return 0;
+		}
+		for (int i = msgs.length - 1; i >= 0; i--) {
+			if (!msgs[i].isExpunged()) {
+				return ((UIDFolder)src).getUID(msgs[i]);
+			}
+		}
+		return 0;
+	}
+	
+	void checkpoint(Folder src, long uid) throws MessagingException {
+		if (checkpoints == null || uid <= 0) {
+			return;
+		}
+		try {
+			checkpoints.setLastUid(source, ((UIDFolder)src).getUIDValidity(), uid);
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to update checkpoint file " + checkpoints.getFile(), e);
+		}
+	}
+	
+	int windowLimit(int start, int total) {
+		int window = getWindowSize();
+		return Math.min(start + (window > 0 ? window : DEFAULT_WINDOW), total);
+	}
+	
+	/**
+	 * Returns how many of the candidates make up the window, once their sizes are
+	 * known.
+	 */
+	private int windowEnd(Folder src, Message[] candidates) throws MessagingException {
+		prefetch(src, candidates);
 		
-		src.open(Folder.READ_WRITE);
-		Message[] msgs = src.getMessages();
-		LOG.info(msgs.length + " message" + (msgs.length == 1 ? "" : "s") + " found in source mailbox");
-		Message[] processed = processSourceMessages(msgs);
+		int end = 0;
+		long bytes = 0;
 		
-		if (processed.length > 0) {
-			LOG.info(processed.length + " message" + (processed.length == 1 ? "" : "s") + " will be moved");
+		while (end < candidates.length) {
+			Message msg = candidates[end];
+			if (batchBytes > 0 && msg != null && !msg.isExpunged()) {
+				int size = Math.max(msg.getSize(), 0);
+				// Always take at least one message, however large
+				if (end > 0 && bytes + size > batchBytes) {
+					break;
+				}
+				bytes += size;
+			}
+			end++;
+		}
+		return end;
+	}
+	
+	private static Message[] present(Message[] candidates, int count) {
+		List<Message> window = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++) {
+			if (candidates[i] != null) {
+				window.add(candidates[i]);
+			}
+		}
+		return window.toArray(new Message[window.size()]);
+	}
+	
+	void prefetch(Folder src, Message[] msgs) throws MessagingException {
+		List<Message> live = new ArrayList<Message>(msgs.length);
+		for (Message msg : msgs) {
+			if (msg != null && !msg.isExpunged()) {
+				live.add(msg);
+			}
+		}
+		if (live.isEmpty()) {
+			return;
+		}
+		
+		// One bulk FETCH for everything the filtering and batching steps look at
+		long timer = metrics.start();
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.SIZE);
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+		src.fetch(live.toArray(new Message[live.size()]), profile);
+		metrics.record(MoveMetrics.Phase.FETCH, timer);
+		LOG.debug("Prefetched headers for " + live.size() + " messages");
+	}
+	
+	private int moveWindow(Folder src, Folder dst, Message[] window, boolean expunge) throws MessagingException {
+		List<Message> unmodified = null;
+		if (canMoveOnServer(src)) {
+			unmodified = new ArrayList<Message>();
+		}
+		List<Message> moving = new ArrayList<Message>();
+		long timer = metrics.start();
+		Message[] processed = processSourceMessages(window, unmodified, moving);
+		metrics.record(MoveMetrics.Phase.REWRITE, timer);
+		int count = moving.size();
+		
+		if (count > 0) {
+			LOG.info(count + " message" + (count == 1 ? "" : "s") + " will be moved");
 			
-			dst.open(Folder.READ_WRITE);
-			src.copyMessages(processed, dst);
-			LOG.info("Messages moved successfully");
+			timer = metrics.start();
+			if (unmodified != null && !unmodified.isEmpty()) {
+				// UID MOVE expunges the originals, after which their headers can no longer be read
+				long[] keys = new long[unmodified.size()];
+				long[] fingerprints = new long[unmodified.size()];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = appendedKey(unmodified.get(i));
+					fingerprints[i] = fingerprint(unmodified.get(i));
+				}
+				if (moveOnServer((IMAPFolder)src, dst.getFullName(), unmodified, expunge)) {
+					moving.removeAll(unmodified);
+				}
+				for (int i = 0; i < keys.length; i++) {
+					recordAppended(keys[i], fingerprints[i]);
+				}
+			}
 			
-			markNonSkippedMessagesForDeletion(msgs);
-			LOG.info("Moved messages marked for deletion");
+			if (processed.length > 0) {
+				if (!dst.isOpen()) {
+					dst.open(Folder.READ_WRITE);
+				}
+				List<Message> accepted = new ArrayList<Message>();
+				try {
+					appending = true;
+					append(dst, processed, accepted);
+				}
+				finally {
+					release(processed);
+					for (Message msg : accepted) {
+						recordAppended(((RewrittenMessage)msg).getOriginal());
+					}
+				}
+			}
+			metrics.record(MoveMetrics.Phase.APPEND, timer);
+			metrics.addMessagesMoved(count);
+			LOG.info("Messages moved successfully");
 			
-			if (expunge) {
-				src.expunge();
-				LOG.info("Marked messages permanently deleted");
+			if (!moving.isEmpty()) {
+				long[] uids = markDeleted(src, moving.toArray(new Message[moving.size()]));
+				LOG.info("Moved messages marked for deletion");
+				
+				if (expunge) {
+					expungeMoved(src, uids);
+					LOG.info("Marked messages permanently deleted");
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Works out which connection a failure came from: the one the exception names,
+	 * else one that is no longer open, else the destination if messages were being
+	 * appended and the source if not.
+	 */
+	String failedConnection(MessagingException e, Folder src, Folder dst) {
+		for (Exception cause = e; cause != null; cause = cause instanceof MessagingException ? ((MessagingException)cause).getNextException() : null) {
+			if (cause instanceof FolderClosedException) {
+				Folder folder = ((FolderClosedException)cause).getFolder();
+				if (folder != null && folder == dst) {
+					return MoveMetrics.connection(MoveMetrics.DESTINATION, 0);
+				}
+				if (folder != null && folder == src) {
+					return MoveMetrics.connection(MoveMetrics.SOURCE, 0);
+				}
+			}
+			if (cause instanceof StoreClosedException) {
+				Store store = ((StoreClosedException)cause).getStore();
+				if (store != null && store == dst.getStore()) {
+					return MoveMetrics.connection(MoveMetrics.DESTINATION, 0);
+				}
+				if (store != null && store == src.getStore()) {
+					return MoveMetrics.connection(MoveMetrics.SOURCE, 0);
+				}
+			}
+		}
+		if (!src.getStore().isConnected()) {
+			return MoveMetrics.connection(MoveMetrics.SOURCE, 0);
+		}
+		if (!dst.getStore().isConnected()) {
+			return MoveMetrics.connection(MoveMetrics.DESTINATION, 0);
+		}
+		return MoveMetrics.connection(appending ? MoveMetrics.DESTINATION : MoveMetrics.SOURCE, 0);
+	}
+
+	/**
+	 * The connection behind the last failure in a move, or null if there was none.
+	 */
+	String getFailedConnection() {
+		return failedConnection;
+	}
+
+	void append(Folder dst, Message[] msgs, List<Message> accepted) throws MessagingException {
+		if (!source.isNioBackend()) {
+			appendFetched(dst, msgs, accepted);
+			return;
+		}
+		// Pipelined bodies are held in memory until appended, so only a batch's worth
+		// is fetched at a time
+		long limit = destination.getAppendBatchBytes() > 0 ? destination.getAppendBatchBytes() : source.getFetchSize();
+		int start = 0;
+		while (start < msgs.length) {
+			int end = start;
+			long bytes = 0;
+			while (end < msgs.length) {
+				Message original = msgs[end] instanceof RewrittenMessage ? ((RewrittenMessage)msgs[end]).getOriginal() : null;
+				long size = original != null && canFetchPipelined(original) ? Math.max(original.getSize(), 0) : 0;
+				// Always take at least one message, however large
+				if (end > start && bytes + size > limit) {
+					break;
+				}
+				bytes += size;
+				end++;
+			}
+			Message[] chunk = Arrays.copyOfRange(msgs, start, end);
+			fetchPipelined(chunk);
+			appendFetched(dst, chunk, accepted);
+			release(chunk);
+			start = end;
+		}
+	}
+
+	private void appendFetched(Folder dst, Message[] msgs, List<Message> accepted) throws MessagingException {
+		// What the server accepted is collected as it goes, so that a replay after a
+		// failure part way through sends only the rest
+		if (destination.isNioBackend()) {
+			destination.getNioConnection().append(dst.getFullName(), msgs, destination.getAppendBatchBytes(), destination.getAppendBufferSize(), spillDirectory, accepted);
+			return;
+		}
+		if (dst instanceof IMAPFolder) {
+			IMAPCommands.append((IMAPFolder)dst, msgs, destination.getAppendBatchBytes(), destination.getAppendBufferSize(), spillDirectory, accepted);
+			return;
+		}
+		for (Message msg : msgs) {
+			dst.appendMessages(new Message[] { msg });
+			accepted.add(msg);
+		}
+	}
+
+	private boolean canFetchPipelined(Message msg) throws MessagingException {
+		// Bodies fetched this way are held in memory, so larger ones are still streamed
+		return source.isNioBackend() && msg.getFolder() instanceof UIDFolder && msg.getSize() <= source.getFetchSize();
+	}
+
+	/**
+	 * Fetches the bodies of the messages that have no local copy yet on the source's
+	 * pipelined connection, all at once rather than each as it is appended. The
+	 * caller keeps the messages few enough for their bodies to be held in memory.
+	 */
+	void fetchPipelined(Message[] msgs) throws MessagingException {
+		List<RewrittenMessage> wanted = new ArrayList<RewrittenMessage>();
+		for (Message msg : msgs) {
+			if (msg instanceof RewrittenMessage) {
+				RewrittenMessage rewritten = (RewrittenMessage)msg;
+				if (!rewritten.hasLocalCopy() && canFetchPipelined(rewritten.getOriginal())) {
+					wanted.add(rewritten);
+				}
+			}
+		}
+		if (wanted.isEmpty()) {
+			return;
+		}
+		
+		long timer = metrics.start();
+		String mailbox = wanted.get(0).getOriginal().getFolder().getFullName();
+		long validity = ((UIDFolder)wanted.get(0).getOriginal().getFolder()).getUIDValidity();
+		long[] uids = new long[wanted.size()];
+		long bytes = 0;
+		for (int i = 0; i < uids.length; i++) {
+			// The pipelined mover's messages come from several connections to the same mailbox
+			UIDFolder folder = (UIDFolder)wanted.get(i).getOriginal().getFolder();
+			if (folder.getUIDValidity() != validity) {
+				throw new MessagingException("UIDVALIDITY of " + mailbox + " changed during the move");
+			}
+			uids[i] = folder.getUID(wanted.get(i).getOriginal());
+			bytes += Math.max(wanted.get(i).getOriginal().getSize(), 0);
+		}
+		// The connection checks the validity again once it has the mailbox selected
+		Map<Long, byte[]> bodies = source.getNioConnection().fetchBodies(mailbox, validity, uids, bytes);
+		for (int i = 0; i < uids.length; i++) {
+			byte[] raw = bodies.get(uids[i]);
+			if (raw == null) {
+				// Left for JavaMail to stream, which will report it properly if it has gone
+				continue;
+			}
+			RewrittenMessage rewritten = wanted.get(i);
+			rewritten.setFetched(raw);
+			String cacheKey = cacheKey(rewritten.getOriginal());
+			if (cacheKey != null) {
+				rewritten.store(messageCache, cacheKey);
+			}
+		}
+		metrics.record(MoveMetrics.Phase.FETCH, timer);
+		LOG.debug("Fetched " + bodies.size() + " of " + uids.length + " message bodies on the pipelined connection");
+	}
+
+	static void release(Message[] msgs) {
+		for (Message msg : msgs) {
+			if (msg instanceof RewrittenMessage) {
+				((RewrittenMessage)msg).release();
+			}
+		}
+	}
+
+	long[] markDeleted(Folder src, Message[] msgs) throws MessagingException {
+		long timer = metrics.start();
+		try {
+			if (!(src instanceof IMAPFolder)) {
+				src.setFlags(msgs, new Flags(Flags.Flag.DELETED), true);
+				return null;
 			}
+			IMAPFolder imapSrc = (IMAPFolder)src;
+			long[] uids = new long[msgs.length];
+			for (int i = 0; i < msgs.length; i++) {
+				uids[i] = imapSrc.getUID(msgs[i]);
+			}
+			IMAPCommands.uidStoreDeleted(imapSrc, uids);
+			return uids;
+		}
+		finally {
+			metrics.record(MoveMetrics.Phase.DELETE, timer);
+		}
+	}
+	
+	void expungeMoved(Folder src, long[] uids) throws MessagingException {
+		// Without UIDPLUS the only choice is to expunge everything marked deleted
+		long timer = metrics.start();
+		if (uids != null && IMAPCommands.hasCapability((IMAPFolder)src, IMAPCommands.CAPABILITY_UIDPLUS)) {
+			IMAPCommands.uidExpunge((IMAPFolder)src, uids);
 		}
 		else {
-			LOG.info("No messages to be moved");
+			src.expunge();
+		}
+		metrics.record(MoveMetrics.Phase.EXPUNGE, timer);
+	}
+	
+	private boolean canMoveOnServer(Folder src) {
+		return src instanceof IMAPFolder && source.isSameAccount(destination);
+	}
+	
+	private boolean moveOnServer(IMAPFolder src, String mailbox, List<Message> msgs, boolean expunge) throws MessagingException {
+		Message[] array = msgs.toArray(new Message[msgs.size()]);
+		long[] uids = new long[array.length];
+		Flags flags = new Flags();
+		for (int i = 0; i < array.length; i++) {
+			uids[i] = src.getUID(array[i]);
+			flags.add(array[i].getFlags());
+		}
+		
+		// The copies must arrive without flags, and the originals are about to be deleted anyway
+		flags.remove(Flags.Flag.DELETED);
+		flags.remove(Flags.Flag.RECENT);
+		if (flags.getSystemFlags().length > 0 || flags.getUserFlags().length > 0) {
+			src.setFlags(array, flags, false);
 		}
 		
-		LOG.info("Processing complete");
+		if (expunge && IMAPCommands.hasCapability(src, IMAPCommands.CAPABILITY_MOVE)) {
+			IMAPCommands.uidMove(src, uids, mailbox);
+			LOG.info(array.length + " unmodified message" + (array.length == 1 ? "" : "s") + " moved on server");
+			return true;
+		}
+		
+		IMAPCommands.uidCopy(src, uids, mailbox);
+		LOG.info(array.length + " unmodified message" + (array.length == 1 ? "" : "s") + " copied on server");
+		return false;
 	}
 
-	private Message[] processSourceMessages(Message[] original) throws MessagingException {
+	private Message[] processSourceMessages(Message[] original, List<Message> unmodified, List<Message> moving) throws MessagingException {
 		List<Message> processed = new ArrayList<Message>();
 		
 		for (int i = 0; i < original.length; i++) {
+			// Expunging an earlier window may have removed messages from this one
+			if (original[i].isExpunged()) {
+				continue;
+			}
 			MimeMessage srcMime = (MimeMessage)original[i];
-			MimeMessage dstMime = new MimeMessage(srcMime);
 			
-			String from = "UNKNOWN";
-			if (srcMime.getFrom() != null) {
-				from = srcMime.getFrom()[0].toString();
+			if (!shouldBeMoved(srcMime)) {
+				continue;
 			}
-			LOG.info("Message: " + srcMime.getSubject() + " (" + from + ", " + srcMime.getSentDate() + ")");
+			moving.add(srcMime);
 			
-			if (messageShouldBeSkipped(srcMime, true)) {
+			// Already copied by a run that stopped before it could delete the original
+			if (isDuplicate(srcMime)) {
 				continue;
 			}
-
-			// Update the Subject line, if necessary
-			dstMime.setSubject(getSubjectPrefix() + dstMime.getSubject());
-			
-			// Sanitize the addresses
-			replaceRecipient(Message.RecipientType.TO, dstMime);
-			replaceRecipient(Message.RecipientType.CC, dstMime);
-			replaceRecipient(Message.RecipientType.BCC, dstMime);
-			
-			// Clear any flags
-			dstMime.setFlags(dstMime.getFlags(), false);
 			
-			processed.add(dstMime);
+			if (unmodified != null && !needsRewrite(srcMime)) {
+				unmodified.add(srcMime);
+				continue;
+			}
 
+			processed.add(rewrite(srcMime));
 		}
 		return processed.toArray(new Message[processed.size()]);
 	}
 
-	private boolean messageShouldBeSkipped(MimeMessage msg, boolean doLog) throws MessagingException {
-		if (messageIsFromDestination(msg)) {
-			if (doLog) {
-				LOG.info("Message is from destination -- skipped");
-			}
+	boolean shouldBeMoved(MimeMessage srcMime) throws MessagingException {
+		String from = "UNKNOWN";
+		if (srcMime.getFrom() != null) {
+			from = srcMime.getFrom()[0].toString();
+		}
+		LOG.info("Message: " + srcMime.getSubject() + " (" + from + ", " + srcMime.getSentDate() + ")");
+		
+		// The server's FROM match is only by substring, so this is always checked here
+		if (messageIsFromDestination(srcMime)) {
+			LOG.info("Message is from destination -- skipped");
+			return false;
+		}
+		if (!verifySearch) {
 			return true;
 		}
+		if (criteria != null && !criteria.match(srcMime)) {
+			LOG.info("Message does not match search criteria -- skipped");
+			return false;
+		}
+		return !messageShouldBeSkipped(srcMime);
+	}
+	
+	private String cacheKey(Message msg) throws MessagingException {
+		// A UID only names the same message for as long as UIDVALIDITY is unchanged
+		if (messageCache == null || !(msg.getFolder() instanceof UIDFolder)) {
+			return null;
+		}
+		UIDFolder folder = (UIDFolder)msg.getFolder();
+		long uid = folder.getUID(msg);
+		return uid < 0 ? null : CheckpointStore.key(source, folder.getUIDValidity()) + ";UID=" + uid;
+	}
+
+	MimeMessage rewrite(MimeMessage srcMime) throws MessagingException {
+		// Only the headers are copied; the body is streamed from the source on append,
+		// and the copy starts with no flags set
+		RewrittenMessage dstMime = new RewrittenMessage(destination.getSession(), srcMime);
+		String cacheKey = cacheKey(srcMime);
+		boolean pipelined = canFetchPipelined(srcMime);
+		if (cacheKey != null && pipelined) {
+			// A miss is fetched later, together with the rest of the batch
+			dstMime.useCached(messageCache, cacheKey);
+		}
+		else if (cacheKey != null) {
+			dstMime.cache(messageCache, cacheKey);
+		}
+		else if (!pipelined && spillThreshold > 0 && srcMime.getSize() > spillThreshold) {
+			dstMime.spool(spillDirectory);
+		}
+		
+		// Update the Subject line, if necessary
+		if (getSubjectPrefix().length() > 0) {
+			String subject = dstMime.getSubject();
+			dstMime.setSubject(getSubjectPrefix() + (subject == null ? "" : subject));
+		}
 		
+		// Sanitize the addresses
+		replaceRecipient(Message.RecipientType.TO, dstMime);
+		replaceRecipient(Message.RecipientType.CC, dstMime);
+		replaceRecipient(Message.RecipientType.BCC, dstMime);
+		
+		return dstMime;
+	}
+
+	private boolean needsRewrite(MimeMessage msg) throws MessagingException {
+		if (getSubjectPrefix().length() > 0) {
+			return true;
+		}
+		
+		return getAddressRewriter().matches(msg.getAllRecipients());
+	}
+	
+	private boolean messageShouldBeSkipped(MimeMessage msg) throws MessagingException {
 		if (msg.getFlags().contains(Flag.DELETED)) {
-			if (doLog) {
-				LOG.info("Message already deleted -- skipped");
-			}
+			LOG.info("Message already deleted -- skipped");
 			return true;
 		}
 		
@@ -138,32 +935,26 @@ public class IMAPMover {
 	}
 	
 	private void replaceRecipient(RecipientType type, MimeMessage mime) throws MessagingException, AddressException {
-		Address[] toAddrs = mime.getRecipients(type);
-		if (toAddrs == null) {
-			return;
-		}
-		
-		for (int i = 0; i < toAddrs.length; i++) {
-			InternetAddress addr = (InternetAddress)toAddrs[i];
-			if (source.getEmailAddress().equals(addr.getAddress())) {
-				InternetAddress newTo = new InternetAddress(destination.getEmailAddress());
-				toAddrs[i] = newTo;
-			}
+		Address[] replaced = getAddressRewriter().rewrite(mime.getRecipients(type));
+		// An untouched header keeps its original formatting
+		if (replaced != null) {
+			mime.setRecipients(type, replaced);
 		}
-		mime.setRecipients(type, toAddrs);
 	}
 	
-	private void markNonSkippedMessagesForDeletion(Message[] original) throws MessagingException {
-		
-		for (int i = 0; i < original.length; i++) {
-			MimeMessage srcMime = (MimeMessage)original[i];
-			
-			if (!messageShouldBeSkipped(srcMime, false)) {
-				srcMime.setFlag(Flags.Flag.DELETED, true);
-			}
+	synchronized AddressRewriter getAddressRewriter() throws AddressException {
+		// The source address always maps to the destination one unless a rule says otherwise
+		String addresses = source.getEmailAddress() + " " + destination.getEmailAddress();
+		if (rewriter == null || !addresses.equals(rewriterFor)) {
+			Map<String, String> rules = new LinkedHashMap<String, String>();
+			rules.put(source.getEmailAddress(), destination.getEmailAddress());
+			rules.putAll(addressRules);
+			rewriter = new AddressRewriter(rules);
+			rewriterFor = addresses;
 		}
+		return rewriter;
 	}
-
+	
 	public IMAPClient getSource() {
 		return source;
 	}
@@ -188,8 +979,174 @@ public class IMAPMover {
 		return subjectPrefix == null ? "" : subjectPrefix;
 	}
 
-	public static void main(String[] args) throws MessagingException, FileNotFoundException, IOException {
+	public void setBatchSize(int messages) {
+		batchSize = messages;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchBytes(long bytes) {
+		batchBytes = bytes;
+	}
+
+	public long getBatchBytes() {
+		return batchBytes;
+	}
+
+	public void setAdaptiveBatchSize(AdaptiveBatchSize adaptive) {
+		adaptiveBatch = adaptive;
+	}
+
+	public AdaptiveBatchSize getAdaptiveBatchSize() {
+		return adaptiveBatch;
+	}
+
+	public void setRetryPolicy(RetryPolicy policy) {
+		retry = policy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retry;
+	}
+
+	public void setSpillThreshold(long bytes) {
+		spillThreshold = bytes;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillDirectory(File directory) {
+		spillDirectory = directory;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public void setMessageCache(MessageCache cache) {
+		messageCache = cache;
+	}
+
+	public MessageCache getMessageCache() {
+		return messageCache;
+	}
+
+	public void setSearchCriteria(SearchTerm term) {
+		criteria = term;
+	}
+
+	public SearchTerm getSearchCriteria() {
+		return criteria;
+	}
+
+	public void setVerifySearch(boolean verify) {
+		verifySearch = verify;
+	}
+
+	public boolean isVerifySearch() {
+		return verifySearch;
+	}
+
+	public void setMetrics(MoveMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public MoveMetrics getMetrics() {
+		return metrics;
+	}
+
+	public synchronized void addAddressRule(String pattern, String replacement) {
+		addressRules.put(pattern, replacement);
+		rewriter = null;
+	}
+
+	public Map<String, String> getAddressRules() {
+		return Collections.unmodifiableMap(addressRules);
+	}
+
+	public void setDedupIndex(DedupIndex index) {
+		dedup = index;
+	}
+
+	public DedupIndex getDedupIndex() {
+		return dedup;
+	}
+
+	public void setCheckpointStore(CheckpointStore store) {
+		checkpoints = store;
+	}
+
+	public CheckpointStore getCheckpointStore() {
+		return checkpoints;
+	}
+
+	public static IMAPMover fromProperties(Properties props) throws IOException {
+		IMAPClient src = new IMAPClient();
+		src.initialiseFromProperties(props, "source.");
+		
+		IMAPClient dest = new IMAPClient();
+		dest.initialiseFromProperties(props, "destination.");
+		
+		IMAPMover mover = new IMAPMover(src, dest);
+		mover.setSubjectPrefix(props.getProperty("subject.prefix", ""));
+		mover.setBatchSize(Integer.parseInt(props.getProperty("batch.size", "0")));
+		mover.setBatchBytes(Long.parseLong(props.getProperty("batch.bytes", "0")));
+		if (Boolean.parseBoolean(props.getProperty("batch.adaptive", "false"))) {
+			int initial = mover.getBatchSize() > 0 ? mover.getBatchSize() : AdaptiveBatchSize.DEFAULT_INITIAL;
+			mover.setAdaptiveBatchSize(new AdaptiveBatchSize(initial,
+					Integer.parseInt(props.getProperty("batch.min", "1")),
+					Integer.parseInt(props.getProperty("batch.max", Integer.toString(AdaptiveBatchSize.DEFAULT_MAXIMUM)))));
+		}
+		mover.setRetryPolicy(new RetryPolicy(Integer.parseInt(props.getProperty("retry.max", Integer.toString(RetryPolicy.DEFAULT_MAX_RETRIES))),
+				Long.parseLong(props.getProperty("retry.delay", Long.toString(RetryPolicy.DEFAULT_BASE_DELAY))),
+				Long.parseLong(props.getProperty("retry.maxDelay", Long.toString(RetryPolicy.DEFAULT_MAX_DELAY)))));
+		mover.setSpillThreshold(Long.parseLong(props.getProperty("spill.threshold", "0")));
+		if (props.getProperty("spill.dir") != null) {
+			mover.setSpillDirectory(new File(props.getProperty("spill.dir")));
+		}
+		mover.setSearchCriteria(SearchCriteria.fromProperties(props));
+		mover.setVerifySearch(Boolean.parseBoolean(props.getProperty("search.verify", "false")));
+		if (props.getProperty("cache.dir") != null) {
+			mover.setMessageCache(MessageCache.open(new File(props.getProperty("cache.dir")),
+					Long.parseLong(props.getProperty("cache.maxBytes", Long.toString(MessageCache.DEFAULT_MAX_BYTES)))));
+		}
+		if (props.getProperty("checkpoint.file") != null) {
+			mover.setCheckpointStore(new CheckpointStore(new File(props.getProperty("checkpoint.file"))));
+		}
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith("rewrite.")) {
+				mover.addAddressRule(key.substring("rewrite.".length()), props.getProperty(key));
+			}
+		}
+		if (props.getProperty("dedup.file") != null) {
+			mover.setDedupIndex(new DedupIndex(new File(props.getProperty("dedup.file"))));
+		}
+		if (props.getProperty("metrics.name") != null) {
+			mover.setMetrics(new MoveMetrics(mover, props.getProperty("metrics.name")));
+		}
+		if (Boolean.parseBoolean(props.getProperty("metrics.jmx", "false"))) {
+			mover.getMetrics().register();
+		}
+		if (props.getProperty("metrics.file") != null) {
+			mover.getMetrics().startDump(new File(props.getProperty("metrics.file")), Long.parseLong(props.getProperty("metrics.interval", "60000")));
+		}
+		return mover;
+	}
+
+	public int run(boolean expunge) throws MessagingException {
+		if (source.getConnections() > 1 || destination.getConnections() > 1) {
+			return new PipelinedMover(this).move(expunge);
+		}
+		return move(expunge);
+	}
+
+	public static void main(String[] args) throws MessagingException, FileNotFoundException, IOException, InterruptedException {
 		IMAPMover mover = null;
+		IdleMover daemon = null;
 		
 		if (args.length == 3) {
 			mover = new IMAPMover(new IMAPClient(args[0]), new IMAPClient(args[1]));
@@ -201,14 +1158,22 @@ public class IMAPMover {
 			props.load(stream);
 			stream.close();
 			
-			IMAPClient src = new IMAPClient();
-			src.initialiseFromProperties(props, "source.");
-			
-			IMAPClient dest = new IMAPClient();
-			dest.initialiseFromProperties(props, "destination.");
+			if (props.getProperty(JobScheduler.JOBS) != null) {
+				List<JobScheduler.Result> results = new JobScheduler(props).run();
+				System.exit(JobScheduler.failures(results) == 0 ? 0 : 1);
+			}
+			if (Boolean.parseBoolean(props.getProperty(FolderTreeMover.TREE, "false"))) {
+				List<JobScheduler.Result> results = new FolderTreeMover(props).run();
+				System.exit(JobScheduler.failures(results) == 0 ? 0 : 1);
+			}
 			
-			mover = new IMAPMover(src, dest);
-			mover.setSubjectPrefix(props.getProperty("subject.prefix", ""));
+			mover = fromProperties(props);
+			if (Boolean.parseBoolean(props.getProperty("daemon", "false"))) {
+				daemon = new IdleMover(mover);
+				daemon.setPollInterval(Long.parseLong(props.getProperty("daemon.pollInterval", Long.toString(IdleMover.DEFAULT_POLL_INTERVAL))));
+				daemon.setIdleTimeout(Long.parseLong(props.getProperty("daemon.idleTimeout", Long.toString(IdleMover.DEFAULT_IDLE_TIMEOUT))));
+				daemon.setReconnectDelay(Long.parseLong(props.getProperty("daemon.reconnectDelay", Long.toString(IdleMover.DEFAULT_RECONNECT_DELAY))));
+			}
 		}
 		else {
 			System.err.println("Usage: IMAPMover src-imap-url dest-imap-url prefix");
@@ -216,7 +1181,23 @@ public class IMAPMover {
 			System.exit(1);
 		}
 		
-		mover.move(true);
+		if (daemon != null) {
+			final IdleMover running = daemon;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					running.stop();
+				}
+			});
+			daemon.run();
+		}
+		else {
+			try {
+				mover.run(true);
+			}
+			finally {
+				mover.getMetrics().close();
+			}
+		}
 	}
 
 }
@@ -0,0 +1,193 @@
+package uk.org.winton.imapmove;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Keeps the source and destination connections open and moves new messages as they
+ * arrive. A separate read-only connection to the source folder waits with IMAP IDLE,
+ * or polls with NOOP where the server does not support it. Any failure drops both
+ * connections and starts again from a fresh session after a short delay.
+ */
+public class IdleMover {
+	private static final Logger LOG = Logger.getLogger(IdleMover.class);
+
+	static final String CAPABILITY_IDLE = "IDLE";
+	static final long DEFAULT_POLL_INTERVAL = 1000;
+	static final long DEFAULT_IDLE_TIMEOUT = 20 * 60 * 1000;
+	static final long DEFAULT_RECONNECT_DELAY = 10 * 1000;
+	// The watched folder has a source connection of its own, after the mover's
+	static final int WATCH_CONNECTION = 1;
+
+	private final IMAPMover mover;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+	private volatile boolean running;
+	private volatile Folder watch;
+
+	public IdleMover(IMAPMover mover) {
+		this.mover = mover;
+	}
+
+	public void run() throws MessagingException {
+		running = true;
+		LOG.info("Waiting for new messages in " + mover.getSource().getMailbox());
+		try {
+			while (running) {
+				try {
+					// Counting first means anything arriving during the move is not missed,
+					// and what the move itself expunged is allowed for
+					int known = openWatch().getMessageCount();
+					int moved = mover.move(true);
+					waitForArrivals(known - moved);
+				}
+				catch (MessagingException e) {
+					if (!running) {
+						break;
+					}
+					LOG.warn("Move failed: " + e.getMessage() + " -- reconnecting in " + reconnectDelay + "ms");
+					mover.getMetrics().recordRetry(failedConnection());
+					disconnect();
+					pause(reconnectDelay);
+				}
+			}
+		}
+		finally {
+			disconnect();
+			timer.shutdownNow();
+		}
+		LOG.info("Stopped waiting for new messages");
+	}
+
+	public void stop() {
+		running = false;
+		wake();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Names the connection behind a failure: the watched folder's own if that has
+	 * dropped, or else whichever the mover found.
+	 */
+	private String failedConnection() {
+		Folder folder = watch;
+		if (folder != null && !folder.isOpen()) {
+			return MoveMetrics.connection(MoveMetrics.SOURCE, WATCH_CONNECTION);
+		}
+		String connection = mover.getFailedConnection();
+		return connection != null ? connection : MoveMetrics.connection(MoveMetrics.SOURCE, 0);
+	}
+
+	private Folder openWatch() throws MessagingException {
+		Folder folder = watch;
+		if (folder == null) {
+			folder = mover.getSource().getMailboxFolder();
+			folder.open(Folder.READ_ONLY);
+			watch = folder;
+		}
+		return folder;
+	}
+
+	private void waitForArrivals(int known) throws MessagingException {
+		Folder folder = openWatch();
+		if (!running || folder.getMessageCount() != known) {
+			return;
+		}
+
+		if (folder instanceof IMAPFolder && IMAPCommands.hasCapability((IMAPFolder)folder, CAPABILITY_IDLE)) {
+			// Servers may silently drop an IDLE after 30 minutes, so it is restarted well before that
+			ScheduledFuture<?> restart = timer.schedule(new Runnable() {
+				public void run() {
+					wake();
+				}
+			}, idleTimeout, TimeUnit.MILLISECONDS);
+			try {
+				((IMAPFolder)folder).idle(true);
+			}
+			finally {
+				restart.cancel(false);
+			}
+		}
+		else {
+			while (running && folder.getMessageCount() == known) {
+				pause(pollInterval);
+			}
+		}
+	}
+
+	private void wake() {
+		// Any command from another thread ends an IDLE in progress
+		Folder folder = watch;
+		if (folder != null) {
+			try {
+				folder.getMessageCount();
+			}
+			catch (MessagingException e) {
+				LOG.debug("Failed to interrupt IDLE: " + e.getMessage());
+			}
+		}
+	}
+
+	private void disconnect() {
+		Folder folder = watch;
+		watch = null;
+		if (folder != null && folder.isOpen()) {
+			try {
+				folder.close(false);
+			}
+			catch (MessagingException e) {
+				LOG.debug("Failed to close watched folder: " + e.getMessage());
+			}
+		}
+		mover.getSource().disconnect();
+		mover.getDestination().disconnect();
+	}
+
+	private void pause(long millis) throws MessagingException {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			running = false;
+			throw new MessagingException("Interrupted while waiting for new messages", e);
+		}
+	}
+
+	public void setPollInterval(long millis) {
+		pollInterval = Math.max(1, millis);
+	}
+
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public void setIdleTimeout(long millis) {
+		idleTimeout = Math.max(1, millis);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setReconnectDelay(long millis) {
+		reconnectDelay = Math.max(0, millis);
+	}
+
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+}
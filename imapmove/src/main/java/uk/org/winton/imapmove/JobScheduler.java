@@ -0,0 +1,256 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs many moves from a single properties file. The <code>jobs</code> property names
+ * the jobs, and each job is configured exactly like a single move, with keys prefixed
+ * by the job name overriding the unprefixed defaults. Jobs run on a fixed number of
+ * threads, never more than <code>jobs.maxPerHost</code> at once against any one
+ * server, and jobs for the same account share one session and pool of logged-in
+ * connections.
+ */
+public class JobScheduler {
+	private static final Logger LOG = Logger.getLogger(JobScheduler.class);
+
+	static final String JOBS = "jobs";
+	static final String JOBS_THREADS = "jobs.threads";
+	static final String JOBS_MAX_PER_HOST = "jobs.maxPerHost";
+	static final int DEFAULT_THREADS = 4;
+	static final int DEFAULT_MAX_PER_HOST = 2;
+
+	private final List<Job> jobs = new ArrayList<Job>();
+	private final Map<String, Semaphore> hosts = new HashMap<String, Semaphore>();
+	private final Map<String, IMAPClient> accounts = new HashMap<String, IMAPClient>();
+	private int threads;
+	private int maxPerHost;
+
+	public JobScheduler(Properties props) throws IOException {
+		threads = Math.max(1, Integer.parseInt(props.getProperty(JOBS_THREADS, Integer.toString(DEFAULT_THREADS))));
+		maxPerHost = Math.max(1, Integer.parseInt(props.getProperty(JOBS_MAX_PER_HOST, Integer.toString(DEFAULT_MAX_PER_HOST))));
+		for (String name : props.getProperty(JOBS, "").split("[,\\s]+")) {
+			if (name.length() > 0) {
+				addJob(name, IMAPMover.fromProperties(jobProperties(props, name)));
+			}
+		}
+	}
+
+	public void addJob(String name, IMAPMover mover) {
+		share(mover.getSource());
+		share(mover.getDestination());
+		jobs.add(new Job(name, mover));
+	}
+
+	static Properties jobProperties(Properties props, String name) {
+		Properties merged = new Properties();
+		String prefix = name + ".";
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith(prefix)) {
+				merged.setProperty(key, props.getProperty(key));
+			}
+		}
+		merged.setProperty("metrics.name", name);
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				merged.setProperty(key.substring(prefix.length()), props.getProperty(key));
+			}
+		}
+		return merged;
+	}
+
+	private void share(IMAPClient client) {
+		// Matches IMAPClient.isSameAccount: only the host name ignores case
+		String host = client.getHost().toLowerCase(Locale.ROOT);
+		if (client.getUsername() != null) {
+			String account = client.getProtocol() + "://" + client.getUsername() + "@" + host + ":" + client.getPort();
+			IMAPClient owner = accounts.get(account);
+			if (owner == null) {
+				accounts.put(account, client);
+			}
+			else {
+				client.shareConnectionWith(owner);
+			}
+		}
+		if (!hosts.containsKey(host)) {
+			hosts.put(host, new Semaphore(maxPerHost, true));
+		}
+	}
+
+	public List<Result> run() throws InterruptedException {
+		LOG.info("Running " + jobs.size() + " job" + (jobs.size() == 1 ? "" : "s") + " on " + threads + " thread" + (threads == 1 ? "" : "s"));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (Job job : jobs) {
+				futures.add(pool.submit(job));
+			}
+			for (Future<Result> future : futures) {
+				try {
+					results.add(future.get());
+				}
+				catch (ExecutionException e) {
+					// Jobs catch their own failures, so this is only reached for errors
+					throw new IllegalStateException("Job failed unexpectedly", e.getCause());
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+			// Only jobs that never got to run are left to release
+			for (Job job : jobs) {
+				job.release();
+			}
+		}
+		report(results);
+		return results;
+	}
+
+	public static int failures(List<Result> results) {
+		int failed = 0;
+		for (Result result : results) {
+			if (result.getError() != null) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	private void report(List<Result> results) {
+		int moved = 0;
+		for (Result result : results) {
+			LOG.info(result);
+			moved += result.getMoved();
+		}
+		LOG.info(results.size() + " job" + (results.size() == 1 ? "" : "s") + " complete: " + failures(results) + " failed, "
+				+ moved + " message" + (moved == 1 ? "" : "s") + " moved");
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int count) {
+		threads = Math.max(1, count);
+	}
+
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	public int getJobCount() {
+		return jobs.size();
+	}
+
+	private class Job implements Callable<Result> {
+		private final String name;
+		private final IMAPMover mover;
+		private boolean released = false;
+
+		Job(String name, IMAPMover mover) {
+			this.name = name;
+			this.mover = mover;
+		}
+
+		synchronized void release() {
+			// The last job for an account to finish closes its connections
+			if (!released) {
+				released = true;
+				mover.getSource().release();
+				mover.getDestination().release();
+			}
+		}
+
+		public Result call() throws InterruptedException {
+			// Always take host permits in the same order so two jobs cannot deadlock
+			TreeSet<String> needed = new TreeSet<String>();
+			needed.add(mover.getSource().getHost().toLowerCase(Locale.ROOT));
+			needed.add(mover.getDestination().getHost().toLowerCase(Locale.ROOT));
+			List<Semaphore> held = new ArrayList<Semaphore>();
+			try {
+				for (String host : needed) {
+					Semaphore permit = hosts.get(host);
+					permit.acquire();
+					held.add(permit);
+				}
+				LOG.info("Starting job " + name);
+				long start = System.currentTimeMillis();
+				try {
+					int moved = mover.run(true);
+					return new Result(name, moved, System.currentTimeMillis() - start, null);
+				}
+				catch (MessagingException e) {
+					LOG.error("Job " + name + " failed: " + e.getMessage());
+					return new Result(name, 0, System.currentTimeMillis() - start, e);
+				}
+				catch (RuntimeException e) {
+					LOG.error("Job " + name + " failed", e);
+					return new Result(name, 0, System.currentTimeMillis() - start, e);
+				}
+				finally {
+					mover.getMetrics().close();
+					release();
+				}
+			}
+			finally {
+				Collections.reverse(held);
+				for (Semaphore permit : held) {
+					permit.release();
+				}
+			}
+		}
+	}
+
+	public static class Result {
+		private final String name;
+		private final int moved;
+		private final long millis;
+		private final Exception error;
+
+		Result(String name, int moved, long millis, Exception error) {
+			this.name = name;
+			this.moved = moved;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMoved() {
+			return moved;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+		public String toString() {
+			return "Job " + name + ": " + (error == null ? "OK" : "FAILED (" + error.getMessage() + ")") + ", "
+					+ moved + " message" + (moved == 1 ? "" : "s") + " moved in " + millis + "ms";
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package uk.org.winton.imapmove;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts timings into fixed millisecond buckets, cheaply enough to be updated from
+ * every stage of a move without locking.
+ */
+public class LatencyHistogram {
+
+	static final long[] BUCKET_LIMITS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		long millis = nanos / 1000000;
+		int bucket = 0;
+		while (bucket < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalMillis() {
+		return totalNanos.get() / 1000000;
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+	}
+
+	public long getMaxMillis() {
+		return maxNanos.get() / 1000000;
+	}
+
+	public long[] getBuckets() {
+		long[] copy = new long[buckets.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return copy;
+	}
+
+	public long getPercentileMillis(double percentile) {
+		// Reported as the upper limit of the bucket the percentile falls in
+		long[] counts = getBuckets();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+			seen += counts[i];
+			if (seen >= wanted) {
+				return BUCKET_LIMITS[i];
+			}
+		}
+		return getMaxMillis();
+	}
+}
@@ -0,0 +1,289 @@
+package uk.org.winton.imapmove;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Raw source messages kept on local disk, so that a retried or repeated move reads
+ * them from there rather than from the source server. Each message is stored once,
+ * in a file named by the SHA-256 of its content, and found through a key made from
+ * the source mailbox, its UIDVALIDITY and the message's UID. The keys are kept in an
+ * append-only index file.
+ * <p>
+ * The total size is held under a limit by deleting the least recently used files,
+ * apart from those still in use by a message waiting to be appended. Caches are
+ * opened through {@link #open(File, long)}, which returns the same one for a given
+ * directory throughout the JVM so that concurrent jobs can share it.
+ */
+public class MessageCache {
+	private static final Logger LOG = Logger.getLogger(MessageCache.class);
+
+	static final String INDEX = "index.log";
+	static final String SUFFIX = ".eml";
+	static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	private static final Map<File, MessageCache> OPEN = new HashMap<File, MessageCache>();
+
+	private final File directory;
+	private long maxBytes;
+	private long bytes = 0;
+	private final Map<String, String> keys = new HashMap<String, String>();
+	// Access ordered, so iteration starts with the least recently used
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private final Map<String, Integer> pinned = new HashMap<String, Integer>();
+	private Writer index;
+	private long hits = 0;
+	private long misses = 0;
+
+	public static synchronized MessageCache open(File directory, long maxBytes) throws IOException {
+		File canonical = directory.getCanonicalFile();
+		MessageCache cache = OPEN.get(canonical);
+		if (cache == null) {
+			cache = new MessageCache(canonical, maxBytes);
+			OPEN.put(canonical, cache);
+		}
+		else {
+			cache.setMaxBytes(Math.min(cache.getMaxBytes(), maxBytes));
+		}
+		return cache;
+	}
+
+	MessageCache(File directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create cache directory " + directory);
+		}
+		load();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long limit) {
+		maxBytes = limit;
+		evict();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the cached file for the key, or null. A file returned is kept until it
+	 * is handed back to {@link #release(File)}.
+	 */
+	public synchronized File get(String key) {
+		String hash = keys.get(key);
+		if (hash == null || entries.get(hash) == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		File file = file(hash);
+		file.setLastModified(System.currentTimeMillis());
+		pin(hash);
+		return file;
+	}
+
+	public File createTempFile() throws IOException {
+		return File.createTempFile("fetch", ".tmp", directory);
+	}
+
+	/**
+	 * Moves a file written by the caller into the cache under the key, and returns
+	 * the cached file. As with {@link #get(String)}, it must be released after use.
+	 */
+	public File add(String key, File temp) throws IOException {
+		String hash = digest(temp);
+		synchronized (this) {
+			File file = file(hash);
+			if (entries.get(hash) != null) {
+				// The same content under another key, from another folder or account
+				temp.delete();
+				file.setLastModified(System.currentTimeMillis());
+			}
+			else {
+				if (!temp.renameTo(file)) {
+					temp.delete();
+					throw new IOException("Unable to move " + temp + " to " + file);
+				}
+				entries.put(hash, file.length());
+				bytes += file.length();
+			}
+			if (!hash.equals(keys.put(key, hash))) {
+				index.write(hash + " " + key + "\n");
+				index.flush();
+			}
+			pin(hash);
+			evict();
+			return file;
+		}
+	}
+
+	public synchronized void release(File file) {
+		String name = file.getName();
+		String hash = name.substring(0, name.length() - SUFFIX.length());
+		Integer count = pinned.get(hash);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			pinned.put(hash, count - 1);
+		}
+		else {
+			pinned.remove(hash);
+			evict();
+		}
+	}
+
+	private void pin(String hash) {
+		Integer count = pinned.get(hash);
+		pinned.put(hash, count == null ? 1 : count + 1);
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			if (pinned.containsKey(entry.getKey())) {
+				continue;
+			}
+			file(entry.getKey()).delete();
+			bytes -= entry.getValue();
+			eldest.remove();
+			LOG.debug("Evicted " + entry.getKey() + " (" + entry.getValue() + " bytes) from message cache");
+		}
+	}
+
+	private File file(String hash) {
+		return new File(directory, hash + SUFFIX);
+	}
+
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		// Oldest first, so that the access order starts out as the order of last use
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				// Left behind by a run that stopped part way through a fetch
+				file.delete();
+			}
+			else if (name.endsWith(SUFFIX)) {
+				entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+				bytes += file.length();
+			}
+		}
+
+		File log = new File(directory, INDEX);
+		int lines = 0;
+		if (log.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int space = line.indexOf(' ');
+					if (space > 0) {
+						keys.put(line.substring(space + 1), line.substring(0, space));
+						lines++;
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		keys.values().retainAll(entries.keySet());
+		if (lines > keys.size() * 2) {
+			compact(log);
+		}
+		index = new OutputStreamWriter(new FileOutputStream(log, true), "UTF-8");
+		LOG.info("Message cache " + directory + " holds " + entries.size() + " messages (" + bytes + " bytes)");
+		evict();
+	}
+
+	private void compact(File log) throws IOException {
+		// Entries for evicted files and replaced keys are dropped
+		File temp = new File(directory, INDEX + ".new");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for (Map.Entry<String, String> entry : keys.entrySet()) {
+				out.write(entry.getValue() + " " + entry.getKey() + "\n");
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(log)) {
+			log.delete();
+			if (!temp.renameTo(log)) {
+				throw new IOException("Unable to replace " + log);
+			}
+		}
+	}
+
+	private static String digest(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available", e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				digest.update(buf, 0, len);
+			}
+		}
+		finally {
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+}
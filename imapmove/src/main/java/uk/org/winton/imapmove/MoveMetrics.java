@@ -0,0 +1,307 @@
+package uk.org.winton.imapmove;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and timings for one {@link IMAPMover}. Each phase of a move has its own
+ * latency histogram; byte and round trip counts come from the clients' traffic
+ * counters. The figures can be registered with JMX and written periodically to a
+ * file as one JSON object per line.
+ */
+public class MoveMetrics implements MoveMetricsMXBean {
+	private static final Logger LOG = Logger.getLogger(MoveMetrics.class);
+
+	static final String OBJECT_NAME = "uk.org.winton.imapmove:type=MoveMetrics,name=";
+	public static final String SOURCE = "source";
+	public static final String DESTINATION = "destination";
+
+	public enum Phase {
+		CONNECT, SEARCH, FETCH, REWRITE, APPEND, DELETE, EXPUNGE
+	}
+
+	private final IMAPMover mover;
+	private final String name;
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+	private final ConcurrentMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong messagesMoved = new AtomicLong();
+	private volatile long started;
+	private long baseRoundTrips;
+	private long baseBytesRead;
+	private long baseBytesWritten;
+	private long baseCompressed;
+	private long baseUncompressed;
+	private ObjectName registered;
+	private ScheduledExecutorService dumper;
+	private File dumpFile;
+
+	public MoveMetrics(IMAPMover mover, String name) {
+		this.mover = mover;
+		this.name = name;
+		reset();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void record(Phase phase, long start) {
+		phases.get(phase).record(System.nanoTime() - start);
+	}
+
+	public LatencyHistogram getPhase(Phase phase) {
+		return phases.get(phase);
+	}
+
+	public void addMessagesMoved(long count) {
+		messagesMoved.addAndGet(count);
+	}
+
+	/**
+	 * Names a connection for the retry counts: the side, source or destination, and
+	 * its index on that side, so that a flapping connection stands out.
+	 */
+	public static String connection(String side, int index) {
+		return side + "-" + index;
+	}
+
+	public void recordRetry(String connection) {
+		AtomicLong counter = retries.get(connection);
+		if (counter == null) {
+			retries.putIfAbsent(connection, new AtomicLong());
+			counter = retries.get(connection);
+		}
+		counter.incrementAndGet();
+	}
+
+	public synchronized void reset() {
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+		retries.clear();
+		messagesMoved.set(0);
+		baseRoundTrips = sourceTraffic().getRoundTrips() + destinationTraffic().getRoundTrips();
+		baseBytesRead = sourceTraffic().getBytesRead() + destinationTraffic().getBytesRead();
+		baseBytesWritten = sourceTraffic().getBytesWritten() + destinationTraffic().getBytesWritten();
+		baseCompressed = sourceTraffic().getCompressedBytes() + destinationTraffic().getCompressedBytes();
+		baseUncompressed = sourceTraffic().getUncompressedBytes() + destinationTraffic().getUncompressedBytes();
+		started = System.currentTimeMillis();
+	}
+
+	public long getMessagesMoved() {
+		return messagesMoved.get();
+	}
+
+	public double getMessagesPerSecond() {
+		long elapsed = System.currentTimeMillis() - started;
+		return elapsed <= 0 ? 0 : messagesMoved.get() * 1000.0 / elapsed;
+	}
+
+	public synchronized long getBytesRead() {
+		return sourceTraffic().getBytesRead() + destinationTraffic().getBytesRead() - baseBytesRead;
+	}
+
+	public synchronized long getBytesWritten() {
+		return sourceTraffic().getBytesWritten() + destinationTraffic().getBytesWritten() - baseBytesWritten;
+	}
+
+	public synchronized long getRoundTrips() {
+		return sourceTraffic().getRoundTrips() + destinationTraffic().getRoundTrips() - baseRoundTrips;
+	}
+
+	public synchronized double getCompressionRatio() {
+		// Only connections that negotiated compression contribute
+		long compressed = sourceTraffic().getCompressedBytes() + destinationTraffic().getCompressedBytes() - baseCompressed;
+		long uncompressed = sourceTraffic().getUncompressedBytes() + destinationTraffic().getUncompressedBytes() - baseUncompressed;
+		return compressed <= 0 ? 0 : (double)uncompressed / compressed;
+	}
+
+	public Map<String, Long> getRetries() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : retries.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public synchronized Map<String, Long> getPhaseCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Phase phase : Phase.values()) {
+			counts.put(phase.name(), phases.get(phase).getCount());
+		}
+		return counts;
+	}
+
+	public synchronized Map<String, Double> getPhaseMeanMillis() {
+		Map<String, Double> means = new LinkedHashMap<String, Double>();
+		for (Phase phase : Phase.values()) {
+			means.put(phase.name(), phases.get(phase).getMeanMillis());
+		}
+		return means;
+	}
+
+	public synchronized Map<String, Long> getPhaseMaxMillis() {
+		Map<String, Long> maxima = new LinkedHashMap<String, Long>();
+		for (Phase phase : Phase.values()) {
+			maxima.put(phase.name(), phases.get(phase).getMaxMillis());
+		}
+		return maxima;
+	}
+
+	public synchronized Map<String, Long> getPhase99thPercentileMillis() {
+		Map<String, Long> percentiles = new LinkedHashMap<String, Long>();
+		for (Phase phase : Phase.values()) {
+			percentiles.put(phase.name(), phases.get(phase).getPercentileMillis(99));
+		}
+		return percentiles;
+	}
+
+	public synchronized String getSnapshot() {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"time\":").append(System.currentTimeMillis());
+		json.append(",\"name\":").append(quote(name));
+		json.append(",\"messages\":").append(getMessagesMoved());
+		json.append(",\"messagesPerSecond\":").append(String.format(Locale.ROOT, "%.3f", getMessagesPerSecond()));
+		json.append(",\"bytesRead\":").append(getBytesRead());
+		json.append(",\"bytesWritten\":").append(getBytesWritten());
+		json.append(",\"roundTrips\":").append(getRoundTrips());
+		json.append(",\"compressionRatio\":").append(String.format(Locale.ROOT, "%.3f", getCompressionRatio()));
+		json.append(",\"retries\":{");
+		String separator = "";
+		for (Map.Entry<String, Long> entry : getRetries().entrySet()) {
+			json.append(separator).append(quote(entry.getKey())).append(':').append(entry.getValue());
+			separator = ",";
+		}
+		json.append("},\"phases\":{");
+		separator = "";
+		for (Phase phase : Phase.values()) {
+			LatencyHistogram histogram = phases.get(phase);
+			json.append(separator).append(quote(phase.name().toLowerCase())).append(":{");
+			json.append("\"count\":").append(histogram.getCount());
+			json.append(",\"totalMillis\":").append(histogram.getTotalMillis());
+			json.append(",\"maxMillis\":").append(histogram.getMaxMillis());
+			json.append(",\"buckets\":[");
+			long[] buckets = histogram.getBuckets();
+			for (int i = 0; i < buckets.length; i++) {
+				json.append(i == 0 ? "" : ",").append(buckets[i]);
+			}
+			json.append("]}");
+			separator = ",";
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+	public synchronized void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			registered = new ObjectName(OBJECT_NAME + ObjectName.quote(name));
+			server.registerMBean(this, registered);
+		}
+		catch (JMException e) {
+			LOG.warn("Unable to register metrics with JMX: " + e.getMessage());
+			registered = null;
+		}
+	}
+
+	public synchronized void startDump(final File file, long intervalMillis) {
+		dumpFile = file;
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "metrics-" + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				dump(file);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		LOG.info("Writing metrics to " + file + " every " + intervalMillis + "ms");
+	}
+
+	public void dump(File file) {
+		String line = getSnapshot() + "\n";
+		// Several movers may share one file, so whole lines are written under a common lock
+		synchronized (MoveMetrics.class) {
+			try {
+				OutputStream out = new FileOutputStream(file, true);
+				try {
+					out.write(line.getBytes("UTF-8"));
+				}
+				finally {
+					out.close();
+				}
+			}
+			catch (IOException e) {
+				LOG.warn("Unable to write metrics to " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+			dump(dumpFile);
+		}
+		if (registered != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+			}
+			catch (JMException e) {
+				LOG.debug("Unable to unregister metrics: " + e.getMessage());
+			}
+			registered = null;
+		}
+	}
+
+	private TrafficCounter sourceTraffic() {
+		return mover.getSource().getTraffic();
+	}
+
+	private TrafficCounter destinationTraffic() {
+		return mover.getDestination().getTraffic();
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			}
+			else if (c < ' ') {
+				quoted.append(String.format("\\u%04x", (int)c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
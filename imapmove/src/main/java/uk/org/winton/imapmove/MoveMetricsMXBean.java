@@ -0,0 +1,35 @@
+package uk.org.winton.imapmove;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link MoveMetrics}. Phase maps are keyed by phase name.
+ */
+public interface MoveMetricsMXBean {
+
+	long getMessagesMoved();
+
+	double getMessagesPerSecond();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getRoundTrips();
+
+	double getCompressionRatio();
+
+	Map<String, Long> getRetries();
+
+	Map<String, Long> getPhaseCounts();
+
+	Map<String, Double> getPhaseMeanMillis();
+
+	Map<String, Long> getPhaseMaxMillis();
+
+	Map<String, Long> getPhase99thPercentileMillis();
+
+	String getSnapshot();
+
+	void reset();
+}
@@ -0,0 +1,79 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The single thread that does all the socket I/O for every {@link NioIMAPConnection}
+ * in the JVM. Other threads hand it work through {@link #execute(Runnable)}, so the
+ * connections' state is only ever touched from here.
+ */
+final class NioEventLoop implements Runnable {
+	private static final Logger LOG = Logger.getLogger(NioEventLoop.class);
+
+	private static NioEventLoop shared;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread thread;
+
+	private NioEventLoop() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, "imap-nio");
+		thread.setDaemon(true);
+	}
+
+	static synchronized NioEventLoop shared() throws IOException {
+		if (shared == null) {
+			shared = new NioEventLoop();
+			shared.thread.start();
+		}
+		return shared;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((NioIMAPConnection)key.attachment()).ready(key);
+					}
+				}
+			}
+			catch (IOException e) {
+				LOG.error("Selector failed: " + e.getMessage(), e);
+			}
+			catch (RuntimeException e) {
+				// One connection's bug must not stop every other connection's I/O
+				LOG.error("Unexpected failure in I/O thread: " + e.getMessage(), e);
+			}
+		}
+	}
+}
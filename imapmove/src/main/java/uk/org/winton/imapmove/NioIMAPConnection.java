@@ -0,0 +1,1013 @@
+package uk.org.winton.imapmove;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+
+/**
+ * An IMAP connection on a non-blocking socket, with any number of tagged commands
+ * outstanding at once. Commands are queued and then written by the shared
+ * {@link NioEventLoop} thread as fast as the socket takes them. Responses, literals
+ * included, are parsed as they arrive and handed to the command they answer. A caller
+ * submits a whole batch and then waits for each command in turn, so the batch costs
+ * one round trip rather than one per command.
+ * <p>
+ * A synchronising literal holds back everything queued behind it until the server's
+ * continuation arrives; with LITERAL+ it is sent straight away. Untagged FETCH
+ * responses go to the UID FETCH for their UID, others to an EXAMINE in progress, and
+ * anything else to the oldest command still outstanding. Threads sharing the
+ * connection may fetch from the same mailbox together, but one that needs another
+ * mailbox waits for them to finish. COMPRESS is not used on these connections.
+ */
+public class NioIMAPConnection {
+	private static final Logger LOG = Logger.getLogger(NioIMAPConnection.class);
+
+	static final long DEFAULT_TIMEOUT = 5 * 60 * 1000;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)\\}$");
+	private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|.*:.*");
+	private static final Pattern FETCH_UID = Pattern.compile("^\\* \\d+ FETCH .*\\bUID (\\d+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern UIDVALIDITY = Pattern.compile("\\[UIDVALIDITY (\\d+)\\]", Pattern.CASE_INSENSITIVE);
+	private static final Pattern CAPABILITY = Pattern.compile("^\\* CAPABILITY (.*)$|\\[CAPABILITY ([^\\]]*)\\]", Pattern.CASE_INSENSITIVE);
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final String host;
+	private final SocketChannel channel;
+	private final SSLEngine ssl;
+	private final NioEventLoop loop;
+	private final TrafficCounter traffic;
+	private final AtomicInteger tags = new AtomicInteger();
+	private volatile Set<String> capabilities = Collections.emptySet();
+	private volatile IOException failure;
+	private long timeout = DEFAULT_TIMEOUT;
+	private RateLimiter commandLimiter;
+	private RateLimiter byteLimiter;
+	// Held for reading while fetching from the selected mailbox, and for writing to change it
+	private final ReentrantReadWriteLock selection = new ReentrantReadWriteLock();
+	private String selected;
+	private long uidValidity;
+
+	// Everything from here on belongs to the I/O thread
+	private SelectionKey key;
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+	private boolean readSinceWrite = true;
+	private final Map<String, Command> inFlight = new LinkedHashMap<String, Command>();
+	private final Map<Long, Command> fetching = new HashMap<Long, Command>();
+	private Command selecting;
+	private final Queue<Command> unsent = new LinkedList<Command>();
+	private Command writing;
+	private int part;
+	private boolean continued;
+	private ByteBuffer outbound;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private Response response;
+	private byte[] literal;
+	private int literalFill;
+	private Command greeting;
+
+	private NioIMAPConnection(String host, SocketChannel channel, SSLEngine ssl, NioEventLoop loop, TrafficCounter traffic) {
+		this.host = host;
+		this.channel = channel;
+		this.ssl = ssl;
+		this.loop = loop;
+		this.traffic = traffic == null ? new TrafficCounter() : traffic;
+		int packet = ssl == null ? BUFFER_SIZE : ssl.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocate(packet);
+		netOut = ByteBuffer.allocate(packet);
+		appIn = ByteBuffer.allocate(ssl == null ? 0 : ssl.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * Connects and waits for the server's greeting. The connection itself is made
+	 * with a blocking call; from then on all I/O is done by the event loop.
+	 */
+	public static NioIMAPConnection open(String host, int port, boolean secure, TrafficCounter traffic) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(host, port), (int)DEFAULT_TIMEOUT);
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(false);
+			SSLEngine ssl = null;
+			if (secure) {
+				ssl = createEngine(host, port);
+				ssl.beginHandshake();
+			}
+			NioIMAPConnection connection = new NioIMAPConnection(host, channel, ssl, NioEventLoop.shared(), traffic);
+			connection.start();
+			return connection;
+		}
+		catch (NoSuchAlgorithmException e) {
+			channel.close();
+			throw new IOException("TLS is not available", e);
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a client engine that checks the server's certificate against the host
+	 * name, as the password is sent over it, and names the host for SNI.
+	 */
+	static SSLEngine createEngine(String host, int port) throws NoSuchAlgorithmException {
+		SSLEngine ssl = SSLContext.getDefault().createSSLEngine(host, port);
+		ssl.setUseClientMode(true);
+		SSLParameters params = ssl.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		// SNI carries host names only, never address literals
+		if (!IP_LITERAL.matcher(host).matches()) {
+			params.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+		}
+		ssl.setSSLParameters(params);
+		return ssl;
+	}
+
+	private void start() throws IOException {
+		final Command waiting = new Command(null, new ArrayList<ByteBuffer>(), new BitSet());
+		greeting = waiting;
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = channel.register(loop.getSelector(), SelectionKey.OP_READ, NioIMAPConnection.this);
+					pump();
+				}
+				catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		Response hello = await(waiting);
+		if (!hello.isOK() && !"PREAUTH".equalsIgnoreCase(hello.getStatus())) {
+			shutdown(new IOException("Connection refused"));
+			throw new IOException("Server " + host + " refused connection: " + hello);
+		}
+	}
+
+	public void setTimeout(long millis) {
+		timeout = millis;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setLimiters(RateLimiter commands, RateLimiter bytes) {
+		commandLimiter = commands;
+		byteLimiter = bytes;
+	}
+
+	public boolean isOpen() {
+		return failure == null;
+	}
+
+	public boolean hasCapability(String capability) {
+		return capabilities.contains(capability.toUpperCase());
+	}
+
+	/**
+	 * Queues a command and returns at once. String arguments are sent as they are
+	 * and byte arrays as literals; the tag and the final CRLF are added here.
+	 */
+	public Command submit(Object... args) throws IOException {
+		return queue(encode("N" + tags.incrementAndGet(), args));
+	}
+
+	private Command queue(final Command command) throws IOException {
+		checkOpen();
+		if (commandLimiter != null) {
+			try {
+				commandLimiter.acquire(1);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting to send a command to " + host);
+			}
+		}
+		loop.execute(new Runnable() {
+			public void run() {
+				if (failure != null) {
+					command.fail(failure);
+					return;
+				}
+				inFlight.put(command.tag, command);
+				if (command.uid >= 0) {
+					fetching.put(command.uid, command);
+				}
+				if (command.select) {
+					selecting = command;
+				}
+				unsent.add(command);
+				try {
+					pump();
+				}
+				catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		return command;
+	}
+
+	private Command encode(String tag, Object[] args) throws IOException {
+		boolean literalPlus = hasCapability(IMAPCommands.CAPABILITY_LITERAL_PLUS);
+		List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+		BitSet waits = new BitSet();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		text.write((tag + " ").getBytes("US-ASCII"));
+		for (Object arg : args) {
+			if (arg instanceof byte[] || arg instanceof File) {
+				ByteBuffer data = arg instanceof File ? map((File)arg) : ByteBuffer.wrap((byte[])arg);
+				text.write(("{" + data.remaining() + (literalPlus ? "+" : "") + "}\r\n").getBytes("US-ASCII"));
+				parts.add(ByteBuffer.wrap(text.toByteArray()));
+				text.reset();
+				// Without LITERAL+ the data has to wait for the server's go-ahead
+				waits.set(parts.size(), !literalPlus);
+				parts.add(data);
+			}
+			else {
+				text.write(arg.toString().getBytes("UTF-8"));
+			}
+		}
+		text.write("\r\n".getBytes("US-ASCII"));
+		parts.add(ByteBuffer.wrap(text.toByteArray()));
+		return new Command(tag, parts, waits);
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		// Mapped rather than read, so that a large literal is sent from the page cache
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Waits for the command's tagged response. A timeout is treated as a dead
+	 * connection, since nothing after it on the connection can be trusted either.
+	 */
+	public Response await(Command command) throws IOException {
+		try {
+			if (!command.done.await(timeout, TimeUnit.MILLISECONDS)) {
+				SocketTimeoutException e = new SocketTimeoutException("No response from " + host + " in " + timeout + "ms");
+				shutdown(e);
+				throw e;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + host);
+		}
+		if (command.failure != null) {
+			throw new IOException("Connection to " + host + " failed: " + command.failure.getMessage(), command.failure);
+		}
+		return command.result;
+	}
+
+	public void close() {
+		if (failure == null) {
+			try {
+				await(submit("LOGOUT"));
+			}
+			catch (IOException e) {
+				LOG.debug("LOGOUT failed: " + e.getMessage());
+			}
+		}
+		shutdown(new IOException("Connection closed"));
+	}
+
+	private void shutdown(final IOException reason) {
+		loop.execute(new Runnable() {
+			public void run() {
+				fail(reason);
+			}
+		});
+	}
+
+	private void checkOpen() throws IOException {
+		IOException cause = failure;
+		if (cause != null) {
+			throw new IOException("Connection to " + host + " is closed: " + cause.getMessage(), cause);
+		}
+	}
+
+	public void login(String username, String password) throws MessagingException {
+		check(send("LOGIN ", quote(username), " ", quote(password)), "LOGIN");
+		// The server may offer more once logged in
+		check(send("CAPABILITY"), "CAPABILITY");
+	}
+
+	/**
+	 * Selects the mailbox read-only, unless it is selected already, and returns its
+	 * UIDVALIDITY.
+	 */
+	public long examine(String mailbox) throws MessagingException {
+		long validity = select(mailbox);
+		selection.readLock().unlock();
+		return validity;
+	}
+
+	/**
+	 * Selects the mailbox if need be, waiting for any fetches from another mailbox to
+	 * finish first, and returns its UIDVALIDITY with the read lock held.
+	 */
+	private long select(String mailbox) throws MessagingException {
+		selection.readLock().lock();
+		if (mailbox.equals(selected)) {
+			return uidValidity;
+		}
+		selection.readLock().unlock();
+		selection.writeLock().lock();
+		try {
+			if (!mailbox.equals(selected)) {
+				// A failed EXAMINE leaves no mailbox selected
+				selected = null;
+				Command command = encode("N" + tags.incrementAndGet(), new Object[] { "EXAMINE ", quote(BASE64MailboxEncoder.encode(mailbox)) });
+				command.select = true;
+				check(queue(command), "EXAMINE " + mailbox);
+				long validity = -1;
+				for (Response r : command.getUntagged()) {
+					Matcher m = UIDVALIDITY.matcher(r.getText());
+					if (m.find()) {
+						validity = Long.parseLong(m.group(1));
+					}
+				}
+				selected = mailbox;
+				uidValidity = validity;
+			}
+			// Taken before the write lock is let go, so that nobody can select another mailbox in between
+			selection.readLock().lock();
+			return uidValidity;
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to send command to " + host + ": " + e.getMessage(), e);
+		}
+		finally {
+			selection.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fetches the whole of each message in the mailbox, with one UID FETCH per
+	 * message and all of them in flight together. The mailbox is selected first if
+	 * need be, and must still have the UIDVALIDITY the UIDs came with. The expected
+	 * bytes are charged to the byte limiter before anything is sent. Messages that
+	 * the server no longer has are missing from the result.
+	 */
+	public Map<Long, byte[]> fetchBodies(String mailbox, long validity, long[] uids, long expectedBytes) throws MessagingException {
+		pace(expectedBytes);
+		long current = select(mailbox);
+		try {
+			if (current != validity) {
+				throw new MessagingException("UIDVALIDITY of " + mailbox + " changed from " + validity + " to " + current);
+			}
+			List<Command> commands = new ArrayList<Command>(uids.length);
+			for (long uid : uids) {
+				try {
+					Command command = encode("N" + tags.incrementAndGet(), new Object[] { "UID FETCH " + uid + " BODY.PEEK[]" });
+					command.uid = uid;
+					commands.add(queue(command));
+				}
+				catch (IOException e) {
+					throw new MessagingException("Unable to send command to " + host + ": " + e.getMessage(), e);
+				}
+			}
+			Map<Long, byte[]> bodies = new HashMap<Long, byte[]>();
+			MessagingException failed = null;
+			for (Command command : commands) {
+				Response r = response(command, "UID FETCH");
+				if (!r.isOK()) {
+					if (failed == null) {
+						failed = new MessagingException("UID FETCH failed: " + r.getText());
+					}
+					continue;
+				}
+				for (Response untagged : command.getUntagged()) {
+					Matcher m = FETCH_UID.matcher(untagged.getText());
+					byte[] body = untagged.getLiteral("BODY[]");
+					if (m.find() && body != null) {
+						bodies.put(Long.parseLong(m.group(1)), body);
+					}
+				}
+			}
+			if (failed != null) {
+				throw failed;
+			}
+			return bodies;
+		}
+		finally {
+			selection.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends each message with its own APPEND, writing a group of up to maxBytes
+	 * before reading any reply. Messages larger than bufferSize are held in temporary
+	 * files in the spill directory rather than in memory until they have been sent. Messages are added to
+	 * appended as the server accepts them, so that a caller can tell what arrived if
+	 * an exception is thrown.
+	 */
+	public void append(String mailbox, Message[] msgs, long maxBytes, int bufferSize, File spillDirectory, List<Message> appended) throws MessagingException {
+		Object name = quote(BASE64MailboxEncoder.encode(mailbox));
+		Map<Command, Message> pending = new LinkedHashMap<Command, Message>();
+		List<IMAPCommands.MessageLiteral> literals = new ArrayList<IMAPCommands.MessageLiteral>();
+		try {
+			long bytes = 0;
+			for (Message msg : msgs) {
+				IMAPCommands.MessageLiteral literal = new IMAPCommands.MessageLiteral(msg, bufferSize, spillDirectory);
+				literals.add(literal);
+				// Always send at least one message, however large
+				if (!pending.isEmpty() && bytes + literal.size() > maxBytes) {
+					complete(pending, appended);
+					dispose(literals, literal);
+					bytes = 0;
+				}
+				send(name, msg, literal, pending);
+				bytes += literal.size();
+			}
+			complete(pending, appended);
+		}
+		finally {
+			dispose(literals, null);
+		}
+	}
+
+	private void send(Object name, Message msg, IMAPCommands.MessageLiteral literal, Map<Command, Message> pending) throws MessagingException {
+		pace(literal.size());
+		List<Object> args = new ArrayList<Object>();
+		args.add("APPEND ");
+		args.add(name);
+		String flags = IMAPCommands.flagList(msg.getFlags());
+		if (flags != null) {
+			args.add(" " + flags);
+		}
+		Date date = msg.getReceivedDate();
+		if (date != null) {
+			args.add(" \"" + INTERNALDATE.format(date) + "\"");
+		}
+		args.add(" ");
+		args.add(literal.getBytes() != null ? literal.getBytes() : literal.getFile());
+		pending.put(send(args.toArray()), msg);
+	}
+
+	/**
+	 * Deletes the temporary files of literals that have been sent, apart from keep.
+	 */
+	private static void dispose(List<IMAPCommands.MessageLiteral> literals, IMAPCommands.MessageLiteral keep) {
+		for (IMAPCommands.MessageLiteral literal : literals) {
+			if (literal != keep) {
+				literal.dispose();
+			}
+		}
+		literals.clear();
+		if (keep != null) {
+			literals.add(keep);
+		}
+	}
+
+	private void complete(Map<Command, Message> pending, List<Message> appended) throws MessagingException {
+		MessagingException failed = null;
+		for (Map.Entry<Command, Message> entry : pending.entrySet()) {
+			Response r = response(entry.getKey(), "APPEND");
+			if (r.isOK()) {
+				appended.add(entry.getValue());
+			}
+			else if (failed == null) {
+				failed = new MessagingException("APPEND failed: " + r.getText());
+			}
+		}
+		LOG.debug("Appended " + pending.size() + " message" + (pending.size() == 1 ? "" : "s") + " with pipelined APPEND");
+		pending.clear();
+		if (failed != null) {
+			throw failed;
+		}
+	}
+
+	private void pace(long bytes) throws MessagingException {
+		if (byteLimiter == null || bytes <= 0) {
+			return;
+		}
+		try {
+			byteLimiter.acquire(bytes);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while pacing traffic to " + host, e);
+		}
+	}
+
+	private Command send(Object... args) throws MessagingException {
+		try {
+			return submit(args);
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to send command to " + host + ": " + e.getMessage(), e);
+		}
+	}
+
+	private Response response(Command command, String what) throws MessagingException {
+		try {
+			return await(command);
+		}
+		catch (IOException e) {
+			throw new MessagingException(what + " failed: " + e.getMessage(), e);
+		}
+	}
+
+	private Response check(Command command, String what) throws MessagingException {
+		Response r = response(command, what);
+		if (!r.isOK()) {
+			throw new MessagingException(what + " failed: " + r.getText());
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the string as an IMAP quoted string, or as a literal if it has
+	 * characters that a quoted string cannot carry.
+	 */
+	static Object quote(String s) throws MessagingException {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e) {
+				try {
+					return s.getBytes("UTF-8");
+				}
+				catch (IOException e) {
+					throw new MessagingException("Unable to encode " + s, e);
+				}
+			}
+		}
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	void ready(SelectionKey selected) {
+		try {
+			if (selected.isReadable()) {
+				read();
+			}
+			pump();
+			// A handshake step may have been waiting for a write before it could use what was read
+			if (ssl != null && netIn.position() > 0 && ssl.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+				processInbound();
+				pump();
+			}
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void read() throws IOException {
+		int count;
+		while ((count = channel.read(netIn)) > 0) {
+			traffic.addBytesRead(count);
+			readSinceWrite = true;
+			processInbound();
+		}
+		if (count < 0) {
+			throw new EOFException("Connection closed by " + host);
+		}
+	}
+
+	private void processInbound() throws IOException {
+		netIn.flip();
+		try {
+			if (ssl == null) {
+				parse(netIn);
+				return;
+			}
+			while (netIn.hasRemaining()) {
+				SSLEngineResult result = ssl.unwrap(netIn, appIn);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					appIn = grow(appIn, ssl.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					return;
+				case CLOSED:
+					throw new EOFException("TLS session closed by " + host);
+				default:
+				}
+				runTasks();
+				appIn.flip();
+				parse(appIn);
+				appIn.compact();
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					return;
+				}
+			}
+		}
+		finally {
+			netIn.compact();
+			if (ssl != null && !netIn.hasRemaining()) {
+				// A TLS record larger than the buffer
+				netIn = grow(netIn, ssl.getSession().getPacketBufferSize());
+			}
+		}
+	}
+
+	private void pump() throws IOException {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		boolean full;
+		do {
+			full = fillOutbound();
+			flushOutbound();
+		}
+		while (full && netOut.position() == 0);
+		key.interestOps(SelectionKey.OP_READ | (netOut.position() > 0 ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * Moves queued command bytes into the network buffer, returning true if it
+	 * stopped because the buffer was full.
+	 */
+	private boolean fillOutbound() throws IOException {
+		while (true) {
+			if (ssl != null) {
+				HandshakeStatus status = ssl.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+				if (status == HandshakeStatus.NEED_WRAP) {
+					if (wrap(EMPTY)) {
+						return true;
+					}
+					continue;
+				}
+				if (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+					return false;
+				}
+			}
+			ByteBuffer data = nextOutbound();
+			if (data == null) {
+				return false;
+			}
+			if (ssl != null) {
+				if (wrap(data)) {
+					return true;
+				}
+				continue;
+			}
+			int count = Math.min(data.remaining(), netOut.remaining());
+			if (count == 0) {
+				return true;
+			}
+			ByteBuffer slice = data.duplicate();
+			slice.limit(slice.position() + count);
+			netOut.put(slice);
+			data.position(data.position() + count);
+		}
+	}
+
+	private boolean wrap(ByteBuffer data) throws IOException {
+		SSLEngineResult result = ssl.wrap(data, netOut);
+		if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			throw new EOFException("TLS session to " + host + " closed");
+		}
+		return result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW;
+	}
+
+	private void flushOutbound() throws IOException {
+		if (netOut.position() == 0) {
+			return;
+		}
+		netOut.flip();
+		int count = channel.write(netOut);
+		netOut.compact();
+		if (count > 0) {
+			traffic.addBytesWritten(count);
+			if (readSinceWrite) {
+				// Counted as in CountingSocketFactory: the client speaking after it has listened
+				traffic.addRoundTrip();
+				readSinceWrite = false;
+			}
+		}
+	}
+
+	private ByteBuffer nextOutbound() {
+		while (true) {
+			if (outbound != null && outbound.hasRemaining()) {
+				return outbound;
+			}
+			outbound = null;
+			if (writing != null && part < writing.parts.size()) {
+				if (writing.waits.get(part) && !continued) {
+					// Nothing else can go until the server asks for this literal
+					return null;
+				}
+				continued = false;
+				outbound = writing.parts.get(part++);
+				continue;
+			}
+			writing = unsent.poll();
+			part = 0;
+			if (writing == null) {
+				return null;
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = ssl.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + atLeast));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	private void parse(ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			if (literal != null) {
+				int count = Math.min(in.remaining(), literal.length - literalFill);
+				in.get(literal, literalFill, count);
+				literalFill += count;
+				if (literalFill == literal.length) {
+					response.literals.add(literal);
+					literal = null;
+				}
+				continue;
+			}
+			byte b = in.get();
+			if (b != '\n') {
+				line.write(b);
+				continue;
+			}
+			String text = line.toString("ISO-8859-1");
+			line.reset();
+			if (text.endsWith("\r")) {
+				text = text.substring(0, text.length() - 1);
+			}
+			if (response == null) {
+				response = new Response();
+			}
+			response.lines.add(text);
+			Matcher m = LITERAL.matcher(text);
+			if (m.find()) {
+				literal = new byte[Integer.parseInt(m.group(1))];
+				literalFill = 0;
+				if (literal.length == 0) {
+					response.literals.add(literal);
+					literal = null;
+				}
+				continue;
+			}
+			Response complete = response;
+			response = null;
+			dispatch(complete);
+		}
+	}
+
+	private void dispatch(Response r) {
+		Matcher m = CAPABILITY.matcher(r.getText());
+		if (m.find()) {
+			String list = m.group(1) != null ? m.group(1) : m.group(2);
+			capabilities = new HashSet<String>(Arrays.asList(list.toUpperCase().split(" ")));
+		}
+		if (greeting != null) {
+			Command hello = greeting;
+			greeting = null;
+			hello.complete(r);
+			return;
+		}
+		if (r.isContinuation()) {
+			if (writing != null && part < writing.parts.size() && writing.waits.get(part)) {
+				continued = true;
+			}
+			else {
+				LOG.debug("Unexpected continuation from " + host + ": " + r);
+			}
+			return;
+		}
+		if (r.isUntagged()) {
+			Command owner = selecting;
+			Matcher fetch = FETCH_UID.matcher(r.getText());
+			if (fetch.find()) {
+				owner = fetching.get(Long.parseLong(fetch.group(1)));
+			}
+			if (owner == null) {
+				Iterator<Command> oldest = inFlight.values().iterator();
+				owner = oldest.hasNext() ? oldest.next() : null;
+			}
+			if (owner != null) {
+				owner.untagged.add(r);
+			}
+			else {
+				LOG.debug("Unsolicited response from " + host + ": " + r);
+			}
+			return;
+		}
+		Command command = inFlight.remove(r.getTag());
+		if (command == null) {
+			LOG.warn("Response from " + host + " for an unknown command: " + r);
+			return;
+		}
+		if (command.uid >= 0 && fetching.get(command.uid) == command) {
+			fetching.remove(command.uid);
+		}
+		if (command == selecting) {
+			selecting = null;
+		}
+		if (command == writing) {
+			// Refused before its literal was sent, so the rest of it is dropped
+			writing = null;
+			outbound = null;
+			continued = false;
+		}
+		command.complete(r);
+	}
+
+	private void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+			LOG.debug("Connection to " + host + " ended: " + e.getMessage());
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		}
+		catch (IOException ignored) {
+			// Already failed
+		}
+		if (greeting != null) {
+			greeting.fail(failure);
+			greeting = null;
+		}
+		for (Command command : inFlight.values()) {
+			command.fail(failure);
+		}
+		inFlight.clear();
+		fetching.clear();
+		selecting = null;
+		unsent.clear();
+		writing = null;
+		outbound = null;
+	}
+
+	public static class Command {
+		private final String tag;
+		private final List<ByteBuffer> parts;
+		private final BitSet waits;
+		private final List<Response> untagged = new ArrayList<Response>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Response result;
+		private volatile IOException failure;
+		// Set before the command is queued: the UID it fetches, and whether it selects a mailbox
+		private long uid = -1;
+		private boolean select;
+
+		Command(String tag, List<ByteBuffer> parts, BitSet waits) {
+			this.tag = tag;
+			this.parts = parts;
+			this.waits = waits;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		/**
+		 * The untagged responses that belong to this command: FETCH data for its UID,
+		 * anything during an EXAMINE, or else whatever arrived while it was the oldest
+		 * command waiting. Only safe to read once the command has completed.
+		 */
+		public List<Response> getUntagged() {
+			return untagged;
+		}
+
+		void complete(Response r) {
+			result = r;
+			done.countDown();
+		}
+
+		void fail(IOException e) {
+			if (done.getCount() > 0) {
+				failure = e;
+				done.countDown();
+			}
+		}
+	}
+
+	public static class Response {
+		private final List<String> lines = new ArrayList<String>();
+		private final List<byte[]> literals = new ArrayList<byte[]>();
+
+		public String getTag() {
+			String first = lines.get(0);
+			int space = first.indexOf(' ');
+			return space < 0 ? first : first.substring(0, space);
+		}
+
+		public boolean isUntagged() {
+			return "*".equals(getTag());
+		}
+
+		public boolean isContinuation() {
+			return "+".equals(getTag());
+		}
+
+		public String getStatus() {
+			String first = lines.get(0);
+			String[] words = first.split(" ", 3);
+			return words.length > 1 ? words[1] : "";
+		}
+
+		public boolean isOK() {
+			return "OK".equalsIgnoreCase(getStatus());
+		}
+
+		/**
+		 * The response's lines joined together, with each literal shown only by the
+		 * <code>{n}</code> that announced it.
+		 */
+		public String getText() {
+			StringBuilder text = new StringBuilder();
+			for (String l : lines) {
+				text.append(l);
+			}
+			return text.toString();
+		}
+
+		/**
+		 * Returns the literal that follows the named item, such as BODY[], or null.
+		 */
+		public byte[] getLiteral(String item) {
+			for (int i = 0; i < literals.size(); i++) {
+				String before = lines.get(i);
+				before = before.substring(0, before.lastIndexOf('{')).trim();
+				if (before.toUpperCase().endsWith(item.toUpperCase())) {
+					return literals.get(i);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return getText();
+		}
+	}
+}
@@ -0,0 +1,555 @@
+package uk.org.winton.imapmove;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Runs a move as three concurrent stages joined by bounded queues: one fetcher per
+ * source connection, each reading a disjoint share of the window, a single rewriting
+ * stage, and one appender per destination connection. The number of connections on
+ * each side is taken from {@link IMAPClient#getConnections()}. As in
+ * {@link IMAPMover}, the selection is worked through a window of UIDs at a time, and
+ * each window's messages are flagged, expunged and checkpointed before the next one
+ * is fetched. If a stage fails, whatever was already appended is flagged all the
+ * same, so that the next run does not copy it again.
+ */
+public class PipelinedMover {
+	private static final Logger LOG = Logger.getLogger(PipelinedMover.class);
+
+	static final int DEFAULT_QUEUE_SIZE = 100;
+	static final long STOP_WAIT = 30 * 1000;
+
+	private static final Item END = new Item(null, null);
+
+	private final IMAPMover mover;
+	private final MoveMetrics metrics;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+
+	public PipelinedMover(IMAPMover mover) {
+		this.mover = mover;
+		this.metrics = mover.getMetrics();
+	}
+
+	public void setQueueSize(int size) {
+		queueSize = Math.max(1, size);
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public int move(boolean expunge) throws MessagingException {
+		IMAPClient source = mover.getSource();
+		IMAPClient destination = mover.getDestination();
+
+		if (source.isSameAccount(destination)) {
+			LOG.info("Source and destination share an account -- using server-side move");
+			return mover.move(expunge);
+		}
+
+		mover.bindTraffic();
+		try {
+			return movePipelined(expunge);
+		}
+		finally {
+			mover.unbindTraffic();
+		}
+	}
+
+	private int movePipelined(boolean expunge) throws MessagingException {
+		IMAPClient source = mover.getSource();
+		IMAPClient destination = mover.getDestination();
+		int fetchers = source.getConnections();
+		int appenders = destination.getConnections();
+		LOG.info("Starting pipelined message move (" + fetchers + " source, " + appenders + " destination connections)");
+
+		int total = 0;
+		boolean completed = false;
+		Map<Store, IMAPClient> stores = new LinkedHashMap<Store, IMAPClient>();
+		List<Folder> folders = new ArrayList<Folder>();
+		try {
+			for (int i = 0; i < fetchers; i++) {
+				long timer = metrics.start();
+				Store store = source.borrowStore();
+				stores.put(store, source);
+				Folder folder = store.getFolder(source.getMailbox());
+				folder.open(Folder.READ_WRITE);
+				metrics.record(MoveMetrics.Phase.CONNECT, timer);
+				folders.add(folder);
+			}
+
+			Folder reference = folders.get(0);
+			long timer = metrics.start();
+			IMAPMover.Selection selected = mover.select(reference);
+			metrics.record(MoveMetrics.Phase.SEARCH, timer);
+			LOG.info(selected.size() + " message" + (selected.size() == 1 ? "" : "s") + " found in source mailbox");
+			if (selected.size() == 0) {
+				LOG.info("No messages to be moved");
+				completed = true;
+				return 0;
+			}
+			if (!selected.hasUids() && fetchers > 1) {
+				// The other connections could only find their share by UID
+				LOG.warn("Source mailbox cannot be searched by UID -- using one source connection");
+				fetchers = 1;
+			}
+
+			List<Folder> targets = new ArrayList<Folder>();
+			for (int i = 0; i < appenders; i++) {
+				timer = metrics.start();
+				Store store = destination.borrowStore();
+				metrics.record(MoveMetrics.Phase.CONNECT, timer);
+				stores.put(store, destination);
+				targets.add(store.getFolder(destination.getMailbox()));
+			}
+			if (mover.getDedupIndex() != null) {
+				// The index must be current before the rewriter looks anything up
+				mover.refreshDedup(targets.get(0));
+			}
+
+			List<Folder> fetching = folders.subList(0, fetchers);
+			int start = 0;
+			int held = 0;
+			while (start < selected.size()) {
+				mover.pauseIfThrottled();
+				if (held >= IMAPMover.REOPEN_AFTER && selected.hasUids()) {
+					// Each connection keeps every message it has fetched until its folder is closed
+					for (Folder folder : fetching) {
+						folder.close(false);
+						folder.open(Folder.READ_WRITE);
+					}
+					held = 0;
+				}
+				int end = mover.windowLimit(start, selected.size());
+				total += moveWindow(fetching, targets, selected, start, end, expunge);
+				held += end - start;
+				start = end;
+			}
+			mover.saveDedup();
+
+			if (total == 0) {
+				LOG.info("No messages to be moved");
+			}
+			else {
+				LOG.info(total + " message" + (total == 1 ? "" : "s") + " moved and marked for deletion" + (expunge ? " and expunged" : ""));
+			}
+			completed = true;
+		}
+		finally {
+			for (Folder folder : folders) {
+				try {
+					if (folder.isOpen()) {
+						folder.close(false);
+					}
+				}
+				catch (MessagingException e) {
+					LOG.debug("Failed to close " + folder.getFullName() + ": " + e.getMessage());
+				}
+			}
+			// After a failure the state of each connection is unknown, so none are reused
+			for (Map.Entry<Store, IMAPClient> entry : stores.entrySet()) {
+				if (completed) {
+					entry.getValue().returnStore(entry.getKey());
+				}
+				else {
+					entry.getValue().invalidateStore(entry.getKey());
+				}
+			}
+		}
+		LOG.info("Processing complete");
+		return total;
+	}
+
+	/**
+	 * Runs the stages over one window of the selection, then flags what was moved as
+	 * deleted, expunges it and moves the checkpoint past the window. If a stage fails,
+	 * the others are stopped and what they had moved is flagged before the failure is
+	 * passed on.
+	 */
+	private int moveWindow(List<Folder> folders, List<Folder> targets, IMAPMover.Selection selected, int start, int end, boolean expunge) throws MessagingException {
+		Window window = new Window(folders);
+		BlockingQueue<Item> fetched = new ArrayBlockingQueue<Item>(queueSize);
+		BlockingQueue<Item> rewritten = new ArrayBlockingQueue<Item>(queueSize);
+		AtomicInteger fetching = new AtomicInteger(folders.size());
+		ExecutorService pool = Executors.newFixedThreadPool(folders.size() + targets.size() + 1);
+		CompletionService<Void> stages = new ExecutorCompletionService<Void>(pool);
+		try {
+			int tasks = 0;
+			int from = start;
+			for (int i = 0; i < folders.size(); i++) {
+				int to = start + (int)((long)(end - start) * (i + 1) / folders.size());
+				stages.submit(counted(new Fetcher(folders.get(i), selected, from, to, fetched, fetching)));
+				tasks++;
+				from = to;
+			}
+			stages.submit(counted(new Rewriter(fetched, rewritten, targets.size(), window)));
+			tasks++;
+			for (Folder target : targets) {
+				stages.submit(counted(new Appender(target, rewritten, window)));
+				tasks++;
+			}
+
+			for (int i = 0; i < tasks; i++) {
+				try {
+					stages.take().get();
+				}
+				catch (ExecutionException e) {
+					stop(pool);
+					settle(window, selected, start, end);
+					Throwable cause = e.getCause();
+					if (cause instanceof MessagingException) {
+						mover.recordFailure((MessagingException)cause);
+						throw (MessagingException)cause;
+					}
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException)cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error)cause;
+					}
+					throw new MessagingException("Pipelined move failed", (Exception)cause);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			stop(pool);
+			settle(window, selected, start, end);
+			throw new MessagingException("Pipelined move interrupted", e);
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		List<long[]> marked = new ArrayList<long[]>();
+		int count = 0;
+		for (Folder folder : folders) {
+			List<Message> done = window.moved.get(folder);
+			if (!done.isEmpty()) {
+				marked.add(mover.markDeleted(folder, done.toArray(new Message[done.size()])));
+				count += done.size();
+			}
+		}
+		// Only expunge once every connection has flagged its messages, so that no
+		// connection is left flagging by message numbers another has just shifted
+		if (expunge && count > 0) {
+			mover.expungeMoved(folders.get(0), join(marked, count));
+		}
+		metrics.addMessagesMoved(count);
+		mover.saveDedup();
+		if (selected.hasUids()) {
+			mover.checkpoint(folders.get(0), selected.getUid(end - 1));
+		}
+		else {
+			mover.checkpoint(folders.get(0), mover.highestUid(folders.get(0), selected.get(folders.get(0), start, end)));
+		}
+		return count;
+	}
+
+	private static void stop(ExecutorService pool) {
+		pool.shutdownNow();
+		try {
+			// An append under way finishes, so that what it sent can be flagged
+			if (!pool.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS)) {
+				LOG.warn("Pipeline stages still running after " + STOP_WAIT + "ms");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * After a failure, flags what the window had moved, saves the dedup index and
+	 * moves the checkpoint past the messages dealt with, so that nothing already
+	 * appended is copied again by the next run. Failures here are only logged, as the
+	 * one that stopped the window is the one to report.
+	 */
+	private void settle(Window window, IMAPMover.Selection selected, int start, int end) {
+		Set<Long> settled = new HashSet<Long>();
+		for (Folder folder : window.folders) {
+			List<Message> done = window.moved.get(folder);
+			if (done.isEmpty()) {
+				continue;
+			}
+			Message[] msgs = done.toArray(new Message[done.size()]);
+			try {
+				long[] uids = flag(window.folders, folder, msgs);
+				if (uids != null) {
+					for (long uid : uids) {
+						settled.add(uid);
+					}
+				}
+				LOG.info(msgs.length + " message" + (msgs.length == 1 ? "" : "s") + " moved before the failure marked for deletion");
+			}
+			catch (MessagingException e) {
+				LOG.warn("Unable to mark " + msgs.length + " moved message" + (msgs.length == 1 ? "" : "s") + " for deletion: " + e.getMessage()
+						+ (mover.getDedupIndex() == null ? " -- they will be copied again by the next run" : ""));
+			}
+		}
+		try {
+			mover.saveDedup();
+			if (selected.hasUids()) {
+				synchronized (window.skipped) {
+					for (Item item : window.skipped) {
+						settled.add(((UIDFolder)item.folder).getUID(item.message));
+					}
+				}
+				long last = 0;
+				for (int i = start; i < end && settled.contains(selected.getUid(i)); i++) {
+					last = selected.getUid(i);
+				}
+				mover.checkpoint(window.folders.get(0), last);
+			}
+		}
+		catch (MessagingException e) {
+			LOG.warn("Unable to record progress after the failure: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Flags the messages as deleted on their own connection or, if that has failed,
+	 * by UID on any other still open.
+	 */
+	private long[] flag(List<Folder> folders, Folder folder, Message[] msgs) throws MessagingException {
+		try {
+			return mover.markDeleted(folder, msgs);
+		}
+		catch (MessagingException e) {
+			if (!(folder instanceof UIDFolder)) {
+				throw e;
+			}
+			long[] uids = new long[msgs.length];
+			for (int i = 0; i < msgs.length; i++) {
+				uids[i] = ((UIDFolder)folder).getUID(msgs[i]);
+			}
+			for (Folder other : folders) {
+				if (other != folder && other instanceof IMAPFolder && other.isOpen()) {
+					try {
+						IMAPCommands.uidStoreDeleted((IMAPFolder)other, uids);
+						return uids;
+					}
+					catch (MessagingException ignored) {
+						// Try the next
+					}
+				}
+			}
+			throw e;
+		}
+	}
+
+	private Callable<Void> counted(final Callable<Void> stage) {
+		// Each stage's thread counts its traffic against this move, as the main thread does
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				mover.bindTraffic();
+				try {
+					return stage.call();
+				}
+				finally {
+					mover.unbindTraffic();
+				}
+			}
+		};
+	}
+
+	private static long[] join(List<long[]> parts, int total) {
+		long[] all = new long[total];
+		int next = 0;
+		for (long[] part : parts) {
+			if (part == null) {
+				return null;
+			}
+			System.arraycopy(part, 0, all, next, part.length);
+			next += part.length;
+		}
+		return all;
+	}
+
+	private static class Item {
+		final Folder folder;
+		final Message message;
+
+		Item(Folder folder, Message message) {
+			this.folder = folder;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * What one window's stages have dealt with so far: the messages moved, whether
+	 * copied or found to be there already, for each source connection, and those
+	 * passed over.
+	 */
+	private static class Window {
+		final List<Folder> folders;
+		final Map<Folder, List<Message>> moved = new HashMap<Folder, List<Message>>();
+		final List<Item> skipped = Collections.synchronizedList(new ArrayList<Item>());
+
+		Window(List<Folder> folders) {
+			this.folders = folders;
+			for (Folder folder : folders) {
+				moved.put(folder, Collections.synchronizedList(new ArrayList<Message>()));
+			}
+		}
+	}
+
+	private class Fetcher implements Callable<Void> {
+		private final Folder folder;
+		private final IMAPMover.Selection selected;
+		private final int start;
+		private final int end;
+		private final BlockingQueue<Item> out;
+		private final AtomicInteger fetching;
+
+		Fetcher(Folder folder, IMAPMover.Selection selected, int start, int end, BlockingQueue<Item> out, AtomicInteger fetching) {
+			this.folder = folder;
+			this.selected = selected;
+			this.start = start;
+			this.end = end;
+			this.out = out;
+			this.fetching = fetching;
+		}
+
+		public Void call() throws MessagingException, InterruptedException {
+			if (end > start) {
+				// By UID, as message numbers differ between connections once anything is expunged
+				Message[] msgs = selected.get(folder, start, end);
+				long began = System.nanoTime();
+				mover.prefetch(folder, msgs);
+				if (mover.getAdaptiveBatchSize() != null) {
+					mover.getAdaptiveBatchSize().completed(msgs.length, System.nanoTime() - began);
+				}
+				for (Message msg : msgs) {
+					if (msg != null && !msg.isExpunged()) {
+						out.put(new Item(folder, msg));
+					}
+				}
+			}
+			if (fetching.decrementAndGet() == 0) {
+				out.put(END);
+			}
+			return null;
+		}
+	}
+
+	private class Rewriter implements Callable<Void> {
+		private final BlockingQueue<Item> in;
+		private final BlockingQueue<Item> out;
+		private final int appenders;
+		private final Window window;
+
+		Rewriter(BlockingQueue<Item> in, BlockingQueue<Item> out, int appenders, Window window) {
+			this.in = in;
+			this.out = out;
+			this.appenders = appenders;
+			this.window = window;
+		}
+
+		public Void call() throws MessagingException, InterruptedException {
+			Item item;
+			while ((item = in.take()) != END) {
+				MimeMessage srcMime = (MimeMessage)item.message;
+				long timer = metrics.start();
+				boolean wanted = mover.shouldBeMoved(srcMime);
+				if (!wanted) {
+					window.skipped.add(item);
+				}
+				else if (mover.isDuplicate(srcMime)) {
+					// Nothing to copy, but the original still has to go
+					window.moved.get(item.folder).add(srcMime);
+					wanted = false;
+				}
+				MimeMessage rewritten = wanted ? mover.rewrite(srcMime) : null;
+				metrics.record(MoveMetrics.Phase.REWRITE, timer);
+				if (wanted) {
+					out.put(new Item(item.folder, rewritten));
+				}
+			}
+			for (int i = 0; i < appenders; i++) {
+				out.put(END);
+			}
+			return null;
+		}
+	}
+
+	private class Appender implements Callable<Void> {
+		private final Folder folder;
+		private final BlockingQueue<Item> in;
+		private final Window window;
+
+		Appender(Folder folder, BlockingQueue<Item> in, Window window) {
+			this.folder = folder;
+			this.in = in;
+			this.window = window;
+		}
+
+		public Void call() throws MessagingException, InterruptedException {
+			boolean ended = false;
+			while (!ended) {
+				// Whatever is already waiting goes up together, without waiting for more
+				List<Item> batch = new ArrayList<Item>();
+				Item item = in.take();
+				while (item != null && item != END) {
+					batch.add(item);
+					item = in.poll();
+				}
+				ended = item == END;
+				if (!batch.isEmpty()) {
+					append(batch);
+				}
+			}
+			return null;
+		}
+
+		private void append(List<Item> batch) throws MessagingException {
+			Message[] msgs = new Message[batch.size()];
+			Map<Message, Folder> sources = new HashMap<Message, Folder>();
+			for (int i = 0; i < msgs.length; i++) {
+				msgs[i] = batch.get(i).message;
+				sources.put(msgs[i], batch.get(i).folder);
+			}
+			long timer = metrics.start();
+			List<Message> accepted = new ArrayList<Message>();
+			try {
+				mover.append(folder, msgs, accepted);
+			}
+			finally {
+				IMAPMover.release(msgs);
+				// Even if the batch failed part way, what the server accepted has to be flagged
+				for (Message msg : accepted) {
+					MimeMessage original = ((RewrittenMessage)msg).getOriginal();
+					mover.recordCopied(original);
+					window.moved.get(sources.get(msg)).add(original);
+				}
+			}
+			metrics.record(MoveMetrics.Phase.APPEND, timer);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package uk.org.winton.imapmove;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A token bucket holding up to one second's worth of permits. A caller that takes
+ * more than are left goes into debt and waits until the bucket has refilled enough
+ * to cover it, so a burst is paid for by whoever comes next as well as by itself.
+ * Limiters obtained through {@link #shared(String, long)} are one per name for the
+ * whole JVM, so every connection and job to an account draws on the same quota. Each
+ * such request is handed back with {@link #release(long)} once finished with.
+ */
+public class RateLimiter {
+	private static final Logger LOG = Logger.getLogger(RateLimiter.class);
+
+	private static final Map<String, RateLimiter> SHARED = new HashMap<String, RateLimiter>();
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final String name;
+	private long rate;
+	private double tokens;
+	private long updated;
+	private long waited = 0;
+	private final List<Long> requested = new ArrayList<Long>();
+
+	public RateLimiter(String name, long rate) {
+		this(name, rate, System.nanoTime());
+	}
+
+	RateLimiter(String name, long rate, long now) {
+		this.name = name;
+		this.rate = Math.max(1, rate);
+		this.tokens = this.rate;
+		this.updated = now;
+	}
+
+	/**
+	 * Returns the JVM-wide limiter with the given name. While several requests for it
+	 * are outstanding it runs at the lowest rate among them, as that is the limit that
+	 * has to be kept.
+	 */
+	public static RateLimiter shared(String name, long rate) {
+		synchronized (SHARED) {
+			RateLimiter limiter = SHARED.get(name);
+			if (limiter == null) {
+				limiter = new RateLimiter(name, rate);
+				SHARED.put(name, limiter);
+			}
+			limiter.request(Math.max(1, rate));
+			return limiter;
+		}
+	}
+
+	/**
+	 * Hands back a request made through {@link #shared(String, long)}. The rate goes
+	 * back up to the lowest of those still outstanding, and once there are none the
+	 * limiter is forgotten, so that a later run starts from its own settings.
+	 */
+	public void release(long rate) {
+		synchronized (SHARED) {
+			synchronized (this) {
+				requested.remove(Long.valueOf(Math.max(1, rate)));
+				if (!requested.isEmpty()) {
+					setRate(Collections.min(requested));
+					return;
+				}
+			}
+			if (SHARED.get(name) == this) {
+				SHARED.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * Forgets every shared limiter, whether or not it has been released.
+	 */
+	static void reset() {
+		synchronized (SHARED) {
+			SHARED.clear();
+		}
+	}
+
+	private synchronized void request(long limit) {
+		requested.add(limit);
+		if (limit < rate) {
+			setRate(limit);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	public synchronized void setRate(long limit) {
+		limit = Math.max(1, limit);
+		if (limit != rate) {
+			LOG.debug("Rate limit for " + name + " changed from " + rate + " to " + limit + " per second");
+			rate = limit;
+			tokens = Math.min(tokens, rate);
+		}
+	}
+
+	/**
+	 * Returns the total time callers have spent waiting for permits, in milliseconds.
+	 */
+	public synchronized long getWaitedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waited);
+	}
+
+	public void acquire(long permits) throws InterruptedException {
+		long wait = reserve(permits, System.nanoTime());
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes the permits and returns how many nanoseconds the caller must wait before
+	 * using them.
+	 */
+	synchronized long reserve(long permits, long now) {
+		tokens = Math.min(rate, tokens + (double)(now - updated) * rate / NANOS_PER_SECOND);
+		updated = now;
+		tokens -= permits;
+		if (tokens >= 0) {
+			return 0;
+		}
+		long wait = (long)(-tokens * NANOS_PER_SECOND / rate);
+		waited += wait;
+		return wait;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + getRate() + " per second)";
+	}
+}
@@ -0,0 +1,85 @@
+package uk.org.winton.imapmove;
+
+import java.io.IOException;
+import java.util.Random;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+
+import com.sun.mail.iap.ConnectionException;
+
+/**
+ * Decides whether a failed batch is worth trying again and how long to wait first.
+ * Only failures of the connection itself, or a server asking for less load, are
+ * retried: a NO to a particular command will simply fail again. The wait doubles
+ * with each attempt up to a limit, and a random part of it is dropped so that
+ * several movers hitting the same server do not all come back at once.
+ */
+public class RetryPolicy {
+
+	static final int DEFAULT_MAX_RETRIES = 5;
+	static final long DEFAULT_BASE_DELAY = 1000;
+	static final long DEFAULT_MAX_DELAY = 60000;
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random random = new Random();
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.baseDelay = Math.max(0, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Returns true if the given attempt, counting from one, may go ahead after the failure.
+	 */
+	public boolean shouldRetry(MessagingException e, int attempt) {
+		return attempt <= maxRetries && isRetryable(e);
+	}
+
+	/**
+	 * Returns how long to wait before the given attempt: somewhere between half and
+	 * all of the base delay doubled for each earlier attempt.
+	 */
+	public long delay(int attempt) {
+		long delay = Math.min(maxDelay, baseDelay << Math.min(Math.max(attempt - 1, 0), 30));
+		if (delay <= 1) {
+			return delay;
+		}
+		synchronized (random) {
+			return delay / 2 + (long)(random.nextDouble() * (delay / 2));
+		}
+	}
+
+	public static boolean isRetryable(MessagingException e) {
+		if (e instanceof FolderClosedException || e instanceof StoreClosedException || AdaptiveBatchSize.isThrottle(e)) {
+			return true;
+		}
+		// Broken sockets and timeouts surface as a plain MessagingException wrapping the cause
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException || cause instanceof ConnectionException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,230 @@
+package uk.org.winton.imapmove;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPInputStream;
+import com.sun.mail.imap.IMAPMessage;
+
+/**
+ * A copy of a source message whose headers may be changed without touching the
+ * body. Only the header lines are held here; when the message is written out the
+ * original is streamed through a {@link HeaderReplacingOutputStream}, which swaps
+ * in these headers and passes the body bytes straight through, so attachments are
+ * never parsed or buffered. The copy starts with no flags set.
+ * <p>
+ * A large original can first be spooled to a temporary file, which is then read
+ * instead of the source server each time the message is written. Alternatively the
+ * original can be read from a {@link MessageCache}, which keeps it beyond this run.
+ */
+public class RewrittenMessage extends MimeMessage {
+	private static final Logger LOG = Logger.getLogger(RewrittenMessage.class);
+
+	private final MimeMessage original;
+	private File spooled;
+	private MessageCache cache;
+	private File cached;
+	private byte[] fetched;
+
+	public RewrittenMessage(Session session, MimeMessage original) throws MessagingException {
+		super(session);
+		this.original = original;
+		
+		// Keep the original header order rather than InternetHeaders' default one
+		headers = new InternetHeaders(new ByteArrayInputStream(new byte[0]));
+		Enumeration<?> lines = original.getAllHeaderLines();
+		while (lines.hasMoreElements()) {
+			headers.addHeaderLine((String)lines.nextElement());
+		}
+		saved = true;
+	}
+
+	public MimeMessage getOriginal() {
+		return original;
+	}
+
+	public File getSpoolFile() {
+		return spooled;
+	}
+
+	public void spool(File directory) throws MessagingException {
+		try {
+			File file = File.createTempFile("imapmove", ".eml", directory);
+			try {
+				saveOriginal(file);
+				spooled = file;
+			}
+			finally {
+				// Otherwise it is deleted by release()
+				if (spooled != file) {
+					file.delete();
+				}
+			}
+			LOG.debug("Spooled " + file.length() + " bytes to " + file);
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to spool message", e);
+		}
+	}
+
+	/**
+	 * Reads the original from the cache, fetching it into the cache first if it is
+	 * not already there.
+	 */
+	public void cache(MessageCache messageCache, String key) throws MessagingException {
+		if (!useCached(messageCache, key)) {
+			store(messageCache, key);
+		}
+	}
+
+	/**
+	 * Reads the original from the cache if it is there, returning false if not.
+	 */
+	public boolean useCached(MessageCache messageCache, String key) {
+		File file = messageCache.get(key);
+		if (file == null) {
+			return false;
+		}
+		LOG.debug("Read " + key + " from message cache");
+		cache = messageCache;
+		cached = file;
+		return true;
+	}
+
+	/**
+	 * Writes the original, or the body already fetched for it, into the cache.
+	 */
+	public void store(MessageCache messageCache, String key) throws MessagingException {
+		try {
+			File temp = messageCache.createTempFile();
+			saveOriginal(temp);
+			cached = messageCache.add(key, temp);
+			cache = messageCache;
+			fetched = null;
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to cache message", e);
+		}
+	}
+
+	/**
+	 * Supplies the raw original, fetched by some other means, so that it need not
+	 * be read from the source again.
+	 */
+	public void setFetched(byte[] raw) {
+		fetched = raw;
+	}
+
+	public boolean hasLocalCopy() {
+		return spooled != null || cached != null || fetched != null;
+	}
+
+	private void saveOriginal(File file) throws IOException, MessagingException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			if (fetched != null) {
+				out.write(fetched);
+			}
+			else {
+				writeOriginal(out);
+			}
+		}
+		catch (IOException e) {
+			out.close();
+			file.delete();
+			throw e;
+		}
+		catch (MessagingException e) {
+			out.close();
+			file.delete();
+			throw e;
+		}
+		out.close();
+	}
+
+	private void writeOriginal(OutputStream out) throws IOException, MessagingException {
+		if (original instanceof IMAPMessage) {
+			// Read in fetch-size pieces rather than as one literal held in memory
+			copy(new IMAPInputStream((IMAPMessage)original, null, -1, true), out);
+		}
+		else {
+			original.writeTo(out);
+		}
+	}
+
+	public void release() {
+		if (spooled != null) {
+			spooled.delete();
+			spooled = null;
+		}
+		if (cached != null) {
+			// Cached files belong to the cache, which may keep them for another run
+			cache.release(cached);
+			cached = null;
+		}
+		fetched = null;
+	}
+
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		HeaderReplacingOutputStream out = new HeaderReplacingOutputStream(os, getHeaderBytes(ignoreList));
+		File local = spooled != null ? spooled : cached;
+		if (local != null) {
+			copy(new FileInputStream(local), out);
+		}
+		else if (fetched != null) {
+			out.write(fetched);
+		}
+		else {
+			writeOriginal(out);
+		}
+		out.finish();
+		os.flush();
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected InputStream getContentStream() throws MessagingException {
+		return original.getRawInputStream();
+	}
+
+	private byte[] getHeaderBytes(String[] ignoreList) throws MessagingException {
+		StringBuilder block = new StringBuilder();
+		Enumeration<?> lines = headers.getNonMatchingHeaderLines(ignoreList);
+		while (lines.hasMoreElements()) {
+			block.append((String)lines.nextElement()).append("\r\n");
+		}
+		try {
+			return block.toString().getBytes("ISO-8859-1");
+		}
+		catch (IOException e) {
+			throw new MessagingException("Unable to encode headers", e);
+		}
+	}
+}
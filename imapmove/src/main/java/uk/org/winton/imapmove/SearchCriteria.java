@@ -0,0 +1,88 @@
+package uk.org.winton.imapmove;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Flags;
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+
+/**
+ * Builds the IMAP SEARCH used to choose which source messages to move. JavaMail
+ * sends these terms to the server, so messages that are not going to be moved are
+ * never fetched at all.
+ * <p>
+ * Messages from the destination address are not excluded here, because the server
+ * matches FROM as a substring and would skip other addresses that contain it. The
+ * mover compares whole addresses itself instead.
+ */
+public final class SearchCriteria {
+	static final String DATE_FORMAT = "yyyy-MM-dd";
+	static final String SEARCH_SINCE = "search.since";
+	static final String SEARCH_BEFORE = "search.before";
+	static final String SEARCH_LARGER = "search.larger";
+	static final String SEARCH_SMALLER = "search.smaller";
+	static final String SEARCH_HEADER = "search.header.";
+
+	private SearchCriteria() {
+	}
+
+	public static SearchTerm fromProperties(Properties props) {
+		List<SearchTerm> terms = new ArrayList<SearchTerm>();
+		if (props.getProperty(SEARCH_SINCE) != null) {
+			terms.add(new ReceivedDateTerm(ComparisonTerm.GE, parseDate(props.getProperty(SEARCH_SINCE))));
+		}
+		if (props.getProperty(SEARCH_BEFORE) != null) {
+			terms.add(new ReceivedDateTerm(ComparisonTerm.LT, parseDate(props.getProperty(SEARCH_BEFORE))));
+		}
+		if (props.getProperty(SEARCH_LARGER) != null) {
+			terms.add(new SizeTerm(ComparisonTerm.GT, Integer.parseInt(props.getProperty(SEARCH_LARGER))));
+		}
+		if (props.getProperty(SEARCH_SMALLER) != null) {
+			terms.add(new SizeTerm(ComparisonTerm.LT, Integer.parseInt(props.getProperty(SEARCH_SMALLER))));
+		}
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(SEARCH_HEADER)) {
+				terms.add(new HeaderTerm(key.substring(SEARCH_HEADER.length()), props.getProperty(key)));
+			}
+		}
+		return and(terms);
+	}
+
+	public static SearchTerm selection(SearchTerm criteria) {
+		List<SearchTerm> terms = new ArrayList<SearchTerm>();
+		terms.add(new FlagTerm(new Flags(Flags.Flag.DELETED), false));
+		if (criteria != null) {
+			terms.add(criteria);
+		}
+		return and(terms);
+	}
+
+	private static SearchTerm and(List<SearchTerm> terms) {
+		if (terms.isEmpty()) {
+			return null;
+		}
+		if (terms.size() == 1) {
+			return terms.get(0);
+		}
+		return new AndTerm(terms.toArray(new SearchTerm[terms.size()]));
+	}
+
+	private static Date parseDate(String date) {
+		try {
+			return new SimpleDateFormat(DATE_FORMAT).parse(date);
+		}
+		catch (ParseException e) {
+			throw new IllegalArgumentException("Dates must be given as " + DATE_FORMAT + ": " + date);
+		}
+	}
+}
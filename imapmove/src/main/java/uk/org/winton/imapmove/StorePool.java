@@ -0,0 +1,336 @@
+package uk.org.winton.imapmove;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The logged-in connections for one {@link IMAPClient}. Stores are borrowed and
+ * returned rather than opened and closed, so repeated moves against the same server
+ * pay the connect and login cost only once. Connections that have been idle for a
+ * while are checked with a NOOP before being handed out again, and those idle for
+ * longer than the idle timeout are closed, down to the configured minimum. Once the
+ * pool is in use a background task does the same between borrows, and opens
+ * connections in advance to keep that minimum idle. Connections still borrowed when
+ * the pool is closed are closed when they are returned, rather than pooled again.
+ */
+class StorePool {
+	private static final Logger LOG = Logger.getLogger(StorePool.class);
+
+	static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	static final long DEFAULT_VALIDATE_AFTER = 10 * 1000;
+	static final long DEFAULT_MAX_WAIT = 60 * 1000;
+	static final long MAINTAIN_INTERVAL = 30 * 1000;
+
+	private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "store-pool");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final IMAPClient client;
+	private final LinkedList<Idle> idle = new LinkedList<Idle>();
+	private final Set<Store> lent = new HashSet<Store>();
+	// Lent before the pool was closed, and so closed rather than pooled when they come back
+	private final Set<Store> retired = new HashSet<Store>();
+	private int open = 0;
+	private int minIdle = 0;
+	private int maxOpen = 0;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long validateAfter = DEFAULT_VALIDATE_AFTER;
+	private long maxWait = DEFAULT_MAX_WAIT;
+	private long maintainInterval = MAINTAIN_INTERVAL;
+	private ScheduledFuture<?> maintainer;
+
+	StorePool(IMAPClient client) {
+		this.client = client;
+	}
+
+	Store borrow() throws MessagingException {
+		long deadline = System.currentTimeMillis() + maxWait;
+		while (true) {
+			Idle entry;
+			List<Store> expired;
+			boolean full = false;
+			synchronized (this) {
+				startMaintenance();
+				expired = evict();
+				entry = idle.poll();
+				if (entry == null && maxOpen > 0 && open >= maxOpen) {
+					full = true;
+					// Any just evicted are closed, outside the lock, before waiting
+					if (expired.isEmpty()) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							throw new MessagingException("Timed out waiting for a connection to " + client.getHost());
+						}
+						try {
+							wait(remaining);
+						}
+						catch (InterruptedException e) {
+							throw new MessagingException("Interrupted waiting for a connection to " + client.getHost(), e);
+						}
+					}
+				}
+				else if (entry == null) {
+					open++;
+				}
+			}
+
+			// Logging in, checking health and logging out all take a round trip, so none holds the lock
+			close(expired);
+			if (full) {
+				continue;
+			}
+			if (entry == null) {
+				try {
+					return lend(client.openStore());
+				}
+				catch (MessagingException e) {
+					release();
+					throw e;
+				}
+				catch (RuntimeException e) {
+					release();
+					throw e;
+				}
+			}
+			if (System.currentTimeMillis() - entry.since < validateAfter || entry.store.isConnected()) {
+				return lend(entry.store);
+			}
+			LOG.debug("Discarding dead connection to " + client.getHost());
+			invalidate(entry.store);
+		}
+	}
+
+	private synchronized Store lend(Store store) {
+		lent.add(store);
+		return store;
+	}
+
+	void giveBack(Store store) {
+		List<Store> expired;
+		synchronized (this) {
+			if (retired.remove(store)) {
+				expired = new ArrayList<Store>();
+				expired.add(store);
+				open--;
+			}
+			else {
+				lent.remove(store);
+				idle.addFirst(new Idle(store));
+				expired = evict();
+			}
+			notifyAll();
+		}
+		close(expired);
+	}
+
+	void invalidate(Store store) {
+		synchronized (this) {
+			lent.remove(store);
+			retired.remove(store);
+		}
+		close(store);
+		release();
+	}
+
+	void close() {
+		LinkedList<Idle> closing;
+		synchronized (this) {
+			if (maintainer != null) {
+				maintainer.cancel(false);
+				maintainer = null;
+			}
+			closing = new LinkedList<Idle>(idle);
+			idle.clear();
+			open -= closing.size();
+			retired.addAll(lent);
+			lent.clear();
+			notifyAll();
+		}
+		for (Idle entry : closing) {
+			close(entry.store);
+		}
+	}
+
+	private void startMaintenance() {
+		if (maintainer == null && maintainInterval > 0) {
+			maintainer = MAINTENANCE.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					maintain();
+				}
+			}, 0, maintainInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Closes connections idle for too long and opens new ones to keep the minimum
+	 * idle, as borrowing would, but without waiting for a borrower.
+	 */
+	void maintain() {
+		List<Store> expired;
+		int wanted;
+		synchronized (this) {
+			expired = evict();
+			wanted = minIdle - idle.size();
+			if (maxOpen > 0) {
+				wanted = Math.min(wanted, maxOpen - open);
+			}
+			wanted = Math.max(wanted, 0);
+			open += wanted;
+		}
+		close(expired);
+		for (int i = 0; i < wanted; i++) {
+			try {
+				Store store = client.openStore();
+				boolean closed;
+				synchronized (this) {
+					closed = maintainer == null && maintainInterval > 0;
+				}
+				if (closed) {
+					// The pool was closed while this was logging in
+					invalidate(store);
+				}
+				else {
+					giveBack(store);
+				}
+			}
+			catch (MessagingException e) {
+				LOG.debug("Failed to open spare connection to " + client.getHost() + ": " + e.getMessage());
+				while (i++ < wanted) {
+					release();
+				}
+			}
+			catch (RuntimeException e) {
+				LOG.debug("Failed to open spare connection to " + client.getHost() + ": " + e.getMessage());
+				while (i++ < wanted) {
+					release();
+				}
+			}
+		}
+	}
+
+	private synchronized void release() {
+		open--;
+		notifyAll();
+	}
+
+	/**
+	 * Takes the connections idle for too long out of the pool, returning them to be
+	 * closed once the lock is released.
+	 */
+	private List<Store> evict() {
+		// The least recently used connections are at the end of the list
+		List<Store> expired = new ArrayList<Store>();
+		long now = System.currentTimeMillis();
+		Iterator<Idle> entries = idle.descendingIterator();
+		while (entries.hasNext() && idle.size() > minIdle) {
+			Idle entry = entries.next();
+			if (now - entry.since < idleTimeout) {
+				break;
+			}
+			entries.remove();
+			open--;
+			expired.add(entry.store);
+		}
+		if (!expired.isEmpty()) {
+			notifyAll();
+		}
+		return expired;
+	}
+
+	private void close(List<Store> stores) {
+		for (Store store : stores) {
+			LOG.debug("Closing idle connection to " + client.getHost());
+			close(store);
+		}
+	}
+
+	private void close(Store store) {
+		try {
+			store.close();
+		}
+		catch (MessagingException e) {
+			LOG.debug("Failed to close connection: " + e.getMessage());
+		}
+	}
+
+	synchronized int getOpen() {
+		return open;
+	}
+
+	synchronized int getIdle() {
+		return idle.size();
+	}
+
+	synchronized void setMinIdle(int count) {
+		minIdle = Math.max(0, count);
+	}
+
+	synchronized int getMinIdle() {
+		return minIdle;
+	}
+
+	synchronized void setMaxOpen(int count) {
+		maxOpen = Math.max(0, count);
+		notifyAll();
+	}
+
+	synchronized int getMaxOpen() {
+		return maxOpen;
+	}
+
+	synchronized void setIdleTimeout(long millis) {
+		idleTimeout = Math.max(0, millis);
+	}
+
+	synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	synchronized void setValidateAfter(long millis) {
+		validateAfter = Math.max(0, millis);
+	}
+
+	synchronized long getValidateAfter() {
+		return validateAfter;
+	}
+
+	synchronized void setMaxWait(long millis) {
+		maxWait = Math.max(0, millis);
+	}
+
+	synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	synchronized void setMaintainInterval(long millis) {
+		// Zero leaves maintenance to borrowers and explicit calls to maintain()
+		maintainInterval = Math.max(0, millis);
+	}
+
+	private static class Idle {
+		final Store store;
+		final long since = System.currentTimeMillis();
+
+		Idle(Store store) {
+			this.store = store;
+		}
+	}
+}
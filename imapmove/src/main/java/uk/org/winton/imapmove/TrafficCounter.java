@@ -0,0 +1,119 @@
+package uk.org.winton.imapmove;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the traffic of one client. A counter may have a parent, such as the one for
+ * a whole account, which sees everything it counts too. Connections shared between
+ * the clients of an account count into whichever of those clients' counters is bound
+ * to the thread using them, so that each job's figures are its own.
+ */
+public class TrafficCounter {
+
+	private static final ThreadLocal<Map<TrafficCounter, TrafficCounter>> BOUND = new ThreadLocal<Map<TrafficCounter, TrafficCounter>>() {
+		@Override
+		protected Map<TrafficCounter, TrafficCounter> initialValue() {
+			return new HashMap<TrafficCounter, TrafficCounter>();
+		}
+	};
+
+	private final AtomicLong roundTrips = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final TrafficCounter parent;
+
+	public TrafficCounter() {
+		this(null);
+	}
+
+	public TrafficCounter(TrafficCounter parent) {
+		this.parent = parent;
+	}
+
+	public TrafficCounter getParent() {
+		return parent;
+	}
+
+	/**
+	 * Makes this the counter for traffic on the current thread that would otherwise
+	 * go to another counter with the same parent.
+	 */
+	static void bind(TrafficCounter counter) {
+		if (counter.parent != null) {
+			BOUND.get().put(counter.parent, counter);
+		}
+	}
+
+	static void unbind(TrafficCounter counter) {
+		if (counter.parent != null && BOUND.get().get(counter.parent) == counter) {
+			BOUND.get().remove(counter.parent);
+		}
+	}
+
+	/**
+	 * Returns the counter bound to the current thread in place of this one, or this
+	 * one if there is none.
+	 */
+	static TrafficCounter forThread(TrafficCounter counter) {
+		TrafficCounter bound = counter.parent == null ? null : BOUND.get().get(counter.parent);
+		return bound != null ? bound : counter;
+	}
+
+	public void addRoundTrip() {
+		roundTrips.incrementAndGet();
+		if (parent != null) {
+			parent.addRoundTrip();
+		}
+	}
+
+	public void addBytesRead(long count) {
+		bytesRead.addAndGet(count);
+		if (parent != null) {
+			parent.addBytesRead(count);
+		}
+	}
+
+	public void addBytesWritten(long count) {
+		bytesWritten.addAndGet(count);
+		if (parent != null) {
+			parent.addBytesWritten(count);
+		}
+	}
+
+	public void addCompressed(long compressed, long uncompressed) {
+		compressedBytes.addAndGet(compressed);
+		uncompressedBytes.addAndGet(uncompressed);
+		if (parent != null) {
+			parent.addCompressed(compressed, uncompressed);
+		}
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return getRoundTrips() + " round trips, " + getBytesRead() + " bytes in, " + getBytesWritten() + " bytes out";
+	}
+}
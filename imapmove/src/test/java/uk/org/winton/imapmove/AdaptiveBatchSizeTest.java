@@ -0,0 +1,93 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+	private static final long MILLIS = 1000000;
+
+	@Test
+	public void sizeShouldGrowWhileLatencyHoldsSteady() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(50, 1, 1000);
+		for (int i = 0; i < 5; i++) {
+			batch.completed(batch.next(), batch.next() * MILLIS);
+		}
+		assertEquals(100, batch.next());
+	}
+
+	@Test
+	public void sizeShouldNeverExceedTheMaximum() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(50, 1, 60);
+		for (int i = 0; i < 5; i++) {
+			batch.completed(batch.next(), batch.next() * MILLIS);
+		}
+		assertEquals(60, batch.next());
+	}
+
+	@Test
+	public void risingLatencyShouldShrinkTheSize() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(100, 1, 1000);
+		batch.completed(100, 100 * MILLIS);
+		int grown = batch.next();
+		batch.completed(grown, grown * 5 * MILLIS);
+		assertEquals((int)(grown * 0.75), batch.next());
+	}
+
+	@Test
+	public void throttlingShouldHalveTheSizeAndAskForALongerPauseEachTime() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(100, 1, 1000);
+		assertEquals(0, batch.takePause());
+		
+		assertTrue(batch.throttled());
+		assertEquals(50, batch.next());
+		assertEquals(AdaptiveBatchSize.BASE_PAUSE, batch.takePause());
+		assertEquals(0, batch.takePause());
+		
+		batch.throttled();
+		assertEquals(25, batch.next());
+		assertEquals(AdaptiveBatchSize.BASE_PAUSE * 2, batch.takePause());
+	}
+
+	@Test
+	public void batchRunningDuringAThrottleShouldNotGrowTheSize() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(100, 1, 1000);
+		batch.throttled();
+		batch.completed(50, 50 * MILLIS);
+		assertEquals(50, batch.next());
+		batch.completed(50, 50 * MILLIS);
+		assertEquals(70, batch.next());
+	}
+
+	@Test
+	public void sizeShouldNeverFallBelowTheMinimum() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize(10, 4, 1000);
+		batch.throttled();
+		batch.throttled();
+		assertEquals(4, batch.next());
+	}
+
+	@Test
+	public void repeatedThrottlingShouldEventuallyGiveUp() {
+		AdaptiveBatchSize batch = new AdaptiveBatchSize();
+		for (int i = 0; i < AdaptiveBatchSize.MAX_THROTTLES; i++) {
+			assertTrue(batch.throttled());
+		}
+		assertFalse(batch.throttled());
+	}
+
+	@Test
+	public void throttleResponsesShouldBeRecognised() {
+		assertTrue(AdaptiveBatchSize.isThrottle("[THROTTLED] Too many commands"));
+		assertTrue(AdaptiveBatchSize.isThrottle("A12 NO [limit] Rate exceeded"));
+		assertTrue(AdaptiveBatchSize.isThrottle(new FolderClosedException(null, "* BYE Server busy")));
+		assertFalse(AdaptiveBatchSize.isThrottle(new MessagingException("A12 NO [TRYCREATE] No such mailbox")));
+		assertFalse(AdaptiveBatchSize.isThrottle((String)null));
+	}
+}
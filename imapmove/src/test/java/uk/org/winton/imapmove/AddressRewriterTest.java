@@ -0,0 +1,99 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AddressRewriterTest {
+
+	private Map<String, String> rules;
+
+	@Before
+	public void setUp() {
+		rules = new LinkedHashMap<String, String>();
+		rules.put("alice@old.com", "alice@new.com");
+		rules.put("@old.com", "@new.com");
+		rules.put("@.legacy.org", "archive@new.com");
+		rules.put("bob@sub.legacy.org", "bob@new.com");
+	}
+
+	@Test
+	public void addressRuleShouldReplaceTheAddress() throws Exception {
+		assertEquals("alice@new.com", rewrite("alice@old.com"));
+	}
+
+	@Test
+	public void matchingShouldIgnoreCase() throws Exception {
+		assertEquals("alice@new.com", rewrite("Alice@OLD.com"));
+	}
+
+	@Test
+	public void domainRuleShouldKeepTheLocalPartAndName() throws Exception {
+		assertEquals("Carol <carol@new.com>", rewrite("Carol <carol@old.com>"));
+	}
+
+	@Test
+	public void domainRuleShouldNotApplyToSubdomains() throws Exception {
+		assertNull(new AddressRewriter(rules).rewrite(InternetAddress.parse("dave@mail.old.com")));
+	}
+
+	@Test
+	public void subdomainRuleShouldApplyToTheDomainAndItsSubdomains() throws Exception {
+		assertEquals("archive@new.com", rewrite("eve@legacy.org"));
+		assertEquals("archive@new.com", rewrite("eve@a.b.legacy.org"));
+	}
+
+	@Test
+	public void mostSpecificRuleShouldWin() throws Exception {
+		assertEquals("bob@new.com", rewrite("bob@sub.legacy.org"));
+	}
+
+	@Test
+	public void unmatchedAddressesShouldBeLeftAlone() throws Exception {
+		AddressRewriter rewriter = new AddressRewriter(rules);
+		Address[] addrs = InternetAddress.parse("frank@elsewhere.com, grace@new.com");
+		assertNull(rewriter.rewrite(addrs));
+		assertFalse(rewriter.matches(addrs));
+	}
+
+	@Test
+	public void onlyMatchingAddressesShouldBeReplaced() throws Exception {
+		AddressRewriter rewriter = new AddressRewriter(rules);
+		Address[] addrs = InternetAddress.parse("frank@elsewhere.com, alice@old.com");
+		Address[] rewritten = rewriter.rewrite(addrs);
+		assertTrue(rewriter.matches(addrs));
+		assertSame(addrs[0], rewritten[0]);
+		assertEquals("alice@new.com", rewritten[1].toString());
+		assertEquals("alice@old.com", addrs[1].toString());
+	}
+
+	@Test
+	public void replacementAddressShouldBeParsedOnlyOnce() throws Exception {
+		AddressRewriter rewriter = new AddressRewriter(rules);
+		Address first = rewriter.rewrite(InternetAddress.parse("alice@old.com"))[0];
+		Address second = rewriter.rewrite(InternetAddress.parse("ALICE@old.com"))[0];
+		assertSame(first, second);
+	}
+
+	@Test
+	public void ruleMappingAnAddressToItselfShouldBeIgnored() throws Exception {
+		Map<String, String> identity = new LinkedHashMap<String, String>();
+		identity.put("same@localhost", "Same@localhost");
+		assertTrue(new AddressRewriter(identity).isEmpty());
+	}
+
+	private String rewrite(String addr) throws Exception {
+		return new AddressRewriter(rules).rewrite(InternetAddress.parse(addr))[0].toString();
+	}
+}
@@ -0,0 +1,127 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CountingSocketFactoryTest {
+
+	private ServerSocket server;
+	private Thread echo;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0);
+		echo = new Thread() {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					InputStream in = s.getInputStream();
+					OutputStream out = s.getOutputStream();
+					out.write("* OK ready\r\n".getBytes("US-ASCII"));
+					int b;
+					while ((b = in.read()) >= 0) {
+						out.write(b);
+					}
+					s.close();
+				}
+				catch (Exception e) {
+					// Test server finished
+				}
+			}
+		};
+		echo.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		echo.join(1000);
+	}
+
+	@Test
+	public void shouldCountOneRoundTripEachTimeTheClientSpeaksAfterListening() throws Exception {
+		TrafficCounter counter = new TrafficCounter();
+		Socket socket = new CountingSocketFactory(counter).createSocket("localhost", server.getLocalPort());
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		
+		readFully(in, 12);
+		for (int i = 0; i < 3; i++) {
+			// Two writes in a row are still one round trip
+			out.write("A1 ".getBytes("US-ASCII"));
+			out.write("NOOP\r\n".getBytes("US-ASCII"));
+			out.flush();
+			readFully(in, 9);
+		}
+		socket.close();
+		
+		assertEquals(3, counter.getRoundTrips());
+		assertEquals(27, counter.getBytesWritten());
+		assertEquals(12 + 27, counter.getBytesRead());
+	}
+
+	@Test
+	public void trafficShouldBeCountedByTheCounterBoundToTheThread() throws Exception {
+		TrafficCounter account = new TrafficCounter();
+		TrafficCounter owner = new TrafficCounter(account);
+		TrafficCounter job = new TrafficCounter(account);
+		Socket socket = new CountingSocketFactory(owner).createSocket("localhost", server.getLocalPort());
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		
+		readFully(in, 12);
+		TrafficCounter.bind(job);
+		try {
+			out.write("A1 NOOP\r\n".getBytes("US-ASCII"));
+			out.flush();
+			readFully(in, 9);
+		}
+		finally {
+			TrafficCounter.unbind(job);
+		}
+		socket.close();
+		
+		assertEquals(12, owner.getBytesRead());
+		assertEquals(0, owner.getRoundTrips());
+		assertEquals(9, job.getBytesRead());
+		assertEquals(1, job.getRoundTrips());
+		assertEquals(21, account.getBytesRead());
+	}
+
+	@Test
+	public void trafficInBothDirectionsShouldBePacedByTheLimiter() throws Exception {
+		TrafficCounter counter = new TrafficCounter();
+		RateLimiter limiter = new RateLimiter("test", 2000);
+		Socket socket = new CountingSocketFactory(counter, limiter).createSocket("localhost", server.getLocalPort());
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		
+		long start = System.currentTimeMillis();
+		readFully(in, 12);
+		out.write(new byte[1500]);
+		out.flush();
+		readFully(in, 1500);
+		socket.close();
+		
+		// About 1000 bytes over the one second allowance, so about half a second waiting
+		assertTrue(System.currentTimeMillis() - start >= 400);
+		assertTrue(limiter.getWaitedMillis() >= 400);
+	}
+
+	private void readFully(InputStream in, int count) throws Exception {
+		byte[] buf = new byte[count];
+		int got = 0;
+		while (got < count) {
+			got += in.read(buf, got, count - got);
+		}
+	}
+}
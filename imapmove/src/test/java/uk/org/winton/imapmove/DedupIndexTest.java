@@ -0,0 +1,116 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DedupIndexTest {
+
+	private File file;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("dedup", ".idx");
+		file.delete();
+		session = Session.getInstance(new Properties());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void addedFingerprintsShouldBeFound() throws Exception {
+		DedupIndex index = new DedupIndex(file);
+		assertTrue(index.add(42));
+		assertFalse(index.add(42));
+		assertTrue(index.contains(42));
+		assertFalse(index.contains(43));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void zeroShouldBeAValidFingerprint() throws Exception {
+		DedupIndex index = new DedupIndex(file);
+		assertFalse(index.contains(0));
+		index.add(0);
+		assertTrue(index.contains(0));
+	}
+
+	@Test
+	public void indexShouldGrowAndSurviveReloading() throws Exception {
+		DedupIndex index = new DedupIndex(file);
+		for (long i = 1; i <= 10000; i++) {
+			index.add(i * 7919);
+		}
+		index.save();
+		
+		DedupIndex reloaded = new DedupIndex(file);
+		assertEquals(10000, reloaded.size());
+		for (long i = 1; i <= 10000; i++) {
+			assertTrue(reloaded.contains(i * 7919));
+		}
+		assertFalse(reloaded.contains(7918));
+	}
+
+	@Test
+	public void fingerprintShouldUseMessageIdWhenPresent() throws Exception {
+		MimeMessage first = message("<abc@localhost>", "One");
+		MimeMessage second = message("<abc@localhost>", "Two");
+		assertEquals(DedupIndex.fingerprint(first, ""), DedupIndex.fingerprint(second, ""));
+		assertNotEquals(DedupIndex.fingerprint(first, ""), DedupIndex.fingerprint(message("<def@localhost>", "One"), ""));
+	}
+
+	@Test
+	public void fingerprintWithoutMessageIdShouldAllowForTheSubjectPrefix() throws Exception {
+		MimeMessage original = message(null, "Hello");
+		MimeMessage moved = message(null, "MOVED Hello");
+		assertEquals(DedupIndex.fingerprint(moved, ""), DedupIndex.fingerprint(original, "MOVED "));
+		assertNotEquals(DedupIndex.fingerprint(moved, ""), DedupIndex.fingerprint(original, ""));
+	}
+
+	@Test
+	public void fingerprintOfFetchedHeadersShouldMatchTheMessage() throws Exception {
+		MimeMessage withId = message("<abc@localhost>", "One");
+		MimeMessage withoutId = message(null, "Caf\u00e9 menu");
+		assertEquals(DedupIndex.fingerprint(withId, ""), DedupIndex.fingerprint(headers(withId)));
+		// The subject is sent encoded, and must be decoded to match
+		assertEquals(DedupIndex.fingerprint(withoutId, ""), DedupIndex.fingerprint(headers(withoutId)));
+	}
+
+	private static InternetHeaders headers(MimeMessage msg) throws Exception {
+		InternetHeaders headers = new InternetHeaders();
+		Enumeration<?> lines = msg.getAllHeaderLines();
+		while (lines.hasMoreElements()) {
+			headers.addHeaderLine((String)lines.nextElement());
+		}
+		return headers;
+	}
+
+	private MimeMessage message(String id, String subject) throws Exception {
+		MimeMessage msg = new MimeMessage(session);
+		msg.setFrom("sender@localhost");
+		msg.setHeader("Date", "Tue, 1 Oct 2013 10:00:00 +0100");
+		msg.setSubject(subject);
+		msg.setText("Some body text");
+		if (id != null) {
+			msg.setHeader("Message-ID", id);
+		}
+		return msg;
+	}
+}
@@ -0,0 +1,94 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeflateSocketTest {
+
+	private ServerSocket listener;
+	private DeflateSocket client;
+	private DeflateSocket server;
+
+	@Before
+	public void setUp() throws Exception {
+		listener = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Socket plain = new Socket(listener.getInetAddress(), listener.getLocalPort());
+		client = new DeflateSocket(plain, new TrafficCounter());
+		server = new DeflateSocket(listener.accept(), new TrafficCounter());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+		listener.close();
+	}
+
+	@Test
+	public void dataShouldArriveUncompressed() throws Exception {
+		OutputStream out = client.getOutputStream();
+		out.write("a001 NOOP\r\n".getBytes("US-ASCII"));
+		out.flush();
+
+		InputStream in = server.getInputStream();
+		byte[] buf = new byte[11];
+		for (int n = 0; n < buf.length; ) {
+			n += in.read(buf, n, buf.length - n);
+		}
+		assertEquals("a001 NOOP\r\n", new String(buf, "US-ASCII"));
+	}
+
+	@Test
+	public void streamsShouldFailCleanlyOnceClosed() throws Exception {
+		client.close();
+		client.close();
+		assertTrue(client.isClosed());
+		try {
+			client.getOutputStream().write(new byte[] { 'x' }, 0, 1);
+			fail("Expected failure");
+		}
+		catch (SocketException e) {
+			// Rather than the NullPointerException of an ended deflater
+		}
+		try {
+			client.getInputStream().read(new byte[1], 0, 1);
+			fail("Expected failure");
+		}
+		catch (SocketException e) {
+			// Likewise for the inflater
+		}
+	}
+
+	@Test
+	public void closeShouldFailAReadInProgress() throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					server.getInputStream().read(new byte[1], 0, 1);
+				}
+				catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		server.close();
+		reader.join(5000);
+
+		assertTrue(failure[0] instanceof SocketException);
+	}
+}
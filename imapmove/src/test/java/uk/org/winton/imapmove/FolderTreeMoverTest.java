@@ -0,0 +1,267 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.junit.Test;
+
+public class FolderTreeMoverTest {
+
+	@Test
+	public void hierarchyDelimiterShouldBeRewritten() {
+		assertEquals("Work.Projects.2013", FolderTreeMover.mapName("Work/Projects/2013", '/', '.', ""));
+		assertEquals("Work/Projects", FolderTreeMover.mapName("Work/Projects", '/', '/', null));
+	}
+
+	@Test
+	public void destinationDelimiterWithinANameShouldBeReplaced() {
+		assertEquals("Accounts.v1_2", FolderTreeMover.mapName("Accounts/v1.2", '/', '.', ""));
+	}
+
+	@Test
+	public void prefixShouldBecomeTheParentFolder() {
+		assertEquals("Migrated.INBOX", FolderTreeMover.mapName("INBOX", '/', '.', "Migrated"));
+		assertEquals("Migrated.Sent.2012", FolderTreeMover.mapName("Sent/2012", '/', '.', "Migrated"));
+	}
+
+	@Test
+	public void largestFoldersShouldComeFirst() {
+		List<FolderTreeMover.TreeFolder> folders = new ArrayList<FolderTreeMover.TreeFolder>();
+		folders.add(new FolderTreeMover.TreeFolder("Drafts", '/', 3));
+		folders.add(new FolderTreeMover.TreeFolder("INBOX", '/', 5000));
+		folders.add(new FolderTreeMover.TreeFolder("Archive", '/', 3));
+		folders.add(new FolderTreeMover.TreeFolder("Sent", '/', 900));
+		Collections.sort(folders, FolderTreeMover.LARGEST_FIRST);
+
+		assertEquals("[INBOX (5000), Sent (900), Archive (3), Drafts (3)]", folders.toString());
+	}
+
+	@Test
+	public void foldersShouldGoUnderTheDestinationNamespace() throws Exception {
+		FakeStore src = new FakeStore('/', "");
+		src.add("INBOX", 10);
+		src.add("Sent", 5);
+		src.add("Work/Projects", 2);
+		FakeStore dst = new FakeStore('.', "INBOX");
+		dst.add("INBOX", 0);
+
+		Map<String, String> targets = names(FolderTreeMover.plan(src, dst, null, "", false));
+		assertEquals("INBOX", targets.get("INBOX"));
+		assertEquals("INBOX.Sent", targets.get("Sent"));
+		assertEquals("INBOX.Work.Projects", targets.get("Work/Projects"));
+		assertTrue(dst.folders.containsKey("INBOX.Work"));
+		assertTrue(dst.folders.containsKey("INBOX.Work.Projects"));
+		assertFalse(dst.folders.containsKey("Sent"));
+	}
+
+	@Test
+	public void sourceNamespaceShouldBeLeftBehind() throws Exception {
+		FakeStore src = new FakeStore('.', "INBOX");
+		src.add("INBOX", 10);
+		src.add("INBOX.Sent", 5);
+		FakeStore dst = new FakeStore('/', "");
+		dst.add("INBOX", 0);
+
+		Map<String, String> targets = names(FolderTreeMover.plan(src, dst, null, "Old", false));
+		assertEquals("Old/INBOX", targets.get("INBOX"));
+		assertEquals("Old/Sent", targets.get("INBOX.Sent"));
+	}
+
+	@Test
+	public void foldersAlreadyUnderThePrefixShouldNotBeMovedAgain() throws Exception {
+		FakeStore store = new FakeStore('.', "INBOX");
+		store.add("INBOX", 10);
+		store.add("INBOX.Sent", 5);
+		store.add("INBOX.Archive", 0);
+		store.add("INBOX.Archive.Sent", 3);
+
+		Map<String, String> targets = names(FolderTreeMover.plan(store, store, null, "Archive", true));
+		assertEquals(2, targets.size());
+		assertEquals("INBOX.Archive.INBOX", targets.get("INBOX"));
+		assertEquals("INBOX.Archive.Sent", targets.get("INBOX.Sent"));
+	}
+
+	@Test
+	public void theTemplateMoverShouldHaveNoMetrics() {
+		Properties props = new Properties();
+		props.setProperty("source.url", "imap://user:pw@src.example.com/INBOX");
+		props.setProperty("metrics.jmx", "true");
+		props.setProperty("metrics.file", "metrics.csv");
+		Properties template = FolderTreeMover.withoutMetrics(props);
+		assertEquals("imap://user:pw@src.example.com/INBOX", template.getProperty("source.url"));
+		assertNull(template.getProperty("metrics.jmx"));
+		assertNull(template.getProperty("metrics.file"));
+	}
+
+	@Test
+	public void dedupFilesShouldBeDistinctForEveryFolder() {
+		String nested = FolderTreeMover.dedupFile("dedup.idx", "a/b");
+		assertTrue(nested.startsWith("dedup.idx.a_b-"));
+		assertNotEquals(nested, FolderTreeMover.dedupFile("dedup.idx", "a_b"));
+		assertEquals(nested, FolderTreeMover.dedupFile("dedup.idx", "a/b"));
+	}
+
+	private static Map<String, String> names(Map<FolderTreeMover.TreeFolder, String> targets) {
+		Map<String, String> names = new TreeMap<String, String>();
+		for (Map.Entry<FolderTreeMover.TreeFolder, String> entry : targets.entrySet()) {
+			names.put(entry.getKey().name, entry.getValue());
+		}
+		return names;
+	}
+
+	/**
+	 * Just enough of a store to list, count and create folders.
+	 */
+	private static class FakeStore extends Store {
+		final Map<String, Integer> folders = new TreeMap<String, Integer>();
+		final char separator;
+		final String namespace;
+
+		FakeStore(char separator, String namespace) {
+			super(Session.getInstance(new Properties()), null);
+			this.separator = separator;
+			this.namespace = namespace;
+		}
+
+		void add(String name, int messages) {
+			folders.put(name, messages);
+		}
+
+		@Override
+		public Folder getDefaultFolder() {
+			return new FakeFolder(this, "");
+		}
+
+		@Override
+		public Folder getFolder(String name) {
+			return new FakeFolder(this, name);
+		}
+
+		@Override
+		public Folder getFolder(javax.mail.URLName url) {
+			return new FakeFolder(this, url.getFile());
+		}
+
+		@Override
+		public Folder[] getPersonalNamespaces() {
+			return new Folder[] { new FakeFolder(this, namespace) };
+		}
+	}
+
+	private static class FakeFolder extends Folder {
+		private final FakeStore fake;
+		private final String name;
+
+		FakeFolder(FakeStore store, String name) {
+			super(store);
+			this.fake = store;
+			this.name = name;
+		}
+
+		public String getName() {
+			return name.substring(name.lastIndexOf(fake.separator) + 1);
+		}
+
+		public String getFullName() {
+			return name;
+		}
+
+		public Folder getParent() {
+			int end = name.lastIndexOf(fake.separator);
+			return new FakeFolder(fake, end < 0 ? "" : name.substring(0, end));
+		}
+
+		public boolean exists() {
+			return name.length() == 0 || fake.folders.containsKey(name);
+		}
+
+		public Folder[] list(String pattern) {
+			// Only "*" is used, which lists everything below
+			List<Folder> below = new ArrayList<Folder>();
+			for (String other : fake.folders.keySet()) {
+				if (name.length() == 0 || other.startsWith(name + fake.separator)) {
+					below.add(new FakeFolder(fake, other));
+				}
+			}
+			return below.toArray(new Folder[below.size()]);
+		}
+
+		public char getSeparator() {
+			return fake.separator;
+		}
+
+		public int getType() {
+			return name.length() == 0 ? HOLDS_FOLDERS : HOLDS_MESSAGES | HOLDS_FOLDERS;
+		}
+
+		public boolean create(int type) {
+			fake.folders.put(name, 0);
+			return true;
+		}
+
+		public int getMessageCount() {
+			Integer count = fake.folders.get(name);
+			return count == null ? 0 : count;
+		}
+
+		public boolean hasNewMessages() {
+			return false;
+		}
+
+		public Folder getFolder(String child) {
+			return new FakeFolder(fake, name.length() == 0 ? child : name + fake.separator + child);
+		}
+
+		public boolean delete(boolean recurse) {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean renameTo(Folder folder) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void open(int mode) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close(boolean expunge) {
+		}
+
+		public boolean isOpen() {
+			return false;
+		}
+
+		public Flags getPermanentFlags() {
+			return new Flags();
+		}
+
+		public Message getMessage(int msgnum) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void appendMessages(Message[] msgs) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Message[] expunge() throws MessagingException {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
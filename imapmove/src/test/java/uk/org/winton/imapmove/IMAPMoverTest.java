@@ -3,16 +3,24 @@ package uk.org.winton.imapmove;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.mail.Address;
 import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.StoreClosedException;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.HeaderTerm;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -168,6 +176,23 @@ public class IMAPMoverTest {
 		assertEquals(SRC_MSG_COUNT / 2, matched);
 	}
 	
+	@Test
+	public void additionalAddressRulesShouldBeApplied() throws MessagingException {
+		mover.addAddressRule("@localhost", "@example.com");
+		mover.move();
+		
+		MimeMessage moved = (MimeMessage)dstMbx.get(DST_MSG_COUNT);
+		assertEquals(DSTUSER + ", to1@example.com", moved.getHeader("To", ", "));
+	}
+
+	@Test
+	public void recipientHeadersShouldBeUntouchedWhenNoRuleApplies() throws MessagingException {
+		srcMbx.get(0).setHeader("To", "other@elsewhere.com");
+		mover.move();
+		
+		assertEquals("other@elsewhere.com", ((MimeMessage)dstMbx.get(DST_MSG_COUNT)).getHeader("To", ", "));
+	}
+
 	@Test
 	public void messagesFromDestinationAddressShouldNotBeMoved() throws MessagingException {
 		srcMbx.clear();
@@ -201,6 +226,16 @@ public class IMAPMoverTest {
 		assertEquals(SRC_MSG_COUNT / 2, srcMbx.size());
 		assertEquals(SRC_MSG_COUNT / 2, dstMbx.size());
 	}
+
+	@Test
+	public void messagesFromAddressesContainingTheDestinationAddressShouldBeMoved() throws MessagingException {
+		srcMbx.get(0).setHeader("From", "not-" + DSTUSER);
+		srcMbx.get(1).setHeader("From", DSTUSER + ".example.org");
+		mover.move();
+		
+		assertEquals(0, srcMbx.size());
+		assertEquals(DST_MSG_COUNT + SRC_MSG_COUNT, dstMbx.size());
+	}
 	
 	@Test
 	public void messagesShouldBeAddedToDestinationButNotRemovedFromSourceIfExpungeFlagIsFalse() throws MessagingException {
@@ -275,4 +310,172 @@ public class IMAPMoverTest {
 			assertFalse(msg.getFlags().contains(Flag.FLAGGED));
 		}
 	}
+
+	@Test
+	public void messagesShouldAllBeMovedWhenProcessedInBatches() throws MessagingException {
+		mover.setBatchSize(4);
+		mover.setSubjectPrefix("MOVED ");
+		mover.move();
+		
+		assertEquals(SRC_MSG_COUNT + DST_MSG_COUNT, dstMbx.size());
+		assertEquals(0, srcMbx.size());
+		int matched = 0;
+		for (Message msg : dstMbx) {
+			if (msg.getSubject().startsWith("MOVED ")) {
+				matched++;
+			}
+		}
+		assertEquals(SRC_MSG_COUNT, matched);
+	}
+	
+	@Test
+	public void batchShouldBeReplayedAfterAConnectionFailureWithoutCopyingAnythingTwice() throws MessagingException {
+		mover = new FailingMover(2, new FolderClosedException(null, "Connection dropped"), 1);
+		mover.setRetryPolicy(new RetryPolicy(3, 0, 0));
+		mover.move();
+		
+		assertEquals(SRC_MSG_COUNT + DST_MSG_COUNT, dstMbx.size());
+		assertEquals(0, srcMbx.size());
+		assertEquals(Long.valueOf(1), mover.getMetrics().getRetries().get(MoveMetrics.connection(MoveMetrics.DESTINATION, 0)));
+	}
+	
+	@Test
+	public void commandFailuresShouldNotBeRetried() throws MessagingException {
+		mover = new FailingMover(2, new MessagingException("A5 NO Mailbox is full"), 1);
+		mover.setRetryPolicy(new RetryPolicy(3, 0, 0));
+		try {
+			mover.move();
+			fail("Expected failure");
+		}
+		catch (MessagingException e) {
+			assertEquals("A5 NO Mailbox is full", e.getMessage());
+		}
+		assertEquals(DST_MSG_COUNT + 2, dstMbx.size());
+		assertEquals(SRC_MSG_COUNT, srcMbx.size());
+	}
+	
+	@Test
+	public void retriesShouldBeCountedAgainstTheConnectionThatFailed() throws MessagingException {
+		Folder src = mover.getSource().getMailboxFolder();
+		Folder dst = mover.getDestination().getMailboxFolder();
+		src.open(Folder.READ_WRITE);
+		dst.open(Folder.READ_WRITE);
+		
+		assertEquals("source-0", mover.failedConnection(new FolderClosedException(src, "Connection dropped"), src, dst));
+		assertEquals("destination-0", mover.failedConnection(new StoreClosedException(dst.getStore(), "Connection dropped"), src, dst));
+		MessagingException wrapped = new MessagingException("Append failed", new FolderClosedException(dst, "Connection dropped"));
+		assertEquals("destination-0", mover.failedConnection(wrapped, src, dst));
+	}
+	
+	@Test
+	public void retriesShouldStopAtTheLimit() throws MessagingException {
+		mover = new FailingMover(0, new FolderClosedException(null, "Connection dropped"), 10);
+		mover.setRetryPolicy(new RetryPolicy(2, 0, 0));
+		try {
+			mover.move();
+			fail("Expected failure");
+		}
+		catch (FolderClosedException e) {
+			assertEquals(Long.valueOf(2), mover.getMetrics().getRetries().get(MoveMetrics.connection(MoveMetrics.DESTINATION, 0)));
+		}
+		assertEquals(DST_MSG_COUNT, dstMbx.size());
+	}
+	
+	@Test
+	public void messagesShouldAllBeMovedWithAnAdaptiveBatchSize() throws MessagingException {
+		mover.setAdaptiveBatchSize(new AdaptiveBatchSize(1, 1, 2));
+		mover.move();
+		
+		assertEquals(SRC_MSG_COUNT + DST_MSG_COUNT, dstMbx.size());
+		assertEquals(0, srcMbx.size());
+	}
+	
+	@Test
+	public void batchByteLimitShouldStillMoveMessagesLargerThanTheLimit() throws MessagingException {
+		mover.setBatchBytes(1);
+		mover.move();
+		
+		assertEquals(SRC_MSG_COUNT + DST_MSG_COUNT, dstMbx.size());
+		assertEquals(0, srcMbx.size());
+	}
+	
+	@Test
+	public void batchedMoveShouldNotRemoveMessagesFromSourceIfExpungeFlagIsFalse() throws MessagingException {
+		mover.setBatchSize(2);
+		mover.move(false);
+		
+		assertEquals(SRC_MSG_COUNT + DST_MSG_COUNT, dstMbx.size());
+		assertEquals(SRC_MSG_COUNT, srcMbx.size());
+	}
+	
+	@Test
+	public void onlyMessagesMatchingTheSearchCriteriaShouldBeMoved() throws MessagingException {
+		mover.setSearchCriteria(new HeaderTerm("Message-ID", "srcid-2@"));
+		mover.move();
+		
+		assertEquals(SRC_MSG_COUNT - 1, srcMbx.size());
+		assertEquals(DST_MSG_COUNT + 1, dstMbx.size());
+		assertEquals("Source Subject 2", dstMbx.get(DST_MSG_COUNT).getSubject());
+	}
+	
+	@Test
+	public void verifiedSearchShouldStillSkipMessagesFromTheDestination() throws MessagingException {
+		srcMbx.get(0).setFrom(new InternetAddress(DSTUSER));
+		srcMbx.get(1).setFlag(Flag.DELETED, true);
+		mover.setVerifySearch(true);
+		mover.move();
+		
+		assertEquals(1, srcMbx.size());
+		assertEquals(DST_MSG_COUNT + SRC_MSG_COUNT - 2, dstMbx.size());
+	}
+	
+	@Test
+	public void messagesAlreadyInDestinationShouldBeRemovedFromSourceWithoutCopying() throws MessagingException, IOException {
+		// As left behind by a run that stopped between copying and expunging
+		for (int i = 0; i < 2; i++) {
+			MimeMessage copy = new MimeMessage((MimeMessage)srcMbx.get(i));
+			copy.setSubject("MOVED " + copy.getSubject());
+			dstMbx.add(copy);
+		}
+		File file = File.createTempFile("dedup", ".idx");
+		file.delete();
+		try {
+			mover.setDedupIndex(new DedupIndex(file));
+			mover.setSubjectPrefix("MOVED ");
+			
+			assertEquals(SRC_MSG_COUNT, mover.move());
+			assertEquals(0, srcMbx.size());
+			assertEquals(DST_MSG_COUNT + SRC_MSG_COUNT, dstMbx.size());
+			assertEquals(DST_MSG_COUNT + SRC_MSG_COUNT, new DedupIndex(file).size());
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	private static class FailingMover extends IMAPMover {
+		private final int after;
+		private final MessagingException failure;
+		private int failures;
+		private int appended = 0;
+		
+		FailingMover(int after, MessagingException failure, int failures) {
+			super(new IMAPClient(SRC_URL), new IMAPClient(DST_URL));
+			this.after = after;
+			this.failure = failure;
+			this.failures = failures;
+		}
+		
+		@Override
+		void append(Folder dst, Message[] msgs, List<Message> accepted) throws MessagingException {
+			for (Message msg : msgs) {
+				if (appended >= after && failures > 0) {
+					failures--;
+					throw failure;
+				}
+				super.append(dst, new Message[] { msg }, accepted);
+				appended++;
+			}
+		}
+	}
 }
@@ -0,0 +1,98 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+public class IdleMoverTest {
+	private static final String DSTUSER = "dstuser@localhost";
+	private static final String SRCUSER = "srcuser@localhost";
+	private static final String SRC_URL = "imap://srcuser@localhost/inbox";
+	private static final String DST_URL = "imap://dstuser@localhost/inbox";
+	private static final long TIMEOUT = 5000;
+	private Mailbox srcMbx;
+	private Mailbox dstMbx;
+	private Session session;
+	private IdleMover daemon;
+	private Thread thread;
+	private volatile MessagingException failure;
+
+	@Before
+	public void setUp() throws Exception {
+		Mailbox.clearAll();
+		srcMbx = Mailbox.get(SRCUSER);
+		dstMbx = Mailbox.get(DSTUSER);
+		session = Session.getInstance(System.getProperties());
+		srcMbx.add(message("Already waiting"));
+
+		daemon = new IdleMover(new IMAPMover(new IMAPClient(SRC_URL), new IMAPClient(DST_URL)));
+		daemon.setPollInterval(10);
+		daemon.setReconnectDelay(10);
+		thread = new Thread() {
+			public void run() {
+				try {
+					daemon.run();
+				}
+				catch (MessagingException e) {
+					failure = e;
+				}
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		daemon.stop();
+		thread.join(TIMEOUT);
+	}
+
+	@Test
+	public void messagesShouldBeMovedAsTheyArrive() throws Exception {
+		thread.start();
+		waitFor(dstMbx, 1);
+		waitFor(srcMbx, 0);
+
+		srcMbx.add(message("New arrival"));
+		waitFor(dstMbx, 2);
+		waitFor(srcMbx, 0);
+		assertEquals("New arrival", dstMbx.get(1).getSubject());
+	}
+
+	@Test
+	public void stoppingShouldEndTheRun() throws Exception {
+		thread.start();
+		waitFor(dstMbx, 1);
+
+		daemon.stop();
+		thread.join(TIMEOUT);
+		assertFalse(thread.isAlive());
+		assertFalse(daemon.isRunning());
+		assertEquals(null, failure);
+	}
+
+	private MimeMessage message(String subject) throws MessagingException {
+		MimeMessage msg = new MimeMessage(session);
+		msg.setFrom("from@somewhere");
+		msg.setRecipients(Message.RecipientType.TO, SRCUSER);
+		msg.setSubject(subject);
+		msg.setText("Some body text");
+		return msg;
+	}
+
+	private void waitFor(Mailbox mbx, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mbx.size() != count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, mbx.size());
+	}
+}
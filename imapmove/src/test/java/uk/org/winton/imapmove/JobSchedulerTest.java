@@ -0,0 +1,126 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+public class JobSchedulerTest {
+	private Properties props;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		Mailbox.clearAll();
+		session = Session.getInstance(System.getProperties());
+		addMessages("alice@localhost", 3);
+		addMessages("bob@localhost", 2);
+
+		props = new Properties();
+		props.setProperty("jobs", "alice, bob");
+		props.setProperty("jobs.threads", "1");
+		props.setProperty("source.host", "localhost");
+		props.setProperty("destination.host", "localhost");
+		props.setProperty("destination.username", "archive");
+		props.setProperty("subject.prefix", "MOVED ");
+		props.setProperty("alice.source.username", "alice");
+		props.setProperty("bob.source.username", "bob");
+		props.setProperty("bob.subject.prefix", "BOB ");
+	}
+
+	@Test
+	public void everyJobShouldBeRun() throws Exception {
+		List<JobScheduler.Result> results = new JobScheduler(props).run();
+
+		assertEquals(2, results.size());
+		assertEquals("alice", results.get(0).getName());
+		assertEquals(3, results.get(0).getMoved());
+		assertEquals("bob", results.get(1).getName());
+		assertEquals(2, results.get(1).getMoved());
+		assertEquals(0, JobScheduler.failures(results));
+		assertEquals(0, Mailbox.get("alice@localhost").size());
+		assertEquals(0, Mailbox.get("bob@localhost").size());
+		assertEquals(5, Mailbox.get("archive@localhost").size());
+	}
+
+	@Test
+	public void jobSettingsShouldOverrideDefaults() throws Exception {
+		new JobScheduler(props).run();
+
+		int alice = 0;
+		int bob = 0;
+		for (Message msg : Mailbox.get("archive@localhost")) {
+			if (msg.getSubject().startsWith("MOVED ")) {
+				alice++;
+			}
+			if (msg.getSubject().startsWith("BOB ")) {
+				bob++;
+			}
+		}
+		assertEquals(3, alice);
+		assertEquals(2, bob);
+	}
+
+	@Test
+	public void usernamesDifferingInCaseShouldBeSeparateAccounts() throws Exception {
+		props.setProperty("bob.source.username", "Alice");
+		props.setProperty("bob.source.host", "LOCALHOST");
+		// Sharing would throw, as the clients are not the same account
+		new JobScheduler(props);
+	}
+
+	@Test
+	public void jobPropertiesShouldNotLeakIntoOtherJobs() {
+		Properties merged = JobScheduler.jobProperties(props, "alice");
+		assertEquals("alice", merged.getProperty("source.username"));
+		assertEquals("MOVED ", merged.getProperty("subject.prefix"));
+	}
+
+	@Test
+	public void jobsForTheSameAccountShouldShareAConnection() throws Exception {
+		IMAPMover first = new IMAPMover(new IMAPClient("imap://alice@localhost/inbox"), new IMAPClient("imap://archive@localhost/alice"));
+		IMAPMover second = new IMAPMover(new IMAPClient("imap://bob@localhost/inbox"), new IMAPClient("imap://archive@localhost/bob"));
+		JobScheduler scheduler = new JobScheduler(new Properties());
+		scheduler.addJob("first", first);
+		scheduler.addJob("second", second);
+
+		assertEquals(2, scheduler.getJobCount());
+		assertFalse(first.getDestination().isSharingConnection());
+		assertTrue(second.getDestination().isSharingConnection());
+		assertFalse(second.getSource().isSharingConnection());
+		assertTrue(first.getDestination().getSession() == second.getDestination().getSession());
+	}
+
+	@Test
+	public void imapAndImapsOnTheSamePortShouldNotShareAConnection() throws Exception {
+		IMAPMover plain = new IMAPMover(new IMAPClient("imap://alice@localhost:993/inbox"), new IMAPClient("imap://archive@localhost/alice"));
+		IMAPMover secure = new IMAPMover(new IMAPClient("imaps://alice@localhost/inbox"), new IMAPClient("imap://archive@localhost/bob"));
+		JobScheduler scheduler = new JobScheduler(new Properties());
+		scheduler.addJob("plain", plain);
+		scheduler.addJob("secure", secure);
+
+		assertFalse(secure.getSource().isSharingConnection());
+	}
+
+	private void addMessages(String user, int count) throws MessagingException {
+		for (int i = 1; i <= count; i++) {
+			MimeMessage msg = new MimeMessage(session);
+			msg.setFrom("from@somewhere");
+			msg.setRecipients(Message.RecipientType.TO, user);
+			msg.setSubject("Subject " + i);
+			msg.setText("Some body text");
+			Mailbox.get(user).add(msg);
+		}
+	}
+}
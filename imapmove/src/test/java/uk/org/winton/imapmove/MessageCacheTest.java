@@ -0,0 +1,121 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageCacheTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("cache", "");
+		dir.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void addedMessagesShouldBeFoundByKey() throws Exception {
+		MessageCache cache = new MessageCache(dir, 1000);
+		assertNull(cache.get("a"));
+		File file = cache.add("a", write(cache, "Message A"));
+		cache.release(file);
+
+		File found = cache.get("a");
+		assertEquals(file, found);
+		assertTrue(found.exists());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void identicalContentShouldBeStoredOnce() throws Exception {
+		MessageCache cache = new MessageCache(dir, 1000);
+		File a = cache.add("a", write(cache, "Same content"));
+		File b = cache.add("b", write(cache, "Same content"));
+		assertEquals(a, b);
+		assertEquals(1, cache.size());
+		assertEquals(12, cache.getBytes());
+	}
+
+	@Test
+	public void leastRecentlyUsedShouldBeEvictedFirst() throws Exception {
+		MessageCache cache = new MessageCache(dir, 25);
+		cache.release(cache.add("a", write(cache, "Message A")));
+		cache.release(cache.add("b", write(cache, "Message B")));
+		cache.release(cache.get("a"));
+		cache.release(cache.add("c", write(cache, "Message C")));
+
+		assertEquals(2, cache.size());
+		assertEquals(18, cache.getBytes());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void filesInUseShouldNotBeEvicted() throws Exception {
+		MessageCache cache = new MessageCache(dir, 10);
+		File a = cache.add("a", write(cache, "Message A"));
+		File b = cache.add("b", write(cache, "Message B"));
+		assertTrue(a.exists());
+		assertTrue(b.exists());
+
+		cache.release(a);
+		assertFalse(a.exists());
+		assertTrue(b.exists());
+	}
+
+	@Test
+	public void cacheShouldSurviveReopening() throws Exception {
+		MessageCache cache = new MessageCache(dir, 1000);
+		cache.release(cache.add("a", write(cache, "Message A")));
+		cache.release(cache.add("b", write(cache, "Message B")));
+		File temp = cache.createTempFile();
+
+		MessageCache reopened = new MessageCache(dir, 1000);
+		assertEquals(2, reopened.size());
+		assertNotNull(reopened.get("a"));
+		assertNotNull(reopened.get("b"));
+		// An unfinished fetch is thrown away
+		assertFalse(temp.exists());
+	}
+
+	@Test
+	public void openShouldShareOneCachePerDirectory() throws Exception {
+		MessageCache cache = MessageCache.open(dir, 1000);
+		MessageCache again = MessageCache.open(new File(dir.getPath() + File.separator + "."), 500);
+		assertSame(cache, again);
+		assertEquals(500, cache.getMaxBytes());
+	}
+
+	private File write(MessageCache cache, String content) throws Exception {
+		File file = cache.createTempFile();
+		OutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes("US-ASCII"));
+		out.close();
+		return file;
+	}
+}
@@ -0,0 +1,142 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+public class MoveMetricsTest {
+	private static final String SRCUSER = "srcuser@localhost";
+	private IMAPMover mover;
+	private MoveMetrics metrics;
+
+	@Before
+	public void setUp() throws Exception {
+		Mailbox.clearAll();
+		Session session = Session.getInstance(System.getProperties());
+		for (int i = 1; i <= 4; i++) {
+			MimeMessage msg = new MimeMessage(session);
+			msg.setFrom("from@somewhere");
+			msg.setRecipients(Message.RecipientType.TO, SRCUSER);
+			msg.setSubject("Subject " + i);
+			msg.setText("Some body text");
+			Mailbox.get(SRCUSER).add(msg);
+		}
+		mover = new IMAPMover(new IMAPClient("imap://srcuser@localhost/inbox"), new IMAPClient("imap://dstuser@localhost/inbox"));
+		metrics = new MoveMetrics(mover, "test");
+		mover.setMetrics(metrics);
+	}
+
+	@Test
+	public void everyPhaseOfAMoveShouldBeTimed() throws Exception {
+		mover.setBatchSize(2);
+		mover.move();
+
+		assertEquals(4, metrics.getMessagesMoved());
+		assertEquals(Long.valueOf(1), metrics.getPhaseCounts().get("CONNECT"));
+		assertEquals(Long.valueOf(1), metrics.getPhaseCounts().get("SEARCH"));
+		assertEquals(Long.valueOf(2), metrics.getPhaseCounts().get("FETCH"));
+		assertEquals(Long.valueOf(2), metrics.getPhaseCounts().get("REWRITE"));
+		assertEquals(Long.valueOf(2), metrics.getPhaseCounts().get("APPEND"));
+		assertEquals(Long.valueOf(2), metrics.getPhaseCounts().get("DELETE"));
+		assertEquals(Long.valueOf(2), metrics.getPhaseCounts().get("EXPUNGE"));
+	}
+
+	@Test
+	public void resetShouldClearEverything() throws Exception {
+		mover.move();
+		metrics.recordRetry("source");
+		metrics.reset();
+
+		assertEquals(0, metrics.getMessagesMoved());
+		assertEquals(Long.valueOf(0), metrics.getPhaseCounts().get("APPEND"));
+		assertTrue(metrics.getRetries().isEmpty());
+	}
+
+	@Test
+	public void retriesShouldBeCountedPerConnection() {
+		metrics.recordRetry("source");
+		metrics.recordRetry("source");
+		metrics.recordRetry("destination");
+
+		assertEquals(Long.valueOf(2), metrics.getRetries().get("source"));
+		assertEquals(Long.valueOf(1), metrics.getRetries().get("destination"));
+	}
+
+	@Test
+	public void histogramShouldBucketByMilliseconds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(500000);
+		histogram.record(3000000);
+		histogram.record(3000000);
+		histogram.record(60000000000L);
+
+		long[] buckets = histogram.getBuckets();
+		assertEquals(1, buckets[0]);
+		assertEquals(2, buckets[2]);
+		assertEquals(1, buckets[buckets.length - 1]);
+		assertEquals(4, histogram.getCount());
+		assertEquals(60000, histogram.getMaxMillis());
+		assertEquals(5, histogram.getPercentileMillis(50));
+		assertEquals(60000, histogram.getPercentileMillis(99));
+	}
+
+	@Test
+	public void snapshotShouldBeASingleJsonLine() throws Exception {
+		mover.move();
+		String json = metrics.getSnapshot();
+
+		assertFalse(json.contains("\n"));
+		assertTrue(json.startsWith("{") && json.endsWith("}"));
+		assertTrue(json.contains("\"name\":\"test\""));
+		assertTrue(json.contains("\"messages\":4"));
+		assertTrue(json.contains("\"append\":{\"count\":1,"));
+	}
+
+	@Test
+	public void closingShouldWriteAFinalDump() throws Exception {
+		File file = File.createTempFile("metrics", ".jsonl");
+		try {
+			metrics.startDump(file, 60000);
+			mover.move();
+			metrics.close();
+
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			String line = reader.readLine();
+			reader.close();
+			assertTrue(line.contains("\"messages\":4"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void metricsShouldBeVisibleThroughJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MoveMetrics.OBJECT_NAME + ObjectName.quote("test"));
+		metrics.register();
+		try {
+			mover.move();
+			assertEquals(4L, server.getAttribute(name, "MessagesMoved"));
+		}
+		finally {
+			metrics.close();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,335 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NioIMAPConnectionTest {
+
+	private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)(\\+?)\\}$");
+	private static final Pattern FETCH = Pattern.compile("UID FETCH (\\d+) BODY.PEEK\\[\\]");
+
+	private ServerSocket listener;
+	private NioIMAPConnection connection;
+	private final List<String> commands = new CopyOnWriteArrayList<String>();
+	private final List<String> messages = new CopyOnWriteArrayList<String>();
+	private volatile int fetchesBeforeReply = 1;
+	private volatile boolean closeOnFetch = false;
+
+	@After
+	public void tearDown() throws Exception {
+		if (connection != null) {
+			connection.close();
+		}
+		if (listener != null) {
+			listener.close();
+		}
+	}
+
+	@Test
+	public void fetchesShouldAllBeSentBeforeAnyReplyIsRead() throws Exception {
+		// The server answers nothing until it has all three, so waiting for each would never finish
+		fetchesBeforeReply = 3;
+		connect("IMAP4rev1", null);
+		assertEquals(42, connection.examine("INBOX"));
+		Map<Long, byte[]> bodies = connection.fetchBodies("INBOX", 42, new long[] { 101, 102, 103 }, 0);
+
+		assertEquals(3, bodies.size());
+		assertArrayEquals(body("INBOX", 102).getBytes("US-ASCII"), bodies.get(102L));
+		assertEquals("UID FETCH 103 BODY.PEEK[]", commands.get(commands.size() - 1));
+	}
+
+	@Test
+	public void fetchesShouldSelectTheMailboxAndCheckItsValidity() throws Exception {
+		connect("IMAP4rev1", null);
+		assertEquals(1, connection.fetchBodies("Archive", 43, new long[] { 101 }, 0).size());
+		try {
+			connection.fetchBodies("INBOX", 43, new long[] { 101 }, 0);
+			fail("Expected failure");
+		}
+		catch (MessagingException e) {
+			assertTrue(e.getMessage().contains("UIDVALIDITY"));
+		}
+		assertEquals("EXAMINE \"INBOX\"", commands.get(commands.size() - 1));
+	}
+
+	@Test
+	public void threadsFetchingFromDifferentMailboxesShouldEachGetTheirOwn() throws Exception {
+		connect("IMAP4rev1", null);
+		final String[] mailboxes = { "INBOX", "Archive" };
+		final List<String> wrong = new CopyOnWriteArrayList<String>();
+		final List<Exception> failures = new CopyOnWriteArrayList<Exception>();
+		Thread[] threads = new Thread[mailboxes.length];
+		for (int t = 0; t < threads.length; t++) {
+			final String mailbox = mailboxes[t];
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 20; i++) {
+							Map<Long, byte[]> bodies = connection.fetchBodies(mailbox, "INBOX".equals(mailbox) ? 42 : 43, new long[] { 101, 102 }, 0);
+							for (long uid = 101; uid <= 102; uid++) {
+								byte[] body = bodies.get(uid);
+								if (body == null || !new String(body, "US-ASCII").equals(body(mailbox, uid))) {
+									wrong.add(mailbox + " " + uid);
+								}
+							}
+						}
+					}
+					catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		assertEquals(new ArrayList<Exception>(), failures);
+		assertEquals(new ArrayList<String>(), wrong);
+	}
+
+	@Test
+	public void examineShouldOnlyBeSentOncePerMailbox() throws Exception {
+		connect("IMAP4rev1", null);
+		connection.examine("INBOX");
+		connection.examine("INBOX");
+		int examines = 0;
+		for (String command : commands) {
+			if (command.startsWith("EXAMINE")) {
+				examines++;
+			}
+		}
+		assertEquals(1, examines);
+	}
+
+	@Test
+	public void appendsShouldBeSentWithoutWaitingGivenLiteralPlus() throws Exception {
+		connect("IMAP4rev1 LITERAL+", null);
+		List<Message> accepted = new ArrayList<Message>();
+		connection.append("INBOX", createMessages(3), 1024 * 1024, 1024 * 1024, null, accepted);
+
+		assertEquals(3, accepted.size());
+		assertEquals(3, messages.size());
+		assertTrue(messages.get(2).contains("Subject: Message 3\r\n"));
+	}
+
+	@Test
+	public void synchronisingLiteralsShouldWaitForTheContinuation() throws Exception {
+		connect("IMAP4rev1", null);
+		List<Message> accepted = new ArrayList<Message>();
+		connection.append("INBOX", createMessages(2), 1024 * 1024, 1024 * 1024, null, accepted);
+
+		assertEquals(2, accepted.size());
+		assertEquals(2, messages.size());
+	}
+
+	@Test
+	public void messagesLargerThanTheBufferShouldBeSentFromAFile() throws Exception {
+		connect("IMAP4rev1 LITERAL+", null);
+		List<Message> accepted = new ArrayList<Message>();
+		connection.append("INBOX", createMessages(3), 1024 * 1024, 16, null, accepted);
+
+		assertEquals(3, accepted.size());
+		assertTrue(messages.get(1).contains("Subject: Message 2\r\n"));
+		assertTrue(messages.get(1).endsWith("Some body text"));
+	}
+
+	@Test
+	public void rejectedAppendShouldReportOnlyTheMessagesAccepted() throws Exception {
+		connect("IMAP4rev1 LITERAL+", "Message 2");
+		Message[] msgs = createMessages(3);
+		List<Message> accepted = new ArrayList<Message>();
+		try {
+			connection.append("INBOX", msgs, 1024 * 1024, 1024 * 1024, null, accepted);
+			fail("Expected failure");
+		}
+		catch (MessagingException e) {
+			assertTrue(e.getMessage().contains("Over quota"));
+		}
+		assertEquals(2, accepted.size());
+		assertFalse(accepted.contains(msgs[1]));
+	}
+
+	@Test
+	public void aDroppedConnectionShouldFailEveryOutstandingCommand() throws Exception {
+		closeOnFetch = true;
+		connect("IMAP4rev1", null);
+		try {
+			connection.fetchBodies("INBOX", 42, new long[] { 101, 102 }, 0);
+			fail("Expected failure");
+		}
+		catch (MessagingException e) {
+			assertTrue(RetryPolicy.isRetryable(e));
+		}
+		assertFalse(connection.isOpen());
+	}
+
+	@Test
+	public void tlsShouldCheckTheServerNameAndSendItForSni() throws Exception {
+		SSLParameters params = NioIMAPConnection.createEngine("imap.example.com", 993).getSSLParameters();
+		assertEquals("HTTPS", params.getEndpointIdentificationAlgorithm());
+		assertEquals(Collections.<SNIServerName>singletonList(new SNIHostName("imap.example.com")), params.getServerNames());
+
+		params = NioIMAPConnection.createEngine("192.0.2.1", 993).getSSLParameters();
+		assertEquals("HTTPS", params.getEndpointIdentificationAlgorithm());
+		assertTrue(params.getServerNames() == null || params.getServerNames().isEmpty());
+	}
+
+	@Test
+	public void stringsShouldBeQuotedOrSentAsLiterals() throws Exception {
+		assertEquals("\"a \\\"b\\\" \\\\c\"", NioIMAPConnection.quote("a \"b\" \\c"));
+		assertArrayEquals("caf\u00e9".getBytes("UTF-8"), (byte[])NioIMAPConnection.quote("caf\u00e9"));
+	}
+
+	private Message[] createMessages(int count) throws MessagingException {
+		Session session = Session.getInstance(System.getProperties());
+		Message[] msgs = new Message[count];
+		for (int i = 0; i < count; i++) {
+			MimeMessage msg = new MimeMessage(session);
+			msg.setSubject("Message " + (i + 1));
+			msg.setText("Some body text");
+			msg.saveChanges();
+			msgs[i] = msg;
+		}
+		return msgs;
+	}
+
+	private static String body(String mailbox, long uid) {
+		return "Subject: Message " + uid + "\r\n\r\nBody of message " + uid + " in " + mailbox + "\r\n";
+	}
+
+	private void connect(final String capabilities, final String reject) throws Exception {
+		listener = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					serve(listener.accept(), capabilities, reject);
+				}
+				catch (IOException e) {
+					// The test sees the failure on the client side
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+
+		connection = NioIMAPConnection.open("127.0.0.1", listener.getLocalPort(), false, null);
+		connection.setTimeout(5000);
+		connection.login("user", "secret");
+	}
+
+	private void serve(Socket socket, String capabilities, String reject) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		send(out, "* OK IMAP server ready");
+
+		List<String> held = new ArrayList<String>();
+		String selected = null;
+		String line;
+		while ((line = readLine(in)) != null) {
+			String tag = line.substring(0, line.indexOf(' '));
+			String command = line.substring(tag.length() + 1);
+			commands.add(command);
+			if (command.startsWith("APPEND")) {
+				boolean rejected = false;
+				Matcher literal = LITERAL.matcher(line);
+				while (literal.find()) {
+					if (literal.group(2).length() == 0) {
+						send(out, "+ Ready for literal data");
+					}
+					byte[] data = new byte[Integer.parseInt(literal.group(1))];
+					for (int n = 0; n < data.length; ) {
+						n += in.read(data, n, data.length - n);
+					}
+					String msg = new String(data, "US-ASCII");
+					messages.add(msg);
+					rejected |= reject != null && msg.contains(reject);
+					literal = LITERAL.matcher(readLine(in));
+				}
+				send(out, tag + (rejected ? " NO [OVERQUOTA] Over quota" : " OK APPEND completed"));
+				continue;
+			}
+			Matcher fetch = FETCH.matcher(command);
+			if (fetch.matches()) {
+				if (closeOnFetch) {
+					break;
+				}
+				held.add(line);
+				if (held.size() < fetchesBeforeReply) {
+					continue;
+				}
+				for (String request : held) {
+					Matcher m = FETCH.matcher(request);
+					m.find();
+					long uid = Long.parseLong(m.group(1));
+					String data = body(selected, uid);
+					send(out, "* " + (uid - 100) + " FETCH (UID " + uid + " BODY[] {" + data.length() + "}\r\n" + data + ")");
+					send(out, request.substring(0, request.indexOf(' ')) + " OK FETCH completed");
+				}
+				held.clear();
+				continue;
+			}
+			if (command.equals("CAPABILITY")) {
+				send(out, "* CAPABILITY " + capabilities);
+			}
+			else if (command.startsWith("EXAMINE")) {
+				selected = command.substring("EXAMINE ".length()).replace("\"", "");
+				send(out, "* 3 EXISTS");
+				send(out, "* OK [UIDVALIDITY " + ("INBOX".equals(selected) ? 42 : 43) + "] UIDs valid");
+			}
+			else if (command.equals("LOGOUT")) {
+				send(out, "* BYE Logging out");
+				send(out, tag + " OK LOGOUT completed");
+				break;
+			}
+			send(out, tag + " OK " + command + " completed");
+		}
+		socket.close();
+	}
+
+	private static void send(OutputStream out, String line) throws IOException {
+		out.write((line + "\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return b < 0 && line.size() == 0 ? null : line.toString("US-ASCII");
+	}
+}
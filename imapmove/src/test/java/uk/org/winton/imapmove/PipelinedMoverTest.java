@@ -0,0 +1,142 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+public class PipelinedMoverTest {
+	private static final String DSTUSER = "dstuser@localhost";
+	private static final String SRCUSER = "srcuser@localhost";
+	private static final int SRC_MSG_COUNT = 25;
+	private static final String SRC_URL = "imap://srcuser@localhost/inbox";
+	private static final String DST_URL = "imap://dstuser@localhost/inbox";
+	private Mailbox srcMbx;
+	private Mailbox dstMbx;
+	private IMAPMover mover;
+	
+	@Before
+	public void setUp() throws Exception {
+		Mailbox.clearAll();
+		srcMbx = Mailbox.get(SRCUSER);
+		dstMbx = Mailbox.get(DSTUSER);
+		List<Message> srcMsgs = new ArrayList<Message>();
+		Session session = Session.getInstance(System.getProperties());
+		
+		for (int i = 1; i <= SRC_MSG_COUNT; i++) {
+			MimeMessage msg = new MimeMessage(session);
+			msg.setFrom(i % 5 == 0 ? DSTUSER : "from@somewhere");
+			msg.setRecipients(Message.RecipientType.TO, SRCUSER + ", to" + i + "@localhost");
+			msg.setSubject("Source Subject " + i);
+			msg.setText("Some body text");
+			if (i % 7 == 0) {
+				msg.setFlag(Flag.DELETED, true);
+			}
+			srcMsgs.add(msg);
+		}
+		srcMbx.addAll(srcMsgs);
+		
+		IMAPClient src = new IMAPClient(SRC_URL);
+		src.setConnections(3);
+		mover = new IMAPMover(src, new IMAPClient(DST_URL));
+		mover.setSubjectPrefix("MOVED ");
+		mover.setBatchSize(4);
+	}
+
+	@Test
+	public void allMovableMessagesShouldBeAppendedAndRemovedFromSource() throws MessagingException {
+		new PipelinedMover(mover).move(true);
+		
+		// Every fifth is from the destination and stays, every seventh was already deleted
+		assertEquals(5, srcMbx.size());
+		assertEquals(SRC_MSG_COUNT - 5 - 3, dstMbx.size());
+		for (Message msg : dstMbx) {
+			assertEquals(true, msg.getSubject().startsWith("MOVED Source Subject"));
+			assertEquals(true, msg.getRecipients(Message.RecipientType.TO)[0].toString().contains(DSTUSER));
+		}
+	}
+	
+	@Test
+	public void sourceMessagesShouldOnlyBeMarkedDeletedIfExpungeFlagIsFalse() throws MessagingException {
+		new PipelinedMover(mover).move(false);
+		
+		assertEquals(SRC_MSG_COUNT, srcMbx.size());
+		assertEquals(SRC_MSG_COUNT - 5 - 3, dstMbx.size());
+		int deleted = 0;
+		for (Message msg : srcMbx) {
+			if (msg.getFlags().contains(Flag.DELETED)) {
+				deleted++;
+			}
+		}
+		assertEquals(SRC_MSG_COUNT - 5, deleted);
+	}
+	
+	@Test
+	public void smallQueuesShouldNotStallThePipeline() throws MessagingException {
+		PipelinedMover pipeline = new PipelinedMover(mover);
+		pipeline.setQueueSize(1);
+		pipeline.move(true);
+		
+		assertEquals(5, srcMbx.size());
+		assertEquals(SRC_MSG_COUNT - 5 - 3, dstMbx.size());
+	}
+	
+	@Test
+	public void messagesAppendedBeforeAFailureShouldBeMarkedDeleted() throws MessagingException {
+		IMAPClient src = new IMAPClient(SRC_URL);
+		src.setConnections(3);
+		IMAPMover failing = new IMAPMover(src, new IMAPClient(DST_URL)) {
+			private int appended = 0;
+			
+			@Override
+			void append(Folder dst, Message[] msgs, List<Message> accepted) throws MessagingException {
+				Message[] some = Arrays.copyOf(msgs, Math.min(msgs.length, 7 - appended));
+				super.append(dst, some, accepted);
+				appended += some.length;
+				if (some.length < msgs.length) {
+					throw new MessagingException("Destination failed");
+				}
+			}
+		};
+		failing.setSubjectPrefix("MOVED ");
+		failing.setBatchSize(4);
+		try {
+			new PipelinedMover(failing).move(true);
+			fail("Expected the failure to be passed on");
+		}
+		catch (MessagingException e) {
+			assertEquals("Destination failed", e.getMessage());
+		}
+		
+		assertEquals(7, dstMbx.size());
+		Set<String> copied = new HashSet<String>();
+		for (Message msg : dstMbx) {
+			copied.add(msg.getSubject().substring("MOVED ".length()));
+		}
+		for (Message msg : srcMbx) {
+			if (copied.contains(msg.getSubject())) {
+				assertEquals(msg.getSubject(), true, msg.getFlags().contains(Flag.DELETED));
+			}
+		}
+		
+		// The next run must not copy any of them again
+		new PipelinedMover(mover).move(true);
+		assertEquals(5, srcMbx.size());
+		assertEquals(SRC_MSG_COUNT - 5 - 3, dstMbx.size());
+	}
+}
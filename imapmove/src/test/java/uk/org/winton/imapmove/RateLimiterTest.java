@@ -0,0 +1,92 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@After
+	public void tearDown() {
+		RateLimiter.reset();
+	}
+
+	@Test
+	public void permitsWithinTheBucketShouldNotWait() {
+		RateLimiter limiter = new RateLimiter("test", 100, 0);
+		assertEquals(0, limiter.reserve(60, 0));
+		assertEquals(0, limiter.reserve(40, 0));
+	}
+
+	@Test
+	public void overdrawingShouldWaitForTheDebtToBeRepaid() {
+		RateLimiter limiter = new RateLimiter("test", 100, 0);
+		limiter.reserve(100, 0);
+		assertEquals(SECOND / 2, limiter.reserve(50, 0));
+		// The next caller waits behind the first
+		assertEquals(SECOND, limiter.reserve(50, 0));
+		assertEquals(1500, limiter.getWaitedMillis());
+	}
+
+	@Test
+	public void bucketShouldRefillOverTimeButNoFurtherThanOneSecond() {
+		RateLimiter limiter = new RateLimiter("test", 100, 0);
+		limiter.reserve(100, 0);
+		assertEquals(0, limiter.reserve(50, SECOND / 2));
+		assertEquals(0, limiter.reserve(100, 10 * SECOND));
+		assertEquals(SECOND / 10, limiter.reserve(10, 10 * SECOND));
+	}
+
+	@Test
+	public void sharedLimitersShouldBeOnePerNameAtTheLowestRate() {
+		RateLimiter first = RateLimiter.shared("shared.example.com bytes", 1000);
+		RateLimiter second = RateLimiter.shared("shared.example.com bytes", 500);
+		RateLimiter third = RateLimiter.shared("shared.example.com bytes", 2000);
+		assertSame(first, second);
+		assertSame(first, third);
+		assertEquals(500, first.getRate());
+	}
+
+	@Test
+	public void releasingShouldRestoreTheRateOfThoseLeft() {
+		RateLimiter limiter = RateLimiter.shared("release.example.com bytes", 1000);
+		RateLimiter.shared("release.example.com bytes", 500);
+		limiter.release(500);
+		assertEquals(1000, limiter.getRate());
+		assertSame(limiter, RateLimiter.shared("release.example.com bytes", 2000));
+		assertEquals(1000, limiter.getRate());
+	}
+
+	@Test
+	public void aLimiterReleasedByEveryoneShouldBeForgotten() {
+		RateLimiter limiter = RateLimiter.shared("forgotten.example.com bytes", 500);
+		limiter.release(500);
+		RateLimiter next = RateLimiter.shared("forgotten.example.com bytes", 2000);
+		assertNotSame(limiter, next);
+		assertEquals(2000, next.getRate());
+	}
+
+	@Test
+	public void rateShouldBeAbleToRise() {
+		RateLimiter limiter = new RateLimiter("test", 100, 0);
+		limiter.setRate(200);
+		assertEquals(200, limiter.getRate());
+	}
+
+	@Test
+	public void acquireShouldBlockWhenTheBucketIsEmpty() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter("test", 20);
+		limiter.acquire(20);
+		long start = System.nanoTime();
+		limiter.acquire(2);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+	}
+}
@@ -0,0 +1,60 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void connectionFailuresShouldBeRetryable() {
+		assertTrue(RetryPolicy.isRetryable(new FolderClosedException(null, "* BYE")));
+		assertTrue(RetryPolicy.isRetryable(new StoreClosedException(null, "* BYE")));
+		assertTrue(RetryPolicy.isRetryable(new MessagingException("IOException while appending messages", new SocketTimeoutException("Read timed out"))));
+		assertTrue(RetryPolicy.isRetryable(new MessagingException("A7 NO [THROTTLED] Slow down")));
+	}
+
+	@Test
+	public void commandFailuresShouldNotBeRetryable() {
+		assertFalse(RetryPolicy.isRetryable(new MessagingException("A7 NO [TRYCREATE] No such mailbox")));
+		assertFalse(RetryPolicy.isRetryable(new AuthenticationFailedException("Invalid credentials")));
+	}
+
+	@Test
+	public void retriesShouldStopAtTheLimit() {
+		RetryPolicy policy = new RetryPolicy(2, 100, 1000);
+		MessagingException e = new FolderClosedException(null, "* BYE");
+		assertTrue(policy.shouldRetry(e, 1));
+		assertTrue(policy.shouldRetry(e, 2));
+		assertFalse(policy.shouldRetry(e, 3));
+	}
+
+	@Test
+	public void delayShouldDoubleWithJitterUpToTheMaximum() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		for (int i = 0; i < 20; i++) {
+			assertBetween(50, 100, policy.delay(1));
+			assertBetween(100, 200, policy.delay(2));
+			assertBetween(200, 400, policy.delay(3));
+			assertBetween(500, 1000, policy.delay(8));
+		}
+	}
+
+	@Test
+	public void zeroDelayShouldNeverWait() {
+		assertEquals(0, new RetryPolicy(3, 0, 0).delay(3));
+	}
+
+	private static void assertBetween(long low, long high, long actual) {
+		assertTrue(actual + " not in [" + low + ", " + high + "]", actual >= low && actual <= high);
+	}
+}
@@ -0,0 +1,127 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Properties;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RewrittenMessageTest {
+
+	private static final String RAW =
+			"Received: from somewhere\r\n" +
+			"Subject: Original subject\r\n" +
+			"To: someone@source.com,\r\n" +
+			" other@source.com\r\n" +
+			"X-Custom: kept as is\r\n" +
+			"\r\n" +
+			"Body line one\r\n" +
+			"\r\n" +
+			"Body line three, after a blank line\r\n";
+	
+	private Session session;
+	private MimeMessage original;
+
+	@Before
+	public void setUp() throws Exception {
+		session = Session.getInstance(new Properties());
+		original = new MimeMessage(session, new ByteArrayInputStream(RAW.getBytes("ISO-8859-1")));
+		original.setFlag(Flag.SEEN, true);
+	}
+
+	@Test
+	public void unchangedMessageShouldBeWrittenOutByteForByte() throws Exception {
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		assertEquals(RAW, write(msg));
+	}
+	
+	@Test
+	public void changedHeadersShouldBeReplacedInPlaceAndBodyLeftAlone() throws Exception {
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		msg.setSubject("[Moved] " + msg.getSubject());
+		
+		String expected = RAW.replace("Subject: Original subject", "Subject: [Moved] Original subject");
+		assertEquals(expected, write(msg));
+		assertEquals("Original subject", original.getSubject());
+	}
+	
+	@Test
+	public void headersShouldBeReadableWithoutTouchingTheBody() throws Exception {
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		assertEquals("Original subject", msg.getSubject());
+		assertEquals(2, msg.getRecipients(Message.RecipientType.TO).length);
+	}
+	
+	@Test
+	public void copyShouldStartWithNoFlags() throws Exception {
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		assertTrue(original.isSet(Flag.SEEN));
+		assertEquals(0, msg.getFlags().getSystemFlags().length);
+	}
+	
+	@Test
+	public void headersShouldStillBeWrittenForAMessageWithNoBody() throws Exception {
+		original = new MimeMessage(session, new ByteArrayInputStream("Subject: Empty\r\n".getBytes("ISO-8859-1")));
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		msg.setSubject("Changed");
+		assertEquals("Subject: Changed\r\n\r\n", write(msg));
+	}
+
+	@Test
+	public void spooledMessageShouldBeWrittenFromTheSpoolFile() throws Exception {
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		msg.setSubject("[Moved] " + msg.getSubject());
+		msg.spool(null);
+		File file = msg.getSpoolFile();
+		assertEquals(RAW.length(), file.length());
+		
+		// The spool, not the original, is what gets written from now on
+		original.setText("Replaced body");
+		String expected = RAW.replace("Subject: Original subject", "Subject: [Moved] Original subject");
+		assertEquals(expected, write(msg));
+		assertEquals(expected, write(msg));
+		
+		msg.release();
+		assertFalse(file.exists());
+		assertNull(msg.getSpoolFile());
+	}
+
+	@Test
+	public void cachedMessageShouldBeWrittenFromTheCacheAndKeptAfterRelease() throws Exception {
+		File dir = File.createTempFile("cache", "");
+		dir.delete();
+		MessageCache cache = new MessageCache(dir, 1024 * 1024);
+		RewrittenMessage msg = new RewrittenMessage(session, original);
+		msg.cache(cache, "key");
+		assertEquals(1, cache.getMisses());
+		msg.release();
+		
+		// A second copy is read from the cache, not the original
+		original.setText("Replaced body");
+		RewrittenMessage again = new RewrittenMessage(session, original);
+		again.cache(cache, "key");
+		assertEquals(1, cache.getHits());
+		assertEquals(RAW, write(again));
+		again.release();
+		assertEquals(1, cache.size());
+		assertEquals(RAW.length(), cache.getBytes());
+	}
+
+	private String write(MimeMessage msg) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeTo(out);
+		return out.toString("ISO-8859-1");
+	}
+}
@@ -0,0 +1,95 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.SearchTerm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchCriteriaTest {
+	private MimeMessage msg;
+
+	@Before
+	public void setUp() throws Exception {
+		Session session = Session.getInstance(System.getProperties());
+		msg = new MimeMessage(session);
+		msg.setFrom("someone@somewhere");
+		msg.setSubject("Subject");
+		msg.setHeader("X-List", "announce");
+		msg.setText("Some body text");
+		
+		// Only a parsed message knows its size
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		msg.writeTo(bytes);
+		msg = new MimeMessage(session, new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	@Test
+	public void noPropertiesShouldGiveNoCriteria() {
+		assertNull(SearchCriteria.fromProperties(new Properties()));
+	}
+
+	@Test
+	public void headerCriteriaShouldBeTakenFromProperties() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("search.header.X-List", "announce");
+		assertTrue(SearchCriteria.fromProperties(props).match(msg));
+
+		props.setProperty("search.header.X-List", "other");
+		assertFalse(SearchCriteria.fromProperties(props).match(msg));
+	}
+
+	@Test
+	public void sizeCriteriaShouldBeTakenFromProperties() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("search.larger", "1");
+		props.setProperty("search.smaller", "1000");
+		assertTrue(SearchCriteria.fromProperties(props) instanceof AndTerm);
+		assertTrue(SearchCriteria.fromProperties(props).match(msg));
+
+		props.setProperty("search.smaller", "2");
+		assertFalse(SearchCriteria.fromProperties(props).match(msg));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badDatesShouldBeRejected() {
+		Properties props = new Properties();
+		props.setProperty("search.since", "1st January");
+		SearchCriteria.fromProperties(props);
+	}
+
+	@Test
+	public void selectionShouldExcludeDeletedMessages() throws Exception {
+		SearchTerm selection = SearchCriteria.selection(null);
+		assertTrue(selection instanceof FlagTerm);
+		assertTrue(selection.match(msg));
+		msg.setFlag(Flag.DELETED, true);
+		assertFalse(selection.match(msg));
+	}
+
+	@Test
+	public void selectionShouldAddTheCriteria() {
+		SearchTerm selection = SearchCriteria.selection(SearchCriteria.fromProperties(headerCriteria("X-List", "other")));
+		assertTrue(selection instanceof AndTerm);
+		assertFalse(selection.match(msg));
+	}
+
+	private static Properties headerCriteria(String name, String value) {
+		Properties props = new Properties();
+		props.setProperty("search.header." + name, value);
+		return props;
+	}
+}
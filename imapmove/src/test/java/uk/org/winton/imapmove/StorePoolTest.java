@@ -0,0 +1,164 @@
+package uk.org.winton.imapmove;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+public class StorePoolTest {
+	private IMAPClient client;
+	private StorePool pool;
+
+	@Before
+	public void setUp() {
+		Mailbox.clearAll();
+		client = new IMAPClient("imap://someuser@localhost/inbox");
+		pool = client.getPool();
+		// Tests call maintain() themselves, rather than racing the background task
+		pool.setMaintainInterval(0);
+	}
+
+	@Test
+	public void returnedStoresShouldBeReused() throws Exception {
+		Store first = client.borrowStore();
+		client.returnStore(first);
+		assertEquals(1, pool.getIdle());
+
+		Store second = client.borrowStore();
+		assertTrue(first == second);
+		assertEquals(1, pool.getOpen());
+		assertEquals(0, pool.getIdle());
+	}
+
+	@Test
+	public void concurrentBorrowersShouldGetDifferentStores() throws Exception {
+		Store first = client.borrowStore();
+		Store second = client.borrowStore();
+		assertFalse(first == second);
+		assertEquals(2, pool.getOpen());
+	}
+
+	@Test
+	public void idleStoresShouldBeEvictedDownToTheMinimum() throws Exception {
+		client.setPoolIdleTimeout(0);
+		client.setPoolMinIdle(1);
+		Store first = client.borrowStore();
+		Store second = client.borrowStore();
+		client.returnStore(first);
+		client.returnStore(second);
+
+		assertEquals(1, pool.getIdle());
+		assertEquals(1, pool.getOpen());
+		assertFalse(first.isConnected());
+		assertTrue(second.isConnected());
+	}
+
+	@Test
+	public void idleStoresShouldBeClosedWithoutWaitingForABorrower() throws Exception {
+		client.setPoolIdleTimeout(20);
+		Store first = client.borrowStore();
+		client.returnStore(first);
+		Thread.sleep(50);
+		pool.maintain();
+
+		assertFalse(first.isConnected());
+		assertEquals(0, pool.getOpen());
+	}
+
+	@Test
+	public void sparesShouldBeOpenedUpToTheMinimumIdle() throws Exception {
+		client.setPoolMinIdle(2);
+		client.borrowStore();
+		pool.maintain();
+
+		assertEquals(2, pool.getIdle());
+		assertEquals(3, pool.getOpen());
+	}
+
+	@Test
+	public void sparesShouldNotExceedTheMaximumOpen() throws Exception {
+		client.setPoolMinIdle(2);
+		client.setPoolMaxOpen(2);
+		client.borrowStore();
+		pool.maintain();
+
+		assertEquals(1, pool.getIdle());
+		assertEquals(2, pool.getOpen());
+	}
+
+	@Test
+	public void maintenanceShouldRunInTheBackgroundOnceThePoolIsUsed() throws Exception {
+		pool.setMaintainInterval(10);
+		client.setPoolMinIdle(1);
+		client.borrowStore();
+		for (int i = 0; i < 100 && pool.getIdle() == 0; i++) {
+			Thread.sleep(10);
+		}
+		int spares = pool.getIdle();
+		pool.close();
+
+		assertEquals(1, spares);
+	}
+
+	@Test
+	public void deadStoresShouldBeReplaced() throws Exception {
+		client.setPoolValidateAfter(0);
+		Store first = client.borrowStore();
+		client.returnStore(first);
+		first.close();
+
+		Store second = client.borrowStore();
+		assertFalse(first == second);
+		assertTrue(second.isConnected());
+		assertEquals(1, pool.getOpen());
+	}
+
+	@Test(expected = MessagingException.class)
+	public void borrowingShouldTimeOutWhenThePoolIsFull() throws Exception {
+		client.setPoolMaxOpen(1);
+		pool.setMaxWait(10);
+		client.borrowStore();
+		client.borrowStore();
+	}
+
+	@Test
+	public void invalidatedStoresShouldFreeTheirSlot() throws Exception {
+		client.setPoolMaxOpen(1);
+		pool.setMaxWait(10);
+		Store first = client.borrowStore();
+		client.invalidateStore(first);
+
+		assertFalse(first.isConnected());
+		assertTrue(client.borrowStore().isConnected());
+	}
+
+	@Test
+	public void disconnectingShouldCloseEveryIdleStore() throws Exception {
+		Store first = client.borrowStore();
+		Store primary = client.getConnectedStore();
+		client.returnStore(first);
+		client.disconnect();
+
+		assertFalse(first.isConnected());
+		assertFalse(primary.isConnected());
+		assertEquals(0, pool.getOpen());
+	}
+
+	@Test
+	public void storesReturnedAfterClosingShouldBeClosedNotPooled() throws Exception {
+		Store borrowed = client.borrowStore();
+		pool.close();
+		client.returnStore(borrowed);
+
+		assertFalse(borrowed.isConnected());
+		assertEquals(0, pool.getIdle());
+		assertEquals(0, pool.getOpen());
+		assertFalse(client.borrowStore() == borrowed);
+	}
+}